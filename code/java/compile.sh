@@ -1,3 +1,15 @@
 #! /bin/bash
-rm -rf bin/*.class
-javac -cp ".;lib/postgresql-42.1.4.jar;" src/AirBooking.java -d bin/
+rm -rf bin/*.class bin/airbooking.jar bin/classes.lst bin/airbooking.jsa
+javac -cp ".:lib/postgresql-42.1.4.jar" src/*.java -d bin/
+
+# Class data sharing archive of the startup classes, used by run.sh. The JVM
+# only archives classes from jars, hence airbooking.jar. Needs a JDK with
+# AppCDS (OpenJDK 11 or later); skipped elsewhere.
+CP="lib/postgresql-42.1.4.jar:bin/airbooking.jar"
+if (cd bin && jar cf airbooking.jar *.class) &&
+	java -XX:DumpLoadedClassList=bin/classes.lst -cp $CP AirBooking cds 0 cds --load-classes 2>/dev/null &&
+	java -Xshare:dump -XX:SharedClassListFile=bin/classes.lst -XX:SharedArchiveFile=bin/airbooking.jsa -cp $CP > /dev/null 2>&1; then
+    echo "Class data sharing archive: bin/airbooking.jsa"
+else
+    rm -f bin/airbooking.jar bin/classes.lst bin/airbooking.jsa
+fi
@@ -1,7 +1,10 @@
 #! /bin/bash
-DBNAME=$1
-PORT=$2
-USER=$3
 
-# Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ AirBooking $DBNAME $PORT $USER
+# Example: source ./run.sh flightDB 5432 user [--option=value ...]
+#      or: source ./run.sh --config=airbooking.properties [--option=value ...]
+if [ -f bin/airbooking.jsa ]; then
+    # start from the class data sharing archive built by compile.sh
+    java -Xshare:auto -XX:SharedArchiveFile=bin/airbooking.jsa -cp lib/postgresql-42.1.4.jar:bin/airbooking.jar AirBooking "$@"
+else
+    java -cp lib/*:bin/ AirBooking "$@"
+fi
@@ -0,0 +1,228 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Admission control for bookings, so a rush on a popular flight can't tie
+ * up every connection. A booking passes three gates:
+ *
+ *  - flights known to be sold out are answered NO_SEATS without a query,
+ *    until a booking is cancelled or changed, a route changes or a few
+ *    seconds have passed (other processes may free seats too);
+ *  - a global token bucket limits the rate of bookings that reach the
+ *    database;
+ *  - a fair semaphore per flight and date limits how many bookings for it
+ *    run at once, since they all queue on the same seat lock anyway.
+ *
+ * A booking that would wait longer than maxWait for the bucket or its
+ * flight is shed with BUSY right away instead of queueing.
+ */
+
+public class AdmissionControl {
+    /**
+     * The booking run once it is admitted.
+     */
+    public interface Booking {
+	AirBooking.Outcome run() throws SQLException;
+    }
+
+    private static class Flight {
+	final Semaphore running;
+	int users; // callers waiting for or holding a permit, changed in compute on the flight's key
+
+	Flight(int limit) {
+	    this.running = new Semaphore(limit, true);
+	}
+    }
+
+    private static class SoldOut {
+	final long bookingVersion;
+	final long flightVersion;
+	final long expires;
+
+	SoldOut(long bookingVersion, long flightVersion, long expires) {
+	    this.bookingVersion = bookingVersion;
+	    this.flightVersion = flightVersion;
+	    this.expires = expires;
+	}
+
+	boolean isCurrent(long now) {
+	    return now < this.expires && this.bookingVersion == AirBooking.tableVersion("Booking")
+		&& this.flightVersion == AirBooking.tableVersion("Flight");
+	}
+    }
+
+    // guarded by this, so the limits can be changed while bookings run
+    private double nanosPerToken;
+    private double burst;
+    private volatile long maxWait;
+    // the semaphores are made with it, so it only changes with a restart
+    private final int flightLimit;
+    // how long a flight stays known as sold out without any local write
+    private volatile long soldOutTtl = TimeUnit.SECONDS.toNanos(5);
+
+    // guarded by this, negative when tokens are promised to waiting callers
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    // one semaphore per flight and date being booked through this process
+    private final Map<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final Map<String, SoldOut> soldOut = new ConcurrentHashMap<String, SoldOut>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedByRate = new AtomicLong();
+    private final AtomicLong shedByFlight = new AtomicLong();
+    private final AtomicLong fastSoldOut = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param rate the bookings per second let through to the database
+     * @param burst the bookings let through at once after an idle period
+     * @param flightLimit the bookings of one flight and date run at once, fixed until a restart
+     * @param maxWait the longest a booking may queue, in milliseconds
+     */
+    public AdmissionControl(double rate, int burst, int flightLimit, long maxWait) {
+	this.tokens = burst;
+	this.flightLimit = flightLimit;
+	setLimits(rate, burst, maxWait);
+    }
+
+    /**
+     * Method to change the rate limit of a running admission control.
+     *
+     * @param rate the bookings per second let through to the database
+     * @param burst the bookings let through at once after an idle period
+     * @param maxWait the longest a booking may queue, in milliseconds
+     */
+    public synchronized void setLimits(double rate, int burst, long maxWait) {
+	this.nanosPerToken = 1e9 / rate;
+	this.burst = burst;
+	this.tokens = Math.min(this.tokens, burst);
+	this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * Method to set how long a flight found sold out is answered without a
+     * query when no write of this process could have freed a seat.
+     *
+     * @param ttl the time in milliseconds
+     */
+    public void setSoldOutTtl(long ttl) {
+	this.soldOutTtl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Method to run a booking if it is admitted.
+     *
+     * @param flightNum the flight to book
+     * @param departure the departure date
+     * @param booking the booking itself
+     * @return the outcome of the booking, NO_SEATS if the flight is known to
+     *         be sold out or BUSY if the booking was shed
+     * @throws java.sql.SQLException the exception thrown by the booking
+     */
+    public AirBooking.Outcome book(String flightNum, Date departure, Booking booking) throws SQLException {
+	String key = flightNum.trim() + " " + departure;
+	long start = System.nanoTime();
+	SoldOut known = this.soldOut.get(key);
+	if (known != null) {
+	    if (known.isCurrent(start)) {
+		this.fastSoldOut.incrementAndGet();
+		return AirBooking.Outcome.NO_SEATS;
+	    }
+	    this.soldOut.remove(key, known);
+	}
+
+	long wait = reserveToken(start);
+	if (wait < 0) {
+	    this.shedByRate.incrementAndGet();
+	    return AirBooking.Outcome.BUSY;
+	}
+	if (wait > 0) sleep(wait);
+
+	Flight flight = this.flights.compute(key, (k, f) -> {
+	    if (f == null) f = new Flight(this.flightLimit);
+	    ++f.users;
+	    return f;
+	});
+	try {
+	    return run(key, flight.running, start, booking);
+	} finally {
+	    // the last user drops the semaphore, so idle flights take no memory
+	    this.flights.computeIfPresent(key, (k, f) -> --f.users == 0 ? null : f);
+	}
+    }
+
+    private AirBooking.Outcome run(String key, Semaphore flight, long start, Booking booking) throws SQLException {
+	try {
+	    if (!flight.tryAcquire(this.maxWait - (System.nanoTime() - start), TimeUnit.NANOSECONDS)) {
+		this.shedByFlight.incrementAndGet();
+		return AirBooking.Outcome.BUSY;
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while waiting to book", e);
+	}
+	try {
+	    recordWait(System.nanoTime() - start);
+	    this.admitted.incrementAndGet();
+	    // versions from before the booking, so a seat freed while it ran isn't missed
+	    long bookingVersion = AirBooking.tableVersion("Booking");
+	    long flightVersion = AirBooking.tableVersion("Flight");
+	    AirBooking.Outcome outcome = booking.run();
+	    if (outcome == AirBooking.Outcome.NO_SEATS)
+		this.soldOut.put(key, new SoldOut(bookingVersion, flightVersion, System.nanoTime() + this.soldOutTtl));
+	    return outcome;
+	} finally {
+	    flight.release();
+	}
+    }
+
+    // Returns how long to wait for the reserved token, or -1 if that is longer than maxWait.
+    private synchronized long reserveToken(long now) {
+	this.tokens = Math.min(this.burst, this.tokens + (now - this.refilled) / this.nanosPerToken);
+	this.refilled = now;
+	long wait = this.tokens >= 1 ? 0 : (long) ((1 - this.tokens) * this.nanosPerToken);
+	if (wait > this.maxWait) return -1;
+	this.tokens -= 1;
+	return wait;
+    }
+
+    private static void sleep(long nanos) throws SQLException {
+	try {
+	    Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while waiting to book", e);
+	}
+    }
+
+    private void recordWait(long nanos) {
+	if (nanos < 1000000) return; // didn't queue
+	this.waited.incrementAndGet();
+	this.waitNanos.addAndGet(nanos);
+	long max;
+	while ((max = this.maxWaitNanos.get()) < nanos && !this.maxWaitNanos.compareAndSet(max, nanos));
+    }
+
+    /**
+     * Method to describe what admission control did.
+     *
+     * @return the admitted, shed and queued bookings
+     */
+    public String report() {
+	long waited = this.waited.get();
+	return String.format("Admission: %d admitted, %d answered sold out without a query, %d shed (%d by rate, %d by flight)%n" +
+			     "  %d queued, avg %.2f ms, max %.2f ms%n",
+			     this.admitted.get(), this.fastSoldOut.get(), this.shedByRate.get() + this.shedByFlight.get(),
+			     this.shedByRate.get(), this.shedByFlight.get(),
+			     waited, waited == 0 ? 0.0 : this.waitNanos.get() / 1e6 / waited, this.maxWaitNanos.get() / 1e6);
+    }
+}
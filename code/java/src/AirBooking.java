@@ -13,15 +13,36 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.sql.Date;
@@ -34,26 +55,204 @@ import java.util.Random;
  *
  */
 
-public class AirBooking{
-    //reference to physical database connection
-    private Connection _connection = null;
-    static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+public class AirBooking implements AirRepository {
+    // pool the connections of this session are borrowed from
+    private final ConnectionPool _pool;
+    // whether the pool was created for this session alone and is closed with it
+    private boolean _ownsPool = false;
+    // pIDs and rIDs leased from pIDseq and rIDseq, shared by the sessions of a pool
+    private IdAllocator _passengerIds;
+    private IdAllocator _ratingIds;
+
+    // input and output of this session
+    final BufferedReader in;
+    final PrintStream out;
 	
     public AirBooking(String dbname, String dbport, String user, String passwd) throws SQLException {
+	this(connect(dbname, dbport, user, passwd, 1), new BufferedReader(new InputStreamReader(System.in)), System.out);
+	this._ownsPool = true;
+    }
+
+    /**
+     * Creates a session that borrows its connections from a shared pool and
+     * talks to its user through the given reader and stream.
+     *
+     * @param pool the connection pool
+     * @param in the input of the session
+     * @param out the output of the session
+     */
+    public AirBooking(ConnectionPool pool, BufferedReader in, PrintStream out) {
+	this._pool = pool;
+	this.in = in;
+	this.out = out;
+	this._passengerIds = new IdAllocator(pool, "pIDseq", 100);
+	this._ratingIds = new IdAllocator(pool, "rIDseq", 1000);
+    }
+
+    /**
+     * Method to construct the connection URL of a database on this machine,
+     * or on a list of servers. With a list, connections are opened to the
+     * first server that accepts writes, so when the primary fails over to a
+     * standby the connections opened after it was promoted go to it.
+     *
+     * @param dbport the port of the database on this machine, or host:port[,host:port...]
+     */
+    public static String url(String dbname, String dbport) {
+	if (dbport.matches("[0-9]+"))
+	    return "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+	// hosts found read-only or down are tried again after hostRecheckSeconds
+	return "jdbc:postgresql://" + dbport + "/" + dbname + "?targetServerType=master&hostRecheckSeconds=2&connectTimeout=5";
+    }
+
+    /**
+     * Method to create the connection pool for a database on this machine.
+     * Exits the program if the database can't be reached.
+     *
+     * @param size the maximum number of physical connections
+     * @return the pool
+     */
+    public static ConnectionPool connect(String dbname, String dbport, String user, String passwd, int size) {
+	return connect(url(dbname, dbport), user, passwd, size);
+    }
+
+    /**
+     * Method to create the connection pool for a database given by its URL.
+     * Exits the program if the database can't be reached.
+     *
+     * @param url the JDBC URL, see Config.url
+     * @param size the maximum number of physical connections
+     * @return the pool
+     */
+    public static ConnectionPool connect(String url, String user, String passwd, int size) {
 	System.out.print("Connecting to database...");
+	ConnectionPool pool = null;
 	try{
-	    // constructs the connection URL
-	    String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 	    System.out.println ("Connection URL: " + url + "\n");
 			
-	    // obtain a physical connection
-	    this._connection = DriverManager.getConnection(url, user, passwd);
+	    // obtain the physical connections
+	    pool = new ConnectionPool(url, user, passwd, size);
 	    System.out.println("Done");
 	}catch(Exception e){
 	    System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	    System.out.println("Make sure you started postgres on this machine");
 	    System.exit(-1);
 	}
+	return pool;
+    }
+
+    /**
+     * Method to create the connection pool for a database on this machine
+     * while the program goes on starting up. Exits the program if the
+     * database can't be reached.
+     *
+     * @param size the maximum number of physical connections
+     * @return the pool, whose first connection may still be opening
+     */
+    public static ConnectionPool connectInBackground(String dbname, String dbport, String user, String passwd, int size) {
+	return connectInBackground(url(dbname, dbport), user, passwd, size);
+    }
+
+    /**
+     * Method to create the connection pool for a database given by its URL
+     * while the program goes on starting up. Exits the program if the
+     * database can't be reached.
+     *
+     * @param url the JDBC URL, see Config.url
+     * @param size the maximum number of physical connections
+     * @return the pool, whose first connection may still be opening
+     */
+    public static ConnectionPool connectInBackground(String url, String user, String passwd, int size) {
+	ConnectionPool pool = ConnectionPool.openInBackground(url, user, passwd, size);
+	pool.ready().whenComplete((ready, e) -> {
+	    if (e == null) return;
+	    System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+	    System.out.println("Make sure you started postgres on this machine");
+	    System.exit(-1);
+	});
+	return pool;
+    }
+
+    public ConnectionPool getPool() {
+	return this._pool;
+    }
+
+    /**
+     * Method to run work on a connection borrowed from the pool, in
+     * autocommit mode. If the connection breaks, e.g. because the database
+     * restarted, the work is run again on a new connection, so it must be
+     * safe to repeat: a query, or a write whose effect doesn't change when
+     * it is applied twice.
+     *
+     * @param body the work to run
+     * @return the value returned by the body
+     * @throws java.sql.SQLException the exception thrown by the body
+     */
+    public <T> T withConnection(Transaction<T> body) throws SQLException {
+	for (int attempt = 1; ; ++attempt) {
+	    Connection conn = this._pool.acquire();
+	    try {
+		T result = body.run(conn);
+		this._pool.release(conn);
+		return result;
+	    } catch (SQLException e) {
+		if (!isConnectionFailure(e)) {
+		    this._pool.release(conn);
+		    throw e;
+		}
+		this._pool.discard(conn);
+		if (attempt >= MAX_ATTEMPTS) throw e;
+	    } catch (RuntimeException e) {
+		this._pool.release(conn);
+		throw e;
+	    }
+	}
+    }
+
+    /**
+     * Method to run a read-only query on a replica that has replayed this
+     * session's last write, or on the primary if there is none. A replica
+     * that can't be reached is taken out of rotation and the query is run
+     * on the primary instead.
+     *
+     * @param body the work to run, must not write
+     * @return the value returned by the body
+     * @throws java.sql.SQLException the exception thrown by the body
+     */
+    public <T> T withReadConnection(Transaction<T> body) throws SQLException {
+	ConnectionPool replica = this._replicas == null ? null : this._replicas.pick(this._lastWriteLsn.get());
+	if (replica != null) {
+	    Connection conn = null;
+	    try {
+		conn = replica.acquire();
+		T result = body.run(conn);
+		replica.release(conn);
+		return result;
+	    } catch (SQLException e) {
+		if (!isConnectionFailure(e)) {
+		    if (conn != null) replica.release(conn);
+		    throw e;
+		}
+		if (conn != null) replica.discard(conn);
+		this._replicas.failed(replica);
+	    }
+	}
+	return withConnection(body);
+    }
+
+    // Called right after a commit on the primary.
+    private void sawWrite(Connection conn) {
+	long lsn;
+	try {
+	    lsn = ReplicaSet.parseLsn(query(conn, "SELECT pg_current_wal_lsn()").get(0).get(0));
+	} catch (SQLException e) {
+	    lsn = Long.MAX_VALUE; // unknown, so no replica is recent enough for this session
+	}
+	sawWrite(lsn);
+    }
+
+    private void sawWrite(long lsn) {
+	long last;
+	while ((last = this._lastWriteLsn.get()) < lsn && !this._lastWriteLsn.compareAndSet(last, lsn));
     }
 	
     /**
@@ -63,58 +262,68 @@ public class AirBooking{
      * @param sql the input SQL string
      * @throws java.sql.SQLException when update failed
      * */
-    public void executeUpdate (String sql) throws SQLException { 
-	// creates a statement object
-	Statement stmt = this._connection.createStatement ();
-
-	// issues the update instruction
-	stmt.executeUpdate (sql);
-
-	// close the instruction
-	stmt.close ();
+    public void executeUpdate (final String sql) throws SQLException { 
+	// not withConnection: an arbitrary update can't be run again safely
+	Connection conn = this._pool.acquire();
+	try {
+	    // creates a statement object
+	    Statement stmt = conn.createStatement ();
+
+	    // issues the update instruction
+	    stmt.executeUpdate (sql);
+
+	    // close the instruction
+	    stmt.close ();
+	} catch (SQLException e) {
+	    if (isConnectionFailure(e)) {
+		this._pool.discard(conn);
+		conn = null;
+	    }
+	    throw e;
+	} finally {
+	    if (conn != null) this._pool.release(conn);
+	}
     }//end executeUpdate
 
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and outputs the results to
-     * standard out.
+     * the output of the session.
      * 
      * @param query the input query string
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQueryAndPrintResult (String query) throws SQLException {
-	//creates a statement object
-	Statement stmt = this._connection.createStatement ();
-
-	//issues the query instruction
-	ResultSet rs = stmt.executeQuery (query);
-
-	/*
-	 *  obtains the metadata object for the returned result set.  The metadata
-	 *  contains row and column info.
-	 */
-	ResultSetMetaData rsmd = rs.getMetaData ();
-	int numCol = rsmd.getColumnCount ();
-	int rowCount = 0;
-		
-	//iterates through the result set and output them to standard out.
-	boolean outputHeader = true;
-	while (rs.next()){
-	    if(outputHeader){
-		for(int i = 1; i <= numCol; i++){
-		    System.out.print(rsmd.getColumnName(i) + "\t");
-		}
-		System.out.println();
-		outputHeader = false;
-	    }
-	    for (int i=1; i<=numCol; ++i)
-		System.out.print (rs.getString (i) + "\t");
-	    System.out.println ();
-	    ++rowCount;
-	}//end while
-	stmt.close ();
-	return rowCount;
+    public int executeQueryAndPrintResult (final String query) throws SQLException {
+	return withConnection(conn -> {
+	    //creates a statement object
+	    Statement stmt = conn.createStatement ();
+
+	    //issues the query instruction
+	    ResultSet rs = stmt.executeQuery (query);
+
+	    /*
+	     *  obtains the metadata object for the returned result set.  The metadata
+	     *  contains row and column info.
+	     */
+	    ResultSetMetaData rsmd = rs.getMetaData ();
+	    int numCol = rsmd.getColumnCount ();
+	    String[] columns = new String[numCol];
+	    for (int i = 1; i <= numCol; ++i)
+		columns[i - 1] = rsmd.getColumnName(i);
+
+	    //collects the result set, then prints it all at once in the session's format.
+	    List<List<String>> rows = new ArrayList<List<String>>();
+	    while (rs.next()){
+		List<String> row = new ArrayList<String>(numCol);
+		for (int i=1; i<=numCol; ++i)
+		    row.add(rs.getString (i));
+		rows.add(row);
+	    }//end while
+	    stmt.close ();
+	    if (!rows.isEmpty()) printListing(columns, null, rows);
+	    return rows.size();
+	});
     }
 	
     /**
@@ -126,32 +335,32 @@ public class AirBooking{
      * @return the query result as a list of records
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-	//creates a statement object 
-	Statement stmt = this._connection.createStatement (); 
+    public List<List<String>> executeQueryAndReturnResult (final String query) throws SQLException { 
+	return withConnection(conn -> {
+	    //creates a statement object 
+	    Statement stmt = conn.createStatement (); 
 		
-	//issues the query instruction 
-	ResultSet rs = stmt.executeQuery (query); 
+	    //issues the query instruction 
+	    ResultSet rs = stmt.executeQuery (query); 
 	 
-	/*
-	 * obtains the metadata object for the returned result set.  The metadata 
-	 * contains row and column info. 
-	 */ 
-	ResultSetMetaData rsmd = rs.getMetaData (); 
-	int numCol = rsmd.getColumnCount (); 
-	int rowCount = 0; 
+	    /*
+	     * obtains the metadata object for the returned result set.  The metadata 
+	     * contains row and column info. 
+	     */ 
+	    ResultSetMetaData rsmd = rs.getMetaData (); 
+	    int numCol = rsmd.getColumnCount (); 
 	 
-	//iterates through the result set and saves the data returned by the query. 
-	boolean outputHeader = false;
-	List<List<String>> result  = new ArrayList<List<String>>(); 
-	while (rs.next()){
-	    List<String> record = new ArrayList<String>(); 
-	    for (int i=1; i<=numCol; ++i) 
-		record.add(rs.getString (i)); 
-	    result.add(record); 
-	}//end while 
-	stmt.close (); 
-	return result; 
+	    //iterates through the result set and saves the data returned by the query. 
+	    List<List<String>> result  = new ArrayList<List<String>>(); 
+	    while (rs.next()){
+		List<String> record = new ArrayList<String>(); 
+		for (int i=1; i<=numCol; ++i) 
+		    record.add(rs.getString (i)); 
+		result.add(record); 
+	    }//end while 
+	    stmt.close (); 
+	    return result; 
+	});
     }//end executeQueryAndReturnResult
 	
     /**
@@ -162,51 +371,1339 @@ public class AirBooking{
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQuery (String query) throws SQLException {
-	//creates a statement object
-	Statement stmt = this._connection.createStatement ();
+    public int executeQuery (final String query) throws SQLException {
+	return withConnection(conn -> {
+	    //creates a statement object
+	    Statement stmt = conn.createStatement ();
+
+	    //issues the query instruction
+	    ResultSet rs = stmt.executeQuery (query);
+
+	    int rowCount = 0;
+
+	    //iterates through the result set and count nuber of results.
+	    if(rs.next()){
+		rowCount++;
+	    }//end while
+	    stmt.close ();
+	    return rowCount;
+	});
+    }
+	
+    /**
+     * Method to fetch the last value from sequence. This
+     * method issues the query to the DBMS and returns the current 
+     * value of sequence used for autogenerated keys
+     * 
+     * @param sequence name of the DB sequence
+     * @return current value of a sequence
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int getCurrSeqVal(final String sequence) throws SQLException {
+	return withConnection(conn -> {
+	    Statement stmt = conn.createStatement ();
+		
+	    ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+	    int value = rs.next() ? rs.getInt(1) : -1;
+	    stmt.close ();
+	    return value;
+	});
+    }
+
+    /**
+     * Body of a unit of work run by inTransaction. It may run more than once
+     * if the transaction has to be retried.
+     */
+    public interface Transaction<T> {
+	T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Outcome of a booking operation that did not fail with an SQL error.
+     */
+    public enum Outcome { OK, NOT_FOUND, NO_SEATS, DUPLICATE, CONFLICT, BUSY }
+
+    /**
+     * Durability class of a write. CRITICAL writes wait for their commit to
+     * be flushed to the WAL. RELAXED writes may be lost if the server crashes
+     * right after the commit (they are never corrupted) but don't wait for
+     * the flush, which is the main limit on write throughput.
+     */
+    public enum WriteClass { CRITICAL, RELAXED }
+
+    // version of each table, bumped by every write made through this process
+    private static final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+
+    // number of attempts for a transaction that fails with a serialization failure or deadlock, or loses its connection
+    private static final int MAX_ATTEMPTS = 5;
+
+    // SQLState of a transaction whose connection broke while it was committed (transaction_resolution_unknown)
+    static final String COMMIT_UNKNOWN = "08007";
+
+    // startup timeline, System.currentTimeMillis() of each step or 0 until it happened
+    private static volatile long firstQueryAt;
+    private static volatile long firstQueryNanos; // how long the first query took
+
+    // rows fetched per round trip by queries in a transaction, and seconds before a statement is cancelled; 0 for the driver's default
+    private static volatile int fetchSize = 0;
+    private static volatile int queryTimeout = 0;
+    private static volatile long warmedUpAt;
+
+    // the k the report cache is primed with by warmUp
+    private static final int WARM_UP_K = 10;
+
+    // most suggestions listed for a city or passenger typed in the menu
+    private static final int SUGGESTIONS = 5;
+
+    // classes loaded by --load-classes, for the class data sharing archive built by compile.sh
+    private static final String[] STARTUP_CLASSES = {
+	"org.postgresql.Driver", "org.postgresql.core.v3.ConnectionFactoryImpl", "org.postgresql.core.v3.QueryExecutorImpl",
+	"org.postgresql.jdbc.PgConnection", "org.postgresql.jdbc.PgPreparedStatement", "org.postgresql.jdbc.PgResultSet",
+	"ConnectionPool", "IdAllocator", "ReportCache", "AirBooking$Outcome", "AirBooking$WriteClass"
+    };
+
+    // isolation level used by inTransaction when none is given
+    private int _isolation = Connection.TRANSACTION_READ_COMMITTED;
+
+    // whether RELAXED writes actually skip the synchronous commit
+    private boolean _relaxedWrites = false;
+
+    // write-behind buffer for ratings, null to write each rating on its own
+    private RatingBuffer _ratingBuffer = null;
+
+    // replicas the reports run on, null to run them on the primary
+    private ReplicaSet _replicas = null;
+    // primary WAL position after this session's last write, replicas must have replayed it
+    private final AtomicLong _lastWriteLsn = new AtomicLong();
+
+    // cache for the popular destinations and highest rated routes, null to always query
+    private ReportCache _reportCache = null;
+
+    // gates bookings before they reach the database, null to admit all
+    private AdmissionControl _admission = null;
+
+    // in-memory free seat counts that turn away bookings of sold out flights, null to always ask the database
+    private SeatCounter _seatCounter = null;
+
+    // whether writes append their changes to the Outbox table for the change feed
+    private boolean _outbox = false;
+
+    // in-memory name search that suggests cities and passengers, null to take input as typed
+    private NameSearch _search = null;
+
+    // how listings are printed, and where to; null prints them to out with the menu
+    private TableRenderer.Format _outputFormat = TableRenderer.Format.TABLE;
+    private PrintStream _resultOut = null;
+
+    /**
+     * Method to enable or disable the relaxed durability of RELAXED writes.
+     * When disabled every write is as durable as a CRITICAL one.
+     *
+     * @param relaxedWrites true to commit RELAXED writes asynchronously
+     */
+    public void setRelaxedWrites(boolean relaxedWrites) {
+	this._relaxedWrites = relaxedWrites;
+    }
+
+    /**
+     * Method to route ratings submitted with submitRating through a
+     * write-behind buffer.
+     *
+     * @param ratingBuffer the buffer, or null to write each rating on its own
+     */
+    public void setRatingBuffer(RatingBuffer ratingBuffer) {
+	this._ratingBuffer = ratingBuffer;
+    }
+
+    /**
+     * Method to run the read-only reports on replicas. Writes and every
+     * other read stay on the primary.
+     *
+     * @param replicas the replicas, or null to run everything on the primary
+     */
+    public void setReplicas(ReplicaSet replicas) {
+	this._replicas = replicas;
+    }
+
+    public ReplicaSet getReplicas() {
+	return this._replicas;
+    }
+
+    /**
+     * Method to cache the results of the popular destinations and highest
+     * rated routes reports.
+     *
+     * @param reportCache the cache, or null to always query
+     */
+    public void setReportCache(ReportCache reportCache) {
+	this._reportCache = reportCache;
+    }
+
+    public ReportCache getReportCache() {
+	return this._reportCache;
+    }
+
+    /**
+     * Method to put bookings through admission control.
+     *
+     * @param admission the admission control, or null to admit every booking
+     */
+    public void setAdmission(AdmissionControl admission) {
+	this._admission = admission;
+    }
+
+    public AdmissionControl getAdmission() {
+	return this._admission;
+    }
+
+    /**
+     * Method to check bookings against in-memory seat counters first.
+     *
+     * @param seatCounter the counters, or null to always ask the database
+     */
+    public void setSeatCounter(SeatCounter seatCounter) {
+	this._seatCounter = seatCounter;
+    }
+
+    public SeatCounter getSeatCounter() {
+	return this._seatCounter;
+    }
+
+    /**
+     * Method to make bookings, cancellations, booking changes, ratings and
+     * route changes append to the Outbox table in their transaction, for
+     * ChangeFeed.
+     */
+    public void setOutbox(boolean outbox) {
+	this._outbox = outbox;
+    }
+
+    public boolean hasOutbox() {
+	return this._outbox;
+    }
+
+    /**
+     * Method to complete and correct the cities and passengers typed in the
+     * menu with an in-memory index of their names.
+     *
+     * @param search the index, or null to take the input as typed
+     */
+    public void setSearch(NameSearch search) {
+	this._search = search;
+    }
+
+    public NameSearch getSearch() {
+	return this._search;
+    }
+
+    /**
+     * Method to choose how the listings (options 5-9) are printed.
+     *
+     * @param format an aligned table, CSV or JSON lines
+     * @param resultOut the stream the listings go to, or null for the session's output
+     */
+    public void setOutput(TableRenderer.Format format, PrintStream resultOut) {
+	this._outputFormat = format;
+	this._resultOut = resultOut;
+    }
+
+    /**
+     * Method to print a listing in the session's output format.
+     *
+     * @param columns the column names
+     * @param widths the column widths of the table format, null to fit the values
+     * @param rows the rows
+     */
+    void printListing(String[] columns, int[] widths, List<List<String>> rows) {
+	new TableRenderer(this._outputFormat, columns, widths).print(this._resultOut == null ? this.out : this._resultOut, rows);
+    }
+
+    /**
+     * Method to set the isolation level used by inTransaction when none is given.
+     *
+     * @param isolation one of the Connection.TRANSACTION_* levels
+     */
+    public void setDefaultIsolation(int isolation) {
+	this._isolation = isolation;
+    }
+
+    /**
+     * Method to run a unit of work in a single transaction at the default
+     * isolation level.
+     *
+     * @param body the unit of work
+     * @return the value returned by the body
+     * @throws java.sql.SQLException when the body failed and could not be retried
+     */
+    public <T> T inTransaction(Transaction<T> body) throws SQLException {
+	return inTransaction(this._isolation, WriteClass.CRITICAL, body);
+    }
+
+    /**
+     * Method to run a unit of work of the given durability class in a single
+     * transaction at the default isolation level.
+     *
+     * @param writeClass the durability the writes of the body need
+     * @param body the unit of work
+     * @return the value returned by the body
+     * @throws java.sql.SQLException when the body failed and could not be retried
+     */
+    public <T> T inTransaction(WriteClass writeClass, Transaction<T> body) throws SQLException {
+	return inTransaction(this._isolation, writeClass, body);
+    }
+
+    /**
+     * Method to run a unit of work in a single transaction. The transaction
+     * is committed once the body returns and rolled back if it throws.
+     * Serialization failures (40001) and deadlocks (40P01) are retried with a
+     * randomized backoff, so the body must not have side effects outside the
+     * database. A transaction whose connection broke before it was committed
+     * was rolled back by the server, and is retried on a new connection.
+     * If the connection broke while the commit was under way, whether the
+     * transaction committed is unknown and it is not retried; see write.
+     *
+     * @param isolation one of the Connection.TRANSACTION_* levels
+     * @param writeClass the durability the writes of the body need
+     * @param body the unit of work
+     * @return the value returned by the body
+     * @throws java.sql.SQLException when the body failed and could not be retried,
+     *         with SQLState COMMIT_UNKNOWN when the connection broke during the commit
+     */
+    public <T> T inTransaction(int isolation, WriteClass writeClass, Transaction<T> body) throws SQLException {
+	for (int attempt = 1; ; ++attempt) {
+	    // pooled connections are always left at READ COMMITTED, so the common
+	    // case needs no round trip to read or change the isolation level
+	    Connection conn = this._pool.acquire();
+	    boolean broken = false;
+	    boolean committing = false;
+	    boolean committed = false;
+	    try {
+		if (isolation != Connection.TRANSACTION_READ_COMMITTED)
+		    conn.setTransactionIsolation(isolation);
+		conn.setAutoCommit(false);
+		if (writeClass == WriteClass.RELAXED && this._relaxedWrites)
+		    update(conn, "SET LOCAL synchronous_commit = off");
+		T result = body.run(conn);
+		committing = true;
+		conn.commit();
+		committing = false;
+		committed = true;
+		if (this._replicas != null) sawWrite(conn);
+		return result;
+	    } catch (SQLException e) {
+		if (isConnectionFailure(e)) {
+		    broken = true;
+		    if (committing)
+			throw new SQLException("The connection broke while the transaction was committed, it may not have been",
+					       COMMIT_UNKNOWN, e);
+		    if (attempt >= MAX_ATTEMPTS) throw e;
+		    continue;
+		}
+		try {
+		    conn.rollback();
+		} catch (SQLException re) {
+		    // the body's error is the one to report, and the connection
+		    // is in an unknown state
+		    e.addSuppressed(re);
+		    broken = true;
+		    throw e;
+		}
+		if (attempt >= MAX_ATTEMPTS || !isRetryable(e)) throw e;
+		try {
+		    Thread.sleep(new Random().nextInt(10 << attempt));
+		} catch (InterruptedException ie) {
+		    Thread.currentThread().interrupt();
+		    throw e;
+		}
+	    } finally {
+		if (broken) {
+		    this._pool.discard(conn);
+		} else {
+		    try {
+			// whatever the body threw, turning autocommit back on
+			// would commit the open transaction, so end it first
+			if (!committed) conn.rollback();
+			conn.setAutoCommit(true);
+			if (isolation != Connection.TRANSACTION_READ_COMMITTED)
+			    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			this._pool.release(conn);
+		    } catch (SQLException e) {
+			this._pool.discard(conn);
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Method to run a write in a single transaction, and to find out whether
+     * it committed if its connection broke during the commit. The check runs
+     * on a new connection and looks for the write by a key the caller chose
+     * before the first attempt, e.g. the bookRef of a new booking, so a
+     * write that went through is never applied twice and one that didn't is
+     * run again.
+     *
+     * @param writeClass the durability the writes of the body need
+     * @param body the write
+     * @param committed a query that returns the result of the write if it is in the database, null otherwise
+     * @return the value returned by the body, or by the check
+     * @throws java.sql.SQLException when the write failed and could not be retried
+     */
+    <T> T write(WriteClass writeClass, Transaction<T> body, Transaction<T> committed) throws SQLException {
+	for (int attempt = 1; ; ++attempt) {
+	    try {
+		return inTransaction(writeClass, body);
+	    } catch (SQLException e) {
+		if (!COMMIT_UNKNOWN.equals(e.getSQLState()) || attempt >= MAX_ATTEMPTS) throw e;
+		T result = withConnection(committed);
+		if (result != null) return result;
+	    }
+	}
+    }
+
+    /**
+     * Method to run part of a transaction under a savepoint. If the body
+     * throws, only its own changes are rolled back and the surrounding
+     * transaction stays usable.
+     *
+     * @param conn a connection with an open transaction
+     * @param body the work to run under the savepoint
+     * @return the value returned by the body
+     * @throws java.sql.SQLException the exception thrown by the body
+     */
+    public static <T> T inSavepoint(Connection conn, Transaction<T> body) throws SQLException {
+	Savepoint savepoint = conn.setSavepoint();
+	try {
+	    T result = body.run(conn);
+	    conn.releaseSavepoint(savepoint);
+	    return result;
+	} catch (SQLException e) {
+	    conn.rollback(savepoint);
+	    throw e;
+	}
+    }
+
+    /**
+     * Method to record that a table was written to, so results computed from
+     * it can be recognized as stale.
+     *
+     * @param table the table name
+     */
+    public static void tableChanged(String table) {
+	tableVersion0(table).incrementAndGet();
+    }
+
+    /**
+     * Method to record that any table may have been written to, e.g. while
+     * notifications of other processes' writes couldn't be received.
+     */
+    public static void allTablesChanged() {
+	for (AtomicLong version : tableVersions.values())
+	    version.incrementAndGet();
+    }
+
+    /**
+     * Method to get the current version of a table. Table names are not
+     * case sensitive.
+     *
+     * @param table the table name
+     * @return a counter that grows whenever the table is written to
+     */
+    public static long tableVersion(String table) {
+	return tableVersion0(table).get();
+    }
+
+    private static AtomicLong tableVersion0(String table) {
+	table = table.toLowerCase();
+	AtomicLong version = tableVersions.get(table);
+	if (version == null) {
+	    tableVersions.putIfAbsent(table, new AtomicLong());
+	    version = tableVersions.get(table);
+	}
+	return version;
+    }
+
+    private static boolean isRetryable(SQLException e) {
+	return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+    }
+
+    static boolean isUniqueViolation(SQLException e) {
+	return "23505".equals(e.getSQLState());
+    }
+
+    // Connection exceptions, and the server shutting down or still starting up (57P01-57P03).
+    static boolean isConnectionFailure(SQLException e) {
+	String state = e.getSQLState();
+	return state != null && (state.startsWith("08") || state.equals("57P01") || state.equals("57P02") || state.equals("57P03"));
+    }
+
+    /**
+     * Method to execute a parameterized update SQL statement on the given
+     * connection.
+     *
+     * @param conn the connection to use
+     * @param sql the SQL string with ? placeholders
+     * @param params the values bound to the placeholders
+     * @return the number of rows affected
+     * @throws java.sql.SQLException when update failed
+     */
+    static int update(Connection conn, String sql, Object... params) throws SQLException {
+	long start = System.nanoTime();
+	PreparedStatement stmt = conn.prepareStatement(sql);
+	try {
+	    if (queryTimeout > 0) stmt.setQueryTimeout(queryTimeout);
+	    for (int i = 0; i < params.length; ++i)
+		stmt.setObject(i + 1, params[i]);
+	    int rows = stmt.executeUpdate();
+	    if (firstQueryAt == 0) firstQuery(start);
+	    return rows;
+	} finally {
+	    stmt.close();
+	}
+    }
+
+    /**
+     * Method to execute a parameterized query on the given connection and
+     * return the results as a list of records. Values are trimmed of the
+     * padding added by CHAR columns.
+     *
+     * @param conn the connection to use
+     * @param sql the SQL string with ? placeholders
+     * @param params the values bound to the placeholders
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    static List<List<String>> query(Connection conn, String sql, Object... params) throws SQLException {
+	long start = System.nanoTime();
+	PreparedStatement stmt = conn.prepareStatement(sql);
+	try {
+	    if (fetchSize > 0) stmt.setFetchSize(fetchSize);
+	    if (queryTimeout > 0) stmt.setQueryTimeout(queryTimeout);
+	    for (int i = 0; i < params.length; ++i)
+		stmt.setObject(i + 1, params[i]);
+	    ResultSet rs = stmt.executeQuery();
+	    int numCol = rs.getMetaData().getColumnCount();
+	    List<List<String>> result = new ArrayList<List<String>>();
+	    while (rs.next()) {
+		List<String> record = new ArrayList<String>();
+		for (int i = 1; i <= numCol; ++i) {
+		    String value = rs.getString(i);
+		    record.add(value == null ? null : value.trim());
+		}
+		result.add(record);
+	    }
+	    if (firstQueryAt == 0) firstQuery(start);
+	    return result;
+	} finally {
+	    stmt.close();
+	}
+    }
+
+    /**
+     * Method to apply the settings that can be changed while the program
+     * runs (see Config.RELOADABLE) to a session's pool and components.
+     *
+     * @param esql the session
+     * @param options the settings
+     */
+    static void applyTunables(AirBooking esql, Map<String, String> options) {
+	fetchSize = Integer.parseInt(options.getOrDefault("fetch-size", "0"));
+	queryTimeout = Integer.parseInt(options.getOrDefault("query-timeout-s", "0"));
+	esql.getPool().setReconnectTimeout(Long.parseLong(options.getOrDefault("reconnect-ms", "30000")));
+	if (esql.getReportCache() != null)
+	    esql.getReportCache().setTtl(Long.parseLong(options.getOrDefault("report-cache-ttl-ms", "0")));
+	AdmissionControl admission = esql.getAdmission();
+	if (admission != null) {
+	    admission.setSoldOutTtl(Long.parseLong(options.getOrDefault("sold-out-ttl-ms", "5000")));
+	    if (options.containsKey("admission")) {
+		double rate = Double.parseDouble(options.get("admission"));
+		admission.setLimits(rate, Math.max(1, (int) (rate / 10)), Long.parseLong(options.getOrDefault("max-wait-ms", "200")));
+	    }
+	}
+    }
+
+    // Records the first query that isn't part of the warm-up.
+    private static void firstQuery(long start) {
+	if (Thread.currentThread().getName().startsWith("warm-up")) return;
+	firstQueryNanos = System.nanoTime() - start;
+	firstQueryAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to generate a random booking reference.
+     *
+     * @return a 10 character booking reference
+     */
+    public static String newBookRef() {
+	String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+	StringBuilder randstring = new StringBuilder();
+	Random rnd = new Random();
+	while (randstring.length() < 10) { // length of the random string.
+	    int index = (int) (rnd.nextFloat() * CHARS.length());
+	    randstring.append(CHARS.charAt(index));
+	}
+	return randstring.toString();
+    }
+
+    /**
+     * Method to add a passenger. The pID is taken from the leased block, so
+     * it's known without asking the database for currval.
+     *
+     * @return the pID of the new passenger or null if the passport number is already in use
+     * @throws java.sql.SQLException when failed to execute the insert
+     */
+    public Integer addPassenger(final String passNum, final String fullName, final Date bdate, final String country) throws SQLException {
+	final int pID = this._passengerIds.next();
+	try {
+	    write(WriteClass.CRITICAL,
+		  conn -> update(conn, "INSERT INTO Passenger (pID, passNum, fullName, bdate, country) VALUES (?, ?, ?, ?, ?)",
+				 pID, passNum, fullName, bdate, country),
+		  conn -> query(conn, "SELECT 1 FROM Passenger WHERE pID = ?", pID).isEmpty() ? null : 1);
+	    tableChanged("Passenger");
+	    return pID;
+	} catch (SQLException e) {
+	    if (isUniqueViolation(e)) return null;
+	    throw e;
+	}
+    }
+
+    /**
+     * Method to book a seat for a passenger. The seat is claimed and the
+     * booking inserted in one transaction. The bookRef makes the booking
+     * safe to retry: if the connection breaks during the commit, the
+     * booking is only made again if no booking has that reference.
+     *
+     * @param bookRef the reference of the new booking
+     * @return OK, NOT_FOUND, NO_SEATS, DUPLICATE if the passenger already booked
+     *         the flight at that date, CONFLICT if the reference is taken, or
+     *         BUSY if admission control shed the booking
+     * @throws java.sql.SQLException when failed to execute the booking
+     */
+    public Outcome bookFlight(final String bookRef, final int pID, final String flightNum, final Date departure) throws SQLException {
+	if (this._seatCounter != null)
+	    return this._seatCounter.book(flightNum, departure, () -> admitAndBook(bookRef, pID, flightNum, departure));
+	return admitAndBook(bookRef, pID, flightNum, departure);
+    }
+
+    private Outcome admitAndBook(final String bookRef, final int pID, final String flightNum, final Date departure) throws SQLException {
+	if (this._admission != null)
+	    return this._admission.book(flightNum, departure, () -> claimAndBook(bookRef, pID, flightNum, departure));
+	return claimAndBook(bookRef, pID, flightNum, departure);
+    }
+
+    private Outcome claimAndBook(final String bookRef, final int pID, final String flightNum, final Date departure) throws SQLException {
+	return write(WriteClass.CRITICAL, conn -> {
+	    Outcome outcome = claimSeat(conn, flightNum, departure);
+	    if (outcome != Outcome.OK) return outcome;
+	    try {
+		inSavepoint(conn, c -> update(c, "INSERT INTO Booking (bookRef, departure, flightNum, pID) VALUES (?, ?, ?, ?)",
+					      bookRef, departure, flightNum, pID));
+		if (this._outbox)
+		    ChangeFeed.append(conn, "booked", bookRef, ChangeFeed.json("bookRef", bookRef, "departure", departure,
+									      "flightNum", flightNum, "pID", pID));
+		return Outcome.OK;
+	    } catch (SQLException e) {
+		if (!isUniqueViolation(e)) throw e;
+		// either the passenger already holds this flight and date or the reference is taken
+		return query(conn, "SELECT 1 FROM Booking WHERE departure = ? AND flightNum = ? AND pID = ?",
+			     departure, flightNum, pID).isEmpty() ? Outcome.CONFLICT : Outcome.DUPLICATE;
+	    }
+	}, conn -> query(conn, "SELECT 1 FROM Booking WHERE bookRef = ? AND pID = ?", bookRef, pID).isEmpty() ? null : Outcome.OK);
+    }
+
+    /**
+     * Method to add a passenger's rating of a flight. Ratings are RELAXED
+     * writes.
+     *
+     * @return the rID of the new rating
+     * @throws java.sql.SQLException when failed to execute the insert,
+     *         with SQLState 23505 when the passenger already rated the flight
+     */
+    public int addRating(final int pID, final String flightNum, final int score, final String comment) throws SQLException {
+	final int rID = this._ratingIds.next();
+	write(WriteClass.RELAXED, conn -> {
+	    if (!lockRatings(conn, Collections.singletonList(pID), Collections.singletonList(flightNum)).isEmpty())
+		throw alreadyRated(pID, flightNum);
+	    update(conn, "INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES (?, ?, ?, ?, ?)",
+		   rID, pID, flightNum, score, comment);
+	    if (this._outbox)
+		ChangeFeed.append(conn, "rated", String.valueOf(rID), ratingJson(rID, pID, flightNum, score, comment));
+	    return rID;
+	}, conn -> query(conn, "SELECT 1 FROM Ratings WHERE rID = ?", rID).isEmpty() ? null : rID);
+	tableChanged("Ratings");
+	return rID;
+    }
+
+    /**
+     * Method to take the next rID, for writers that insert ratings themselves.
+     *
+     * @throws java.sql.SQLException when a new block of rIDs can't be leased
+     */
+    int nextRatingId() throws SQLException {
+	return this._ratingIds.next();
+    }
+
+    /**
+     * Method to lock the ratings of some (pID, flightNum) pairs inside the
+     * caller's transaction, so checking for an earlier rating and inserting
+     * one can't be raced. Ratings has no unique key on the pair, the seed data
+     * repeats some, so the one rating per flight rule is kept with a
+     * transaction-scoped advisory lock per pair. These two-key locks never
+     * share a key with the seat locks of claimSeat, and they are taken in one
+     * order, so writers of several ratings can't deadlock.
+     *
+     * @param conn a connection with an open transaction
+     * @param pIDs the passengers
+     * @param flightNums the flights, one per passenger
+     * @return "pID|flightNum" of the pairs that are already rated
+     * @throws java.sql.SQLException when failed to execute the queries
+     */
+    static Set<String> lockRatings(Connection conn, List<Integer> pIDs, List<String> flightNums) throws SQLException {
+	Map<String, Integer> pairs = new TreeMap<String, Integer>();
+	for (int i = 0; i < pIDs.size(); ++i)
+	    pairs.put(pIDs.get(i) + "|" + flightNums.get(i).trim(), i);
+	StringBuilder lock = new StringBuilder("SELECT ");
+	StringBuilder rated = new StringBuilder("SELECT pID, flightNum FROM Ratings WHERE (pID, flightNum) IN (");
+	List<Object> lockParams = new ArrayList<Object>();
+	List<Object> ratedParams = new ArrayList<Object>();
+	for (int i : pairs.values()) {
+	    String separator = lockParams.isEmpty() ? "" : ", ";
+	    lock.append(separator).append("pg_advisory_xact_lock(?, ?)");
+	    rated.append(separator).append("(?, ?)");
+	    lockParams.add(flightNums.get(i).trim().hashCode());
+	    lockParams.add(pIDs.get(i));
+	    ratedParams.add(pIDs.get(i));
+	    ratedParams.add(flightNums.get(i));
+	}
+	query(conn, lock.toString(), lockParams.toArray());
+	Set<String> found = new HashSet<String>();
+	for (List<String> row : query(conn, rated.append(")").toString(), ratedParams.toArray()))
+	    found.add(row.get(0) + "|" + row.get(1));
+	return found;
+    }
+
+    static SQLException alreadyRated(int pID, String flightNum) {
+	return new SQLException(String.format("Passenger %d already rated flight %s", pID, flightNum.trim()), "23505");
+    }
+
+    static String ratingJson(int rID, int pID, String flightNum, int score, String comment) {
+	return ChangeFeed.json("rID", rID, "pID", pID, "flightNum", flightNum, "score", score, "comment", comment);
+    }
+
+    static String routeJson(int airId, String flightNum, String origin, String destination, String plane, int seats, int duration) {
+	return ChangeFeed.json("airId", airId, "flightNum", flightNum, "origin", origin, "destination", destination,
+			       "plane", plane, "seats", seats, "duration", duration);
+    }
+
+    /**
+     * Method to add a passenger's rating of a flight through the rating
+     * buffer if one is set, so it's committed together with other ratings.
+     * Without a buffer the rating is written right away with addRating.
+     *
+     * @return a future completed with the rID once the rating is committed
+     */
+    public CompletableFuture<Integer> submitRating(int pID, String flightNum, int score, String comment) {
+	if (this._ratingBuffer != null) {
+	    // the buffer commits with its own session, take over its WAL position
+	    final AirBooking writer = this._ratingBuffer.writer();
+	    return this._ratingBuffer.submit(pID, flightNum, score, comment).thenApply(rID -> {
+		sawWrite(writer._lastWriteLsn.get());
+		return rID;
+	    });
+	}
+	return AirRepository.super.submitRating(pID, flightNum, score, comment);
+    }
+
+    /**
+     * Method to insert a new route.
+     *
+     * @return OK or DUPLICATE if the flight number already exists
+     * @throws java.sql.SQLException when failed to execute the insert
+     */
+    public Outcome insertRoute(final int airId, final String flightNum, final String origin, final String destination,
+			       final String plane, final int seats, final int duration) throws SQLException {
+	try {
+	    write(WriteClass.CRITICAL, conn -> {
+		update(conn, "INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) " +
+		       "VALUES (?, ?, ?, ?, ?, ?, ?)", airId, flightNum, origin, destination, plane, seats, duration);
+		if (this._outbox)
+		    ChangeFeed.append(conn, "route added", flightNum, routeJson(airId, flightNum, origin, destination, plane, seats, duration));
+		return 1;
+	    }, conn -> findRoute(conn, airId, flightNum, origin, destination, plane, seats, duration));
+	    tableChanged("Flight");
+	    return Outcome.OK;
+	} catch (SQLException e) {
+	    if (isUniqueViolation(e)) return Outcome.DUPLICATE;
+	    throw e;
+	}
+    }
+
+    /**
+     * Method to update an existing route.
+     *
+     * @return OK or NOT_FOUND if the flight number doesn't exist
+     * @throws java.sql.SQLException when failed to execute the update
+     */
+    public Outcome updateRoute(final int airId, final String flightNum, final String origin, final String destination,
+			       final String plane, final int seats, final int duration) throws SQLException {
+	int rows = write(WriteClass.CRITICAL, conn -> {
+	    int updated = update(conn, "UPDATE Flight SET airId = ?, origin = ?, destination = ?, plane = ?, " +
+				 "seats = ?, duration = ? WHERE flightNum = ?",
+				 airId, origin, destination, plane, seats, duration, flightNum);
+	    if (updated > 0 && this._outbox)
+		ChangeFeed.append(conn, "route updated", flightNum, routeJson(airId, flightNum, origin, destination, plane, seats, duration));
+	    return updated;
+	}, conn -> findRoute(conn, airId, flightNum, origin, destination, plane, seats, duration));
+	if (rows == 0) return Outcome.NOT_FOUND;
+	tableChanged("Flight");
+	return Outcome.OK;
+    }
+
+    // Returns 1 if the flight has exactly these values, null otherwise.
+    private static Integer findRoute(Connection conn, int airId, String flightNum, String origin, String destination,
+				     String plane, int seats, int duration) throws SQLException {
+	return query(conn, "SELECT 1 FROM Flight WHERE flightNum = ? AND airId = ? AND origin = ? AND destination = ? " +
+		     "AND plane = ? AND seats = ? AND duration = ?",
+		     flightNum, airId, origin, destination, plane, seats, duration).isEmpty() ? null : 1;
+    }
+
+    /**
+     * Method to apply an airline schedule file to the Flight table. Each
+     * line has the flights.csv format
+     * (airId,flightNum,origin,destination,plane,seats,duration). Routes are
+     * upserted in batches of one multi-row INSERT ... ON CONFLICT each, and
+     * a route that already has exactly these values is not rewritten. A line
+     * for a flight that a later line of the same batch sets again is
+     * superseded by it. Invalid lines and lines of an unknown airline are
+     * reported and skipped.
+     *
+     * @param csv the schedule
+     * @param batchSize the number of lines applied per statement and transaction
+     * @return { inserted, updated, unchanged, superseded, skipped } line counts
+     * @throws java.sql.SQLException when a batch failed, earlier batches stay applied
+     * @throws java.io.IOException when the schedule can't be read
+     */
+    public int[] syncSchedule(BufferedReader csv, int batchSize) throws SQLException, IOException {
+	int[] counts = new int[5];
+	// routes of the current batch by flight number, a later line for the same flight replaces the earlier one
+	Map<String, Object[]> batch = new LinkedHashMap<String, Object[]>();
+	Map<String, Integer> lineNums = new HashMap<String, Integer>();
+	int batchLines = 0;
+	int lineNum = 0;
+	String line;
+	while ((line = csv.readLine()) != null) {
+	    ++lineNum;
+	    if (line.trim().isEmpty()) continue;
+	    String[] fields = line.split(",", -1);
+	    try {
+		if (fields.length != 7) throw new IllegalArgumentException("expected 7 fields");
+		Object[] route = { Integer.valueOf(fields[0].trim()), fields[1].trim(), fields[2].trim(), fields[3].trim(),
+				   fields[4].trim(), Integer.valueOf(fields[5].trim()), Integer.valueOf(fields[6].trim()) };
+		if (batch.put((String) route[1], route) != null) ++counts[3];
+		lineNums.put((String) route[1], lineNum);
+		++batchLines;
+	    } catch (IllegalArgumentException e) {
+		System.err.println(String.format("line %d skipped: %s", lineNum, e.getMessage()));
+		++counts[4];
+		continue;
+	    }
+	    if (batchLines == batchSize) {
+		applyScheduleBatch(batch, lineNums, counts);
+		batch.clear();
+		lineNums.clear();
+		batchLines = 0;
+	    }
+	}
+	if (batchLines > 0)
+	    applyScheduleBatch(batch, lineNums, counts);
+	return counts;
+    }
+
+    private void applyScheduleBatch(final Map<String, Object[]> batch, Map<String, Integer> lineNums, int[] counts) throws SQLException {
+	// flight numbers of the routes whose airline doesn't exist
+	final List<String> unknown = new ArrayList<String>();
+
+	// rows that already had these values are neither inserted nor updated, so they are not returned
+	List<List<String>> written = inTransaction(conn -> {
+	    unknown.clear();
+	    // one unknown airId would fail the whole statement on the foreign key, so those routes are
+	    // left out; the airlines that exist are locked against being deleted until the upsert is done
+	    List<Object> airIds = new ArrayList<Object>();
+	    for (Object[] route : batch.values())
+		if (!airIds.contains(route[0])) airIds.add(route[0]);
+	    Set<String> known = new HashSet<String>();
+	    for (List<String> row : query(conn, "SELECT airId FROM Airline WHERE airId IN (" +
+					  String.join(", ", Collections.nCopies(airIds.size(), "?")) + ") FOR KEY SHARE", airIds.toArray()))
+		known.add(row.get(0));
+
+	    StringBuilder sql = new StringBuilder("INSERT INTO Flight AS F (airId, flightNum, origin, destination, plane, seats, duration) VALUES ");
+	    List<Object> params = new ArrayList<Object>();
+	    for (Object[] route : batch.values()) {
+		if (!known.contains(route[0].toString())) {
+		    unknown.add((String) route[1]);
+		    continue;
+		}
+		sql.append(params.isEmpty() ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?)");
+		params.addAll(Arrays.asList(route));
+	    }
+	    if (params.isEmpty()) return new ArrayList<List<String>>();
+	    sql.append(" ON CONFLICT (flightNum) DO UPDATE SET airId = EXCLUDED.airId, origin = EXCLUDED.origin, " +
+		       "destination = EXCLUDED.destination, plane = EXCLUDED.plane, seats = EXCLUDED.seats, duration = EXCLUDED.duration " +
+		       "WHERE (F.airId, F.origin, F.destination, F.plane, F.seats, F.duration) IS DISTINCT FROM " +
+		       "(EXCLUDED.airId, EXCLUDED.origin, EXCLUDED.destination, EXCLUDED.plane, EXCLUDED.seats, EXCLUDED.duration) " +
+		       "RETURNING (F.xmax = 0), F.flightNum"); // no xmax means the row was inserted rather than updated
+
+	    List<List<String>> rows = query(conn, sql.toString(), params.toArray());
+	    if (this._outbox) {
+		List<String[]> changes = new ArrayList<String[]>();
+		for (List<String> row : rows) {
+		    Object[] r = batch.get(row.get(1));
+		    changes.add(new String[] { row.get(0).equals("t") ? "route added" : "route updated", row.get(1),
+					       routeJson((Integer) r[0], (String) r[1], (String) r[2], (String) r[3], (String) r[4],
+							 (Integer) r[5], (Integer) r[6]) });
+		}
+		ChangeFeed.append(conn, changes);
+	    }
+	    return rows;
+	});
+	for (String flightNum : unknown)
+	    System.err.println(String.format("line %d skipped: unknown airline %s", lineNums.get(flightNum), batch.get(flightNum)[0]));
+	int inserted = 0;
+	for (List<String> row : written)
+	    if (row.get(0).equals("t")) ++inserted;
+	counts[0] += inserted;
+	counts[1] += written.size() - inserted;
+	counts[2] += batch.size() - unknown.size() - written.size();
+	counts[4] += unknown.size();
+	if (!written.isEmpty())
+	    tableChanged("Flight"); // once per batch, not per route
+    }
+
+    /**
+     * Method to look up a passenger by passport number.
+     *
+     * @param passNum the passport number
+     * @return the passenger's pID or null if there is no such passenger
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public Integer findPassengerId(String passNum) throws SQLException {
+	List<List<String>> result = withConnection(conn -> query(conn, "SELECT pID FROM Passenger WHERE passNum = ?", passNum));
+	return result.isEmpty() ? null : Integer.valueOf(result.get(0).get(0));
+    }
+
+    /**
+     * Method to check in one round trip whether a passenger can rate a
+     * flight.
+     *
+     * @return { the flight exists, the passenger booked it, the passenger already rated it }
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public boolean[] reviewChecks(final int pID, final String flightNum) throws SQLException {
+	List<String> checks = withConnection(conn -> query(conn,
+	    "WITH K AS (SELECT CAST(? AS CHAR(8)) AS flightNum, CAST(? AS INTEGER) AS pID) " +
+	    "SELECT EXISTS (SELECT 1 FROM Flight F WHERE F.flightNum = K.flightNum), " +
+	    "EXISTS (SELECT 1 FROM Booking B WHERE B.flightNum = K.flightNum AND B.pID = K.pID), " +
+	    "EXISTS (SELECT 1 FROM Ratings R WHERE R.flightNum = K.flightNum AND R.pID = K.pID) " +
+	    "FROM K", flightNum, pID)).get(0);
+	return new boolean[] { checks.get(0).equals("t"), checks.get(1).equals("t"), checks.get(2).equals("t") };
+    }
 
-	//issues the query instruction
-	ResultSet rs = stmt.executeQuery (query);
+    /**
+     * Method to list the flights between two cities.
+     *
+     * @return records of (flightNum, origin, destination, plane, duration)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> listFlights(String origin, String destination) throws SQLException {
+	return withReadConnection(conn -> query(conn, "SELECT flightNum, origin, destination, plane, duration " +
+						      "FROM Flight WHERE origin = ? AND destination = ?", origin, destination));
+    }
+
+    /**
+     * Method to list the k destinations with the most flights to them.
+     *
+     * @return records of (destination, number of flights)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> popularDestinations(final int k) throws SQLException {
+	Transaction<List<List<String>>> report = conn -> query(conn, "SELECT F.destination, COUNT(*) FROM Flight F " +
+							       "GROUP BY F.destination ORDER BY COUNT(*) DESC LIMIT ?", k);
+	if (this._reportCache == null) return withReadConnection(report);
+	return this._reportCache.get("popular " + k, new String[] { "Flight" }, () -> withConnection(report));
+    }
+
+    /**
+     * Method to list the k routes with the highest average rating.
+     *
+     * @return records of (airline name, flightNum, origin, destination, plane, average score)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> highestRatedRoutes(final int k) throws SQLException {
+	Transaction<List<List<String>>> report = conn -> query(conn, "SELECT A.name, F.flightNum, F.origin, F.destination, F.plane, AVG(R.score) " +
+							       "FROM Flight F, Airline A, Ratings R " +
+							       "WHERE A.airId = F.airId AND F.flightNum = R.flightNum " +
+							       "GROUP BY A.name, F.flightNum, F.origin, F.destination, F.plane " +
+							       "ORDER BY AVG(R.score) DESC LIMIT ?", k);
+	if (this._reportCache == null) return withReadConnection(report);
+	return this._reportCache.get("rated " + k, new String[] { "Flight", "Airline", "Ratings" }, () -> withConnection(report));
+    }
+
+    /**
+     * Method to list the k shortest flights between two cities.
+     *
+     * @return records of (airline name, flightNum, origin, destination, plane, duration)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> flightsByDuration(String origin, String destination, int k) throws SQLException {
+	return withReadConnection(conn -> query(conn, "SELECT A.name, F.flightNum, F.origin, F.destination, F.plane, F.duration " +
+						      "FROM Flight F, Airline A " +
+						      "WHERE F.airId = A.airId AND F.origin = ? AND F.destination = ? " +
+						      "ORDER BY F.duration ASC LIMIT ?", origin, destination, k));
+    }
+
+    /**
+     * Method to count the booked and free seats of a flight on a given date.
+     *
+     * @return the record (flightNum, origin, destination, departure, booked, seats, free)
+     *         or null if the flight doesn't exist
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<String> seatAvailability(String flightNum, Date departure) throws SQLException {
+	List<List<String>> result = withReadConnection(conn -> query(conn,
+	    "SELECT F.flightNum, F.origin, F.destination, ?, COUNT(B.bookRef), F.seats, F.seats - COUNT(B.bookRef) " +
+	    "FROM Flight F LEFT JOIN Booking B ON B.flightNum = F.flightNum AND B.departure = ? " +
+	    "WHERE F.flightNum = ? " +
+	    "GROUP BY F.flightNum, F.origin, F.destination, F.seats", departure.toString(), departure, flightNum));
+	return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Method to count the booked and free seats of several flights in one
+     * round trip.
+     *
+     * @param flightNums the flights
+     * @param departures the departure date of each flight
+     * @return one record like seatAvailability's per flight, in the same order,
+     *         null where the flight doesn't exist
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> seatAvailability(final List<String> flightNums, final List<Date> departures) throws SQLException {
+	return withReadConnection(conn -> seatAvailability(conn, flightNums, departures));
+    }
+
+    /**
+     * Method to count the booked and free seats of several flights on a
+     * given connection, e.g. one to the primary.
+     *
+     * @return the records, see seatAvailability
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    static List<List<String>> seatAvailability(Connection conn, List<String> flightNums, List<Date> departures) throws SQLException {
+	List<List<String>> result = query(conn,
+	    "SELECT K.i, F.flightNum, F.origin, F.destination, K.d, COUNT(B.bookRef), F.seats, F.seats - COUNT(B.bookRef) " +
+	    "FROM unnest(?, ?) WITH ORDINALITY AS K(f, d, i) " +
+	    "JOIN Flight F ON F.flightNum = K.f " +
+	    "LEFT JOIN Booking B ON B.flightNum = F.flightNum AND B.departure = K.d " +
+	    "GROUP BY K.i, K.d, F.flightNum, F.origin, F.destination, F.seats",
+	    conn.createArrayOf("text", flightNums.toArray()), conn.createArrayOf("date", departures.toArray()));
+	List<List<String>> records = new ArrayList<List<String>>();
+	for (int i = 0; i < flightNums.size(); ++i)
+	    records.add(null);
+	for (List<String> record : result)
+	    records.set(Integer.parseInt(record.get(0)) - 1, record.subList(1, record.size()));
+	return records;
+    }
+
+    /**
+     * Method to look up a booking by its reference.
+     *
+     * @param bookRef the booking reference
+     * @return the record (departure, flightNum, pID, version) or null if there is no such booking
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<String> findBooking(String bookRef) throws SQLException {
+	List<List<String>> result = withConnection(conn -> query(conn,
+	    "SELECT departure, flightNum, pID, version FROM Booking WHERE bookRef = ?", bookRef));
+	return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Method to cancel a booking. The booking is only removed if it still has
+     * the version the caller read, so a concurrent change is never undone.
+     *
+     * @param bookRef the booking reference
+     * @param version the version returned by findBooking
+     * @return OK, NOT_FOUND or CONFLICT if the booking was changed meanwhile
+     * @throws java.sql.SQLException when failed to execute the update
+     */
+    public Outcome cancelBooking(final String bookRef, final int version) throws SQLException {
+	final List<List<String>> freed = new ArrayList<List<String>>();
+	Outcome outcome = write(WriteClass.CRITICAL, conn -> {
+	    freed.clear();
+	    freed.addAll(query(conn, "DELETE FROM Booking WHERE bookRef = ? AND version = ? RETURNING flightNum, departure", bookRef, version));
+	    if (!freed.isEmpty()) {
+		if (this._outbox)
+		    ChangeFeed.append(conn, "cancelled", bookRef, ChangeFeed.json("bookRef", bookRef, "flightNum", freed.get(0).get(0),
+										 "departure", freed.get(0).get(1)));
+		return Outcome.OK;
+	    }
+	    return query(conn, "SELECT 1 FROM Booking WHERE bookRef = ?", bookRef).isEmpty() ? Outcome.NOT_FOUND : Outcome.CONFLICT;
+	}, conn -> freed.isEmpty() || !query(conn, "SELECT 1 FROM Booking WHERE bookRef = ?", bookRef).isEmpty() ? null : Outcome.OK);
+	if (outcome == Outcome.OK) {
+	    tableChanged("Booking"); // a seat was freed
+	    if (this._seatCounter != null)
+		this._seatCounter.release(freed.get(0).get(0), Date.valueOf(freed.get(0).get(1)));
+	}
+	return outcome;
+    }
+
+    /**
+     * Method to move a booking to another flight and/or date. The seat on the
+     * old (flightNum, departure) is freed and one on the new pair is claimed in
+     * a single transaction, so a failed change never loses a seat.
+     *
+     * @param bookRef the booking reference
+     * @param version the version returned by findBooking
+     * @param departure the new departure date
+     * @param flightNum the new flight number
+     * @return OK, NOT_FOUND, NO_SEATS, DUPLICATE or CONFLICT
+     * @throws java.sql.SQLException when failed to execute the update
+     */
+    public Outcome changeBooking(final String bookRef, final int version, final Date departure, final String flightNum) throws SQLException {
+	// (flightNum, departure) the booking was moved from
+	final List<List<String>> moved = new ArrayList<List<String>>();
+	try {
+	    Outcome changed = write(WriteClass.CRITICAL, conn -> {
+		moved.clear();
+		Outcome outcome = claimSeat(conn, flightNum, departure, bookRef);
+		if (outcome != Outcome.OK) return outcome;
+		// joined with itself, the update can return the row as it was
+		moved.addAll(query(conn, "UPDATE Booking B SET departure = ?, flightNum = ?, version = B.version + 1 FROM Booking O " +
+				   "WHERE O.bookRef = B.bookRef AND B.bookRef = ? AND B.version = ? RETURNING O.flightNum, O.departure",
+				   departure, flightNum, bookRef, version));
+		if (!moved.isEmpty()) {
+		    if (this._outbox)
+			ChangeFeed.append(conn, "changed", bookRef, ChangeFeed.json("bookRef", bookRef, "departure", departure,
+										   "flightNum", flightNum, "version", version + 1));
+		    return Outcome.OK;
+		}
+		return query(conn, "SELECT 1 FROM Booking WHERE bookRef = ?", bookRef).isEmpty() ? Outcome.NOT_FOUND : Outcome.CONFLICT;
+	    }, conn -> query(conn, "SELECT 1 FROM Booking WHERE bookRef = ? AND version = ? AND departure = ? AND flightNum = ?",
+			     bookRef, version + 1, departure, flightNum).isEmpty() ? null : Outcome.OK);
+	    if (changed == Outcome.OK) {
+		tableChanged("Booking"); // the old seat was freed
+		List<String> from = moved.isEmpty() ? null : moved.get(0);
+		if (this._seatCounter != null && from != null
+		    && !(from.get(0).equals(flightNum.trim()) && from.get(1).equals(departure.toString()))) {
+		    this._seatCounter.release(from.get(0), Date.valueOf(from.get(1)));
+		    this._seatCounter.taken(flightNum, departure);
+		}
+	    }
+	    return changed;
+	} catch (SQLException e) {
+	    if (isUniqueViolation(e)) return Outcome.DUPLICATE; // passenger already booked on that flight and date
+	    throw e;
+	}
+    }
+
+    /**
+     * Method to reserve a seat on a (flightNum, departure) pair inside the
+     * caller's transaction. Every seat claim takes the same transaction-scoped
+     * advisory lock for the pair, so claims are serialized per flight and date
+     * and the count below can't be raced. A transaction only ever holds one of
+     * these locks, which keeps claims deadlock free.
+     *
+     * @param conn a connection with an open transaction
+     * @param flightNum the flight number
+     * @param departure the departure date
+     * @return OK if a seat is free, NOT_FOUND if the flight doesn't exist, NO_SEATS otherwise
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    static Outcome claimSeat(Connection conn, String flightNum, Date departure) throws SQLException {
+	return claimSeat(conn, flightNum, departure, "");
+    }
+
+    /**
+     * Method to reserve a seat for a booking that is moved to a (flightNum,
+     * departure) pair. The seat the booking already holds, if it is on that
+     * pair, counts as free, so a change that keeps the flight and date of a
+     * full flight still gets its seat.
+     *
+     * @param bookRef the booking being moved
+     */
+    static Outcome claimSeat(Connection conn, String flightNum, Date departure, String bookRef) throws SQLException {
+	long key = ((long) flightNum.trim().hashCode() << 32) | (departure.toLocalDate().toEpochDay() & 0xffffffffL);
+	query(conn, "SELECT pg_advisory_xact_lock(?)", key);
+
+	List<List<String>> free = query(conn,
+	    "SELECT F.seats - (SELECT COUNT(*) FROM Booking B WHERE B.flightNum = F.flightNum AND B.departure = ? AND B.bookRef <> ?) " +
+	    "FROM Flight F WHERE F.flightNum = ?", departure, bookRef, flightNum);
+	if (free.isEmpty()) return Outcome.NOT_FOUND;
+	return Integer.parseInt(free.get(0).get(0)) > 0 ? Outcome.OK : Outcome.NO_SEATS;
+    }
+
+    /**
+     * Method to measure rating ingestion throughput with relaxed writes
+     * disabled and enabled. Each mode inserts n ratings, one transaction per
+     * rating like TakeCustomerReview does, each by another passenger and
+     * flight the passenger booked and hasn't rated. An untimed pass of n
+     * ratings warms up the JIT, the pool and the server first, and the timed
+     * passes run durable, relaxed, relaxed, durable so neither mode profits
+     * from going second. The ratings are removed afterwards, so the benchmark
+     * refuses to run while they would be published to the outbox or counted
+     * in the rating summaries.
+     *
+     * @param n the number of ratings inserted per mode
+     * @throws java.sql.SQLException when failed to execute the inserts
+     */
+    public void benchmarkRatingIngest(int n) throws SQLException {
+	if (this._outbox) {
+	    this.out.println("The benchmark's ratings are removed afterwards and can't be published, run it without --outbox.");
+	    return;
+	}
+	if (!withConnection(conn -> query(conn, "SELECT hi FROM RatingWatermark WHERE hi >= 0")).isEmpty()) {
+	    this.out.println("The ratings are summarized (see --analyze-ratings), which would count the benchmark's removed ratings.");
+	    return;
+	}
+	final int needed = 3 * n;
+	List<List<String>> pairs = withConnection(conn -> query(conn, "SELECT DISTINCT B.pID, B.flightNum FROM Booking B " +
+	    "WHERE NOT EXISTS (SELECT 1 FROM Ratings R WHERE R.pID = B.pID AND R.flightNum = B.flightNum) LIMIT ?", needed));
+	if (pairs.size() < needed) {
+	    this.out.println(String.format("Need %d booked flights that aren't rated yet to benchmark %d ratings, found %d.",
+					   needed, n, pairs.size()));
+	    return;
+	}
+	String marker = "benchmark " + newBookRef();
+	boolean relaxedWrites = this._relaxedWrites;
+
+	long[] nanos = new long[2];
+	int next = 0;
+	try {
+	    for (int i = 0; i < n; ++i, ++next) {
+		setRelaxedWrites(i % 2 == 1);
+		addRating(Integer.parseInt(pairs.get(next).get(0)), pairs.get(next).get(1), 0, marker);
+	    }
+	    int[] modes = { 0, 1, 1, 0 };
+	    for (int pass = 0; pass < modes.length; ++pass) {
+		setRelaxedWrites(modes[pass] == 1);
+		int count = pass < 2 ? n - n / 2 : n / 2;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i, ++next)
+		    addRating(Integer.parseInt(pairs.get(next).get(0)), pairs.get(next).get(1), 0, marker);
+		nanos[modes[pass]] += System.nanoTime() - start;
+	    }
+	} finally {
+	    setRelaxedWrites(relaxedWrites);
+	    withConnection(conn -> update(conn, "DELETE FROM Ratings WHERE comment = ?", marker));
+	}
+	double[] rates = { n / (nanos[0] / 1e9), n / (nanos[1] / 1e9) };
+	this.out.println(String.format("%-25s%.0f ratings/s", "synchronous_commit on", rates[0]));
+	this.out.println(String.format("%-25s%.0f ratings/s", "synchronous_commit off", rates[1]));
+	this.out.println(String.format("%-25s%.2fx", "speedup", rates[1] / rates[0]));
+    }
+
+    /**
+     * Method to warm up the pool before the first operation. Every
+     * connection is opened, and each read and seat claim of the business
+     * operations is run with arguments that match no rows, rounds times on as
+     * many threads as the pool has connections. After the driver's
+     * prepareThreshold (5) runs a statement is prepared on the server, so
+     * the first real operations neither parse nor plan, and the JIT has
+     * compiled the code they run. The report cache, if any, is primed with the
+     * top WARM_UP_K destinations and routes.
+     *
+     * @param rounds the number of times each thread runs the operations
+     * @throws java.sql.SQLException when a warm-up operation failed
+     */
+    public void warmUp(final int rounds) throws SQLException {
+	final List<SQLException> failures = new ArrayList<SQLException>();
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int t = 0; t < this._pool.size(); ++t) {
+	    final AirBooking session = newSession(this.in, this.out);
+	    Thread thread = new Thread(() -> {
+		try {
+		    for (int i = 0; i < rounds; ++i)
+			session.warmUpOnce();
+		} catch (SQLException e) {
+		    synchronized (failures) {
+			failures.add(e);
+		    }
+		}
+	    }, "warm-up-" + t);
+	    thread.start();
+	    threads.add(thread);
+	}
+	try {
+	    for (Thread thread : threads)
+		thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while warming up", e);
+	}
+	if (!failures.isEmpty()) throw failures.get(0);
+	warmedUpAt = System.currentTimeMillis();
+    }
 
-	int rowCount = 0;
+    // Nothing is written: every lookup is by an empty key, and claimSeat finds no flight "".
+    private void warmUpOnce() throws SQLException {
+	Date today = new Date(System.currentTimeMillis());
+	findPassengerId("");
+	reviewChecks(-1, "");
+	findBooking("");
+	claimAndBook("", -1, "", today);
+	changeBooking("", 0, today, "");
+	cancelBooking("", 0);
+	listFlights("", "");
+	flightsByDuration("", "", 1);
+	seatAvailability("", today);
+	popularDestinations(WARM_UP_K);
+	highestRatedRoutes(WARM_UP_K);
+    }
 
-	//iterates through the result set and count nuber of results.
-	if(rs.next()){
-	    rowCount++;
-	}//end while
-	stmt.close ();
-	return rowCount;
+    /**
+     * Method to describe how long startup took, from the start of the JVM.
+     *
+     * @param pool the pool of the program
+     * @return when the first connection was open, the warm-up ended and the first query was answered
+     */
+    static String startupReport(ConnectionPool pool) {
+	long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+	StringBuilder report = new StringBuilder("Startup:");
+	if (pool.readyAt() != 0) report.append(String.format(" connected after %d ms,", pool.readyAt() - jvmStart));
+	if (warmedUpAt != 0) report.append(String.format(" warmed up after %d ms,", warmedUpAt - jvmStart));
+	if (firstQueryAt == 0) report.append(" no query run");
+	else report.append(String.format(" first query answered after %d ms (the query took %.2f ms)",
+					 firstQueryAt - jvmStart, firstQueryNanos / 1e6));
+	return report.append(String.format("%n")).toString();
     }
-	
+
     /**
-     * Method to fetch the last value from sequence. This
-     * method issues the query to the DBMS and returns the current 
-     * value of sequence used for autogenerated keys
-     * 
-     * @param sequence name of the DB sequence
-     * @return current value of a sequence
-     * @throws java.sql.SQLException when failed to execute the query
+     * Method to parse the optional "--name" and "--name=value" arguments
+     * that follow the positional ones.
+     *
+     * @param args the command line arguments
+     * @param from index of the first optional argument
+     * @return the options by name, "true" for options without a value
      */
-    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-		
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next()) return rs.getInt(1);
-	return -1;
+    static Map<String, String> parseOptions(String[] args, int from) {
+	Map<String, String> options = new HashMap<String, String>();
+	for (int i = from; i < args.length; ++i) {
+	    if (!args[i].startsWith("--"))
+		throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+	    int eq = args[i].indexOf('=');
+	    if (eq < 0) options.put(args[i].substring(2), "true");
+	    else options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+	}
+	return options;
     }
 
     /**
-     * Method to close the physical connection if it is open.
+     * Method to close the physical connections if this session owns them.
      */
     public void cleanup(){
-	try{
-	    if (this._connection != null){
-		this._connection.close ();
-	    }//end if
-	}catch (SQLException e){
-	    // ignored.
-	}//end try
+	if (this._ownsPool){
+	    this._pool.close ();
+	}//end if
     }//end cleanup
 
     /**
@@ -215,85 +1712,395 @@ public class AirBooking{
      * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
      */
     public static void main (String[] args) {
-	if (args.length != 3) {
+	Config config = null;
+	Map<String, String> options = null;
+	try {
+	    config = Config.load(args);
+	    options = config.values();
+	} catch (IllegalArgumentException | IOException e) {
+	    System.err.println(e.getMessage());
+	}
+	if (options == null || (!options.containsKey("print-config") && (!options.containsKey("dbname") || !options.containsKey("user")))) {
 	    System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + AirBooking.class.getName () +
-				" <dbname> <port> <user>");
+				" [<dbname> <port | host:port[,...]> <user>] [--config=<file>] [--print-config]" +
+				" [--pool-size=<n>] [--reconnect-ms=<ms>]" +
+				" [--relaxed-writes] [--bench-ratings=<n>]" +
+				" [--rating-buffer=<rows> [--rating-flush-ms=<ms>]] [--replicas=<host:port>[,...]]" +
+				" [--report-cache=<MB>] [--admission=<bookings/s> [--flight-limit=<n>] [--max-wait-ms=<ms>]]" +
+				" [--seat-counter [--reconcile-ms=<ms>]] [--fast-start] [--warm-up[=<rounds>]]" +
+				" [--output=<table|csv|json>] [--output-file=<file>] [--outbox] [--follow-outbox=<consumer>]" +
+				" [--search-index [--search-refresh-ms=<ms>]] [--search=<name>]" +
+				" [--analyze-ratings[=<airId>] [--window-days=<n>] [--batch-size=<n>]]" +
+				" [--airline-rollups[=<airId>]] [--bench-rollups=<rounds>]" +
+				" [--stress=<seconds> [--concurrency=<n>] [--keep-stress-data]]" +
+				" [--fetch-size=<rows>] [--query-timeout-s=<s>] [--report-cache-ttl-ms=<ms>] [--sold-out-ttl-ms=<ms>]" +
+				" [--config-reload-ms=<ms>] [--metrics-port=[<host>:]<port>]" +
+				" [--replay=<file> [--concurrency=<n>] [--rate=<ops/s>] [--async | --memory=<data dir>]]" +
+				" [--serve=[<host>:]<port>] [--script=<file> --sessions=<n>]" +
+				" [--sync-schedule=<file> [--batch-size=<n>]]" +
+				" [--export=<table or report>[,...] [--export-dir=<dir>] [--workers=<n>] [--gzip]]");
 	    return;
 	}//end if
 		
-	AirBooking esql = null;
+	ConnectionPool pool = null;
+	RatingBuffer ratings = null;
+	ReplicaSet replicas = null;
+	ChangeListener changes = null;
+	SeatCounter seatCounter = null;
+	NameSearch search = null;
+	MetricsEndpoint metrics = null;
+	PrintStream resultOut = null;
+	int status = 0;
 		
 	try{
 			
-	    try {
-		Class.forName("org.postgresql.Driver");
-	    }catch(Exception e){
+	    if (options.containsKey("print-config")) {
+		System.out.print(config.report());
+		return;
+	    }
 
-		System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-		e.printStackTrace();
+	    if (options.containsKey("load-classes")) {
+		// training run for the class data sharing archive, see compile.sh
+		for (String name : STARTUP_CLASSES)
+		    Class.forName(name);
 		return;
 	    }
+
+	    if (options.containsKey("replay") && options.containsKey("memory")) {
+		// no database: replay against the CSV data held in memory
+		MemoryRepository memory = MemoryRepository.load(options.get("memory"));
+		int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "1"));
+		new ReplayDriver(ReplayDriver.readRecords(options.get("replay")), concurrency,
+				 Double.parseDouble(options.getOrDefault("rate", "0")))
+		    .run(Collections.nCopies(concurrency, memory));
+		return;
+	    }
+
+	    boolean fastStart = options.containsKey("fast-start");
+	    if (!fastStart) { // otherwise the driver is loaded with the first connection, in the background
+		try {
+		    Class.forName("org.postgresql.Driver");
+		}catch(Exception e){
+
+		    System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+		    e.printStackTrace();
+		    return;
+		}
+	    }
 			
-	    String dbname = args[0];
-	    String dbport = args[1];
-	    String user = args[2];
-			
-	    esql = new AirBooking (dbname, dbport, user, "");
+	    String url = config.url();
+	    String user = options.get("user");
+	    String passwd = options.getOrDefault("password", "");
+	    int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "1"));
+	    int workers = Integer.parseInt(options.getOrDefault("workers", "4"));
+	    int defaultPoolSize = options.containsKey("serve") || options.containsKey("script") ? 10
+		: options.containsKey("async") ? Math.min(concurrency, 4)
+		: options.containsKey("export") ? workers + 1 : concurrency;
+	    int poolSize = Integer.parseInt(options.getOrDefault("pool-size", String.valueOf(defaultPoolSize)));
 			
-	    boolean keepon = true;
-	    while(keepon){
-		System.out.println("MAIN MENU");
-		System.out.println("---------");
-		System.out.println("1. Add Passenger");
-		System.out.println("2. Book Flight");
-		System.out.println("3. Review Flight");
-		System.out.println("4. Insert or Update Flight");
-		System.out.println("5. List Flights From Origin to Destination");
-		System.out.println("6. List Most Popular Destinations");
-		System.out.println("7. List Highest Rated Destinations");
-		System.out.println("8. List Flights to Destination in order of Duration");
-		System.out.println("9. Find Number of Available Seats on a given Flight");
-		System.out.println("10. < EXIT");
-				
-		switch (readChoice()){
-		case 1: AddPassenger(esql); break;
-		case 2: BookFlight(esql); break;
-		case 3: TakeCustomerReview(esql); break;
-		case 4: InsertOrUpdateRouteForAirline(esql); break;
-		case 5: ListAvailableFlightsBetweenOriginAndDestination(esql); break;
-		case 6: ListMostPopularDestinations(esql); break;
-		case 7: ListHighestRatedRoutes(esql); break;
-		case 8: ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
-		case 9: FindNumberOfAvailableSeatsForFlight(esql); break;
-		case 10: keepon = false; break;
+	    pool = fastStart ? connectInBackground(url, user, passwd, poolSize) : connect(url, user, passwd, poolSize);
+	    AirBooking esql = new AirBooking (pool, new BufferedReader(new InputStreamReader(System.in)), System.out);
+	    esql.setRelaxedWrites(options.containsKey("relaxed-writes"));
+	    esql.setOutbox(options.containsKey("outbox"));
+	    if (options.containsKey("output-file"))
+		resultOut = new PrintStream(new FileOutputStream(options.get("output-file")));
+	    esql.setOutput(TableRenderer.parseFormat(options.getOrDefault("output", "table")), resultOut);
+	    if (options.containsKey("rating-buffer")) {
+		ratings = new RatingBuffer(esql, Integer.parseInt(options.get("rating-buffer")),
+					   Long.parseLong(options.getOrDefault("rating-flush-ms", "20")));
+		esql.setRatingBuffer(ratings);
+	    }
+	    if (options.containsKey("replicas")) {
+		replicas = new ReplicaSet(Arrays.asList(options.get("replicas").split(",")), options.get("dbname"), user, passwd, poolSize, 1000);
+		esql.setReplicas(replicas);
+	    }
+	    if (options.containsKey("admission")) {
+		double rate = Double.parseDouble(options.get("admission"));
+		esql.setAdmission(new AdmissionControl(rate, Math.max(1, (int) (rate / 10)),
+						       Integer.parseInt(options.getOrDefault("flight-limit", "2")),
+						       Long.parseLong(options.getOrDefault("max-wait-ms", "200"))));
+	    }
+	    if (options.containsKey("seat-counter")) {
+		seatCounter = new SeatCounter(esql, Long.parseLong(options.getOrDefault("reconcile-ms", "5000")));
+		esql.setSeatCounter(seatCounter);
+	    }
+	    boolean searchIndex = options.containsKey("search-index") || options.containsKey("search");
+	    if (options.containsKey("report-cache"))
+		esql.setReportCache(new ReportCache(Long.parseLong(options.get("report-cache")) << 20));
+	    if (options.containsKey("report-cache") || searchIndex) {
+		try {
+		    changes = new ChangeListener(url, user, passwd, 100);
+		    changes.start();
+		} catch (SQLException e) {
+		    System.err.println("Only this process' writes refresh the report cache and search index: " + e.getMessage());
+		}
+	    }
+	    if (searchIndex) {
+		search = new NameSearch(esql, Long.parseLong(options.getOrDefault("search-refresh-ms", "1000")));
+		esql.setSearch(search);
+	    }
+	    applyTunables(esql, options);
+	    final AirBooking tuned = esql;
+	    config.watch(Long.parseLong(options.getOrDefault("config-reload-ms", "2000")), values -> applyTunables(tuned, values));
+	    if (options.containsKey("metrics-port"))
+		metrics = new MetricsEndpoint(options.get("metrics-port"), esql);
+
+	    if (options.containsKey("search")) {
+		esql.printListing(new String[] { "Kind", "Id", "Name", "Detail", "Score" }, null,
+				  search.listing(options.get("search"), SUGGESTIONS));
+		System.out.print(search.report());
+		return;
+	    }
+
+	    if (options.containsKey("warm-up")) {
+		final AirBooking session = esql;
+		String value = options.get("warm-up");
+		final int rounds = value.equals("true") ? 5 : Integer.parseInt(value);
+		if (fastStart) { // warm up behind the menu
+		    Thread warmUp = new Thread(() -> {
+			try {
+			    session.warmUp(rounds);
+			} catch (SQLException e) {
+			    System.err.println("Warm-up failed: " + e.getMessage());
+			}
+		    }, "warm-up");
+		    warmUp.setDaemon(true);
+		    warmUp.start();
+		} else {
+		    System.out.print("Warming up...");
+		    esql.warmUp(rounds);
+		    System.out.println("Done");
+		}
+	    }
+
+	    if (options.containsKey("follow-outbox")) {
+		// prints the change feed as JSON lines until the program is stopped
+		final PrintStream feedOut = resultOut == null ? System.out : resultOut;
+		new ChangeFeed(esql).follow(options.get("follow-outbox"), Integer.parseInt(options.getOrDefault("batch-size", "100")), 100,
+					    batch -> {
+						for (ChangeFeed.Change change : batch)
+						    feedOut.println(change.toJson());
+						feedOut.flush();
+					    });
+		return;
+	    }
+
+	    if (options.containsKey("analyze-ratings")) {
+		RatingAnalytics analytics = new RatingAnalytics(esql, Integer.parseInt(options.getOrDefault("batch-size", "1000")));
+		analytics.refresh();
+		int days = Integer.parseInt(options.getOrDefault("window-days", "30"));
+		String airId = options.get("analyze-ratings");
+		if (airId.equals("true"))
+		    esql.printListing(new String[] { "Id", "Airline", "Ratings", "Average", "Scores 0-5", "Last " + days + " days", "Terms" },
+				      null, analytics.airlines(days, 5));
+		else
+		    esql.printListing(new String[] { "Flight", "Origin", "Destination", "Ratings", "Average", "Scores 0-5", "Last " + days + " days" },
+				      null, analytics.flights(Integer.parseInt(airId), days));
+		System.out.print(analytics.report());
+		return;
+	    }
+
+	    if (options.containsKey("airline-rollups") || options.containsKey("bench-rollups")) {
+		AirlineRollups rollups = new AirlineRollups(esql, new RatingAnalytics(esql, Integer.parseInt(options.getOrDefault("batch-size", "1000"))));
+		if (options.containsKey("bench-rollups")) {
+		    System.out.print(rollups.benchmark(Integer.parseInt(options.get("bench-rollups"))));
+		    return;
+		}
+		rollups.refresh();
+		String[] columns = { "Id", "Airline", "Routes", "Capacity", "Days", "Flights", "Seats", "Booked", "Load", "Ratings", "Rating" };
+		String airId = options.get("airline-rollups");
+		if (airId.equals("true")) {
+		    esql.printListing(columns, null, rollups.airlines());
+		} else {
+		    List<String> airline = rollups.airline(Integer.parseInt(airId));
+		    if (airline == null) {
+			System.out.println("There is no airline " + airId + ".");
+			return;
+		    }
+		    esql.printListing(columns, null, Collections.singletonList(airline));
+		    esql.printListing(new String[] { "Day", "Flights", "Seats", "Booked", "Load" }, null,
+				      rollups.days(Integer.parseInt(airId), Date.valueOf("1900-01-01"), Date.valueOf("9999-12-31")));
+		}
+		System.out.print(rollups.report());
+		return;
+	    }
+
+	    if (options.containsKey("stress")) {
+		StressHarness harness = new StressHarness(esql, concurrency);
+		if (harness.run(Integer.parseInt(options.get("stress")), !options.containsKey("keep-stress-data")) > 0)
+		    status = 1;
+		System.out.print(pool.contentionReport());
+		if (esql.getAdmission() != null) System.out.print(esql.getAdmission().report());
+		if (seatCounter != null) System.out.print(seatCounter.report());
+		return;
+	    }
+
+	    if (options.containsKey("export")) {
+		Exporter exporter = new Exporter(pool, new File(options.getOrDefault("export-dir", "export")), workers,
+						 options.containsKey("gzip"));
+		exporter.export(Arrays.asList(options.get("export").split(",")));
+		System.out.print(exporter.report());
+		return;
+	    }
+
+	    if (options.containsKey("bench-ratings")) {
+		esql.benchmarkRatingIngest(Integer.parseInt(options.get("bench-ratings")));
+		return;
+	    }
+
+	    if (options.containsKey("sync-schedule")) {
+		BufferedReader csv = new BufferedReader(new FileReader(options.get("sync-schedule")));
+		try {
+		    int[] counts = esql.syncSchedule(csv, Integer.parseInt(options.getOrDefault("batch-size", "500")));
+		    System.out.println(String.format("Schedule applied: %d inserted, %d updated, %d unchanged, %d superseded, %d skipped",
+						     counts[0], counts[1], counts[2], counts[3], counts[4]));
+		} finally {
+		    csv.close();
+		}
+		return;
+	    }
+
+	    if (options.containsKey("replay")) {
+		List<Map<String, String>> records = ReplayDriver.readRecords(options.get("replay"));
+		double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+		if (options.containsKey("async")) {
+		    AsyncAirBooking async = new AsyncAirBooking(esql, poolSize, concurrency);
+		    new ReplayDriver(records, concurrency, rate).runAsync(async);
+		    async.close();
+		    System.out.print(async.report());
+		} else {
+		    List<AirBooking> sessions = new ArrayList<AirBooking>();
+		    while (sessions.size() < concurrency)
+			sessions.add(esql.newSession(new BufferedReader(new StringReader("")), System.out));
+		    new ReplayDriver(records, concurrency, rate).run(sessions);
 		}
+		System.out.print(pool.contentionReport());
+		if (replicas != null) System.out.print(replicas.report());
+		if (esql.getReportCache() != null) System.out.print(esql.getReportCache().report());
+		if (esql.getAdmission() != null) System.out.print(esql.getAdmission().report());
+		if (seatCounter != null) System.out.print(seatCounter.report());
+		return;
+	    }
+
+	    if (options.containsKey("serve")) {
+		new SessionEngine(esql).serve(options.get("serve"));
+		return;
+	    }
+
+	    if (options.containsKey("script")) {
+		new SessionEngine(esql).runScript(options.get("script"), Integer.parseInt(options.getOrDefault("sessions", "1")));
+		return;
 	    }
+			
+	    esql.runMenu();
 	}catch(Exception e){
 	    System.err.println (e.getMessage ());
 	}finally{
 	    try{
-		if(esql != null) {
+		if(ratings != null) ratings.close();
+		if(replicas != null) replicas.close();
+		if(changes != null) changes.close();
+		if(seatCounter != null) seatCounter.close();
+		if(search != null) search.close();
+		if(metrics != null) metrics.close();
+		if(config != null) config.close();
+		if(resultOut != null) resultOut.close();
+		if(pool != null && (options.containsKey("fast-start") || options.containsKey("warm-up")))
+		    System.out.print(startupReport(pool));
+		if(pool != null) {
 		    System.out.print("Disconnecting from database...");
-		    esql.cleanup ();
+		    pool.close ();
 		    System.out.println("Done\n\nBye !");
 		}//end if				
 	    }catch(Exception e){
 		// ignored.
 	    }
+	    if (status != 0) System.exit(status); // the stress test found violations
+	}
+    }
+
+    /**
+     * Method to create another session on the same pool and with the same
+     * settings as this one.
+     *
+     * @param in the input of the new session
+     * @param out the output of the new session
+     * @return the new session
+     */
+    public AirBooking newSession(BufferedReader in, PrintStream out) {
+	AirBooking session = new AirBooking(this._pool, in, out);
+	session._isolation = this._isolation;
+	session._relaxedWrites = this._relaxedWrites;
+	session._ratingBuffer = this._ratingBuffer;
+	session._replicas = this._replicas;
+	session._reportCache = this._reportCache;
+	session._admission = this._admission;
+	session._seatCounter = this._seatCounter;
+	session._outbox = this._outbox;
+	session._search = this._search;
+	session._outputFormat = this._outputFormat;
+	session._resultOut = this._resultOut;
+	session._passengerIds = this._passengerIds;
+	session._ratingIds = this._ratingIds;
+	return session;
+    }
+
+    /**
+     * Method to run the menu of this session until the user exits or its
+     * input ends.
+     *
+     * @throws java.lang.Exception when an option failed unexpectedly
+     */
+    public void runMenu() throws Exception {
+	AirBooking esql = this;
+	boolean keepon = true;
+	while(keepon){
+	    out.println("MAIN MENU");
+	    out.println("---------");
+	    out.println("1. Add Passenger");
+	    out.println("2. Book Flight");
+	    out.println("3. Review Flight");
+	    out.println("4. Insert or Update Flight");
+	    out.println("5. List Flights From Origin to Destination");
+	    out.println("6. List Most Popular Destinations");
+	    out.println("7. List Highest Rated Destinations");
+	    out.println("8. List Flights to Destination in order of Duration");
+	    out.println("9. Find Number of Available Seats on a given Flight");
+	    out.println("10. Cancel Booking");
+	    out.println("11. Change Booking");
+	    out.println("12. < EXIT");
+				
+	    switch (readChoice(esql)){
+	    case 1: AddPassenger(esql); break;
+	    case 2: BookFlight(esql); break;
+	    case 3: TakeCustomerReview(esql); break;
+	    case 4: InsertOrUpdateRouteForAirline(esql); break;
+	    case 5: ListAvailableFlightsBetweenOriginAndDestination(esql); break;
+	    case 6: ListMostPopularDestinations(esql); break;
+	    case 7: ListHighestRatedRoutes(esql); break;
+	    case 8: ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
+	    case 9: FindNumberOfAvailableSeatsForFlight(esql); break;
+	    case 10: CancelBooking(esql); break;
+	    case 11: ChangeBooking(esql); break;
+	    case -1: // end of input
+	    case 12: keepon = false; break;
+	    }
 	}
     }
 
-    public static int readChoice() {
+    public static int readChoice(AirBooking esql) {
 	int input;
-	// returns only if a correct value is given.
+	// returns only if a correct value is given, or -1 at the end of the input.
 	do {
-	    System.out.print("Please make your choice: ");
+	    esql.out.print("Please make your choice: ");
 	    try { // read the integer, parse it and break.
-		input = Integer.parseInt(in.readLine());
+		String line = esql.in.readLine();
+		if (line == null) return -1;
+		input = Integer.parseInt(line);
 		break;
 	    }catch (Exception e) {
-		System.out.println("Your input is invalid!");
+		esql.out.println("Your input is invalid!");
 		continue;
 	    }//end try
 	}while (true);
@@ -314,19 +2121,19 @@ public class AirBooking{
 	
 	// Get the passport number
 	do {
-	    System.out.print("Enter the passenger's passport number: ");
+	    esql.out.print("Enter the passenger's passport number: ");
 	    try {
 		try {
-		passNum = in.readLine();
+		passNum = esql.in.readLine();
 		// Check that the passport number isn't too long
 		if (passNum.length() > 10) {
-		    System.out.println("The passport number is too long!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The passport number is too long!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else if (!passNum.matches("[a-zA-Z0-9]+")) {
-		    System.out.println("The passport number has invalid characters!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The passport number has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		// passNum = URLEncoder.encode(passNum, "UTF-8");
@@ -334,101 +2141,94 @@ public class AirBooking{
 		// Should use prepared statements instead
 		
 		} catch (Exception e) {
-		    System.out.println("Invalid input!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 
-		// Check if passport number already exists
-		String sqlpassNum = String.format("SELECT * FROM Passenger WHERE passNum='%s';", passNum);
-		result = esql.executeQuery(sqlpassNum);
-		if (result != 0) { // passport already exists
-		    System.out.println("The passport number is already in use by a passenger!");
-		    if(!TryAgain()) return;
-		    else continue;
-		}
-		else { // passport doesn't exist
-		    break;
-		} 
+		// A taken passport number is reported by the insert itself
+		break;
 	    } catch (Exception e) {
-		System.out.println("Sorry, something went wrong.");
+		esql.out.println("Sorry, something went wrong.");
 		System.err.println(e.getMessage());
 	    }
 	} while (true);
 
 	// Get passenger's full name
 	do {
-	    System.out.print("Enter the passenger's full name: ");
+	    esql.out.print("Enter the passenger's full name: ");
 	    try {
-		name = in.readLine();
+		name = esql.in.readLine();
 
 		// Check that the name isn't too long
 		if (name.length() > 24) {
-		    System.out.println("The name is too long!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The name is too long!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else if (!name.matches("[a-zA-Z]+")) {
-		    System.out.println("The name has invalid characters!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The name has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 
 		break; // name is valid
 	    } catch (Exception e) {
-		System.out.println("Invalid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 	    
 	// Get passenger's DOB
 	do {
-	    System.out.print("Enter the passenger's birth date <YYYY-MM-DD>: ");
+	    esql.out.print("Enter the passenger's birth date <YYYY-MM-DD>: ");
 	    try {
-		date = Date.valueOf(in.readLine());
+		date = Date.valueOf(esql.in.readLine());
 		break; // Date is valid
 	    }
 	    catch (Exception e) {
-		System.out.println("Invalid format. Use YYYY-MM-DD.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid format. Use YYYY-MM-DD.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 	    
 	// Get the passenger's country
 	do {
-	    System.out.print("Enter the passenger's country: ");
+	    esql.out.print("Enter the passenger's country: ");
 	    try {
-		country = in.readLine();
+		country = esql.in.readLine();
 
 		// Check that the country isn't too long
 		if (country.length() > 24) {
-		    System.out.println("The country name is too long!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The country name is too long!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else if (!country.matches("[a-zA-Z]+")) {
-		    System.out.println("The name has invalid characters!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The name has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 
 		break; // country is valid
 	    } catch (Exception e) {
-		System.out.println("Invalid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 
 	// Execute insert
 	try {
-	    sql = String.format("INSERT INTO Passenger (passNum, fullName, bdate, country) VALUES ('%s', '%s', '%s', '%s');",
-				passNum, name, date.toString(), country);
-	    esql.executeUpdate(sql);
+	    Integer pID = esql.addPassenger(passNum, name, date, country);
+	    if (pID == null)
+		esql.out.println("The passport number is already in use by a passenger!");
+	    else
+		esql.out.println(String.format("Passenger added with id %d.", pID));
 	} catch (Exception e) {
-	    System.out.println("Insertion failed! Please try again.");
+	    esql.out.println("Insertion failed! Please try again.");
 	    System.err.println(e.getMessage());
 	}
     }
@@ -445,63 +2245,35 @@ public class AirBooking{
 	String passport = null;
 	String flightNum = null;
 
-	// Build bookRef
-	do {
-	    String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
-
-	    StringBuilder randstring = new StringBuilder();
-	    Random rnd = new Random();
-
-	    while (randstring.length() < 10) { // length of the random string.
-		int index = (int) (rnd.nextFloat() * CHARS.length());
-		randstring.append(CHARS.charAt(index));
-	    }
-	
-	    bookRef = randstring.toString();
-
-	    String sqlref = String.format("SELECT * FROM Booking B WHERE B.bookRef ='%s';", bookRef);
-	    try {
-		result = esql.executeQuery(sqlref);
-		
-		if (result == 0) {
-		    break;
-		}
-	    } catch(Exception e) {
-		System.out.println("Something wrong");
-		System.err.println(e.getMessage());
-	    }
-	} while(true);
 
 
 	// Get the passport number, then passeneger id
 	do {
-	    System.out.print("Enter the passenger's passport number: ");
+	    esql.out.print(esql._search == null ? "Enter the passenger's passport number: "
+			   : "Enter the passenger's passport number or name: ");
 
 	    try {
-		passport = in.readLine();
+		passport = esql.in.readLine();
 	    } catch (Exception e) {
-		System.out.println("Invalid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 
 	    try {
-		// Check if passport number exists
-		String sqlpassNum = String.format("SELECT pID FROM Passenger WHERE passNum='%s';", passport);
-		result = esql.executeQuery(sqlpassNum);
-		if (result == 0) { // passport doesn't exist
-		    System.out.println("A passenger with that passport number can not be found.");
-		    if (!TryAgain()) return;
+		// Get the pid associated with the passport number, if it exists
+		Integer found = findPassenger(esql, passport);
+		if (found == null) { // passport doesn't exist
+		    esql.out.println("A passenger with that passport number can not be found.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else { // passport exists
-		    // Get the pid associated with the passport number
-		    List<List<String>> pIDS = esql.executeQueryAndReturnResult(sqlpassNum);
-		    pID = Integer.parseInt(pIDS.get(0).get(0));
+		    pID = found;
 		    break;
 		} 
 	    } catch (Exception e) {
-		System.out.println("Sorry, something went wrong.");
+		esql.out.println("Sorry, something went wrong.");
 		System.err.println(e.getMessage());
 		return;
 	    }
@@ -511,15 +2283,15 @@ public class AirBooking{
 
 	    // Get date
 	    do {
-		System.out.print("Enter the flight's date <YYYY-MM-DD>: ");
+		esql.out.print("Enter the flight's date <YYYY-MM-DD>: ");
 		try {
-		    date = Date.valueOf(in.readLine());
+		    date = Date.valueOf(esql.in.readLine());
 		    // Date is valid
 		    break;
 		}
 		catch (Exception e) {
-		    System.out.println("Please enter a valid date. Use YYYY-MM-DD.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Please enter a valid date. Use YYYY-MM-DD.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
@@ -528,26 +2300,26 @@ public class AirBooking{
 	    do {
 		// Get the origin
 		do {
-		    System.out.print("Enter the origin: ");
+		    esql.out.print("Enter the origin: ");
 		    try {
-			origin = in.readLine();
+			origin = esql.in.readLine();
 			break;
 		    } catch (Exception e) {
-			System.out.println("Invalid input.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid input.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		} while (true);
 		   
 		// Get the destination
 		do {
-		    System.out.print("Enter the destination: ");
+		    esql.out.print("Enter the destination: ");
 		    try {
-			destination = in.readLine();
+			destination = esql.in.readLine();
 			break;
 		    } catch (Exception e) {
-			System.out.println("Invalid input.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid input.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		} while (true);
@@ -565,114 +2337,92 @@ public class AirBooking{
 			// Check if seats are available on the date
 
 			if(flights.size() > 0) {
-			     System.out.println(String.format("%-17s%-17s%-15s%-15s",
+			     esql.out.println(String.format("%-17s%-17s%-15s%-15s",
 					     "FlightNum", "Origin", "Destination",  "Total Seats"));
-			     System.out.println("-------------------------------------------------------");
+			     esql.out.println("-------------------------------------------------------");
 
 			     for (int i = 0; i < flights.size(); ++i) {
-				 System.out.print(String.format("%-17s", flights.get(i).get(1))); // flightnum
-				 System.out.print(String.format("%-17s", flights.get(i).get(2))); // origin
-				 System.out.print(String.format("%-15s", flights.get(i).get(3))); // destination
-				 System.out.print(String.format("%-15s", flights.get(i).get(5))); // Total Seats
-				 System.out.print("\n");
-				 System.out.println();
+				 esql.out.print(String.format("%-17s", flights.get(i).get(1))); // flightnum
+				 esql.out.print(String.format("%-17s", flights.get(i).get(2))); // origin
+				 esql.out.print(String.format("%-15s", flights.get(i).get(3))); // destination
+				 esql.out.print(String.format("%-15s", flights.get(i).get(5))); // Total Seats
+				 esql.out.print("\n");
+				 esql.out.println();
 			     }
 			     
 			     // Get the flightnum
 			     do {
-				 System.out.print("Enter the flight number for the flight that you want: ");
+				 esql.out.print("Enter the flight number for the flight that you want: ");
 				 try {
 				     try {
-					 flightNum  = in.readLine();
+					 flightNum  = esql.in.readLine();
 					 // Check that the flight number isn't too long
 					 if (flightNum.length() > 6) {
-					     System.out.println("The flight number is too long!");
-					     if (!TryAgain()) return;
+					     esql.out.println("The flight number is too long!");
+					     if (!TryAgain(esql)) return;
 					     else continue;
 					 }
 		
 				     } catch (Exception e) {
-					 System.out.println("Invalid input!");
-					 if (!TryAgain()) return;
+					 esql.out.println("Invalid input!");
+					 if (!TryAgain(esql)) return;
 					 else continue;
 				     }
 
-				     // Check if flightnum exists
-				     String sqlflight = String.format("SELECT * FROM Flight F WHERE F.flightNum='%s';", flightNum);
-				     result = esql.executeQuery(sqlflight);
-				     if (result == 0) {
-					 System.out.println("The flight number does not exist, try again!");
-					 if(!TryAgain()) return;
+				     // Check if flightnum is one of the listed flights
+				     boolean listed = false;
+				     for (List<String> flight : flights)
+					 listed |= flight.get(1).trim().equals(flightNum);
+				     if (!listed) {
+					 esql.out.println("The flight number does not exist, try again!");
+					 if(!TryAgain(esql)) return;
 					 else continue;
 				     }
 				     else {
 					 break;
 				     } 
 				 } catch (Exception e) {
-				     System.out.println("Sorry, something went wrong.");
+				     esql.out.println("Sorry, something went wrong.");
 				     System.err.println(e.getMessage());
 				 }
 			     } while (true);
 			     
 			}
 
-			String sqlbook = String.format("SELECT F.flightNum, F.seats, F.seats-COUNT(*) " +
-						       "FROM Flight F, Booking B " +
-						       "WHERE F.flightNum=B.flightNum AND F.flightNum='%s' AND B.departure='%s' " +
-						       "GROUP BY F.flightNum, F.origin, F.destination, B.departure, F.seats;", flightNum, date.toString());	
-			List<List<String>> seat = esql.executeQueryAndReturnResult(sqlbook);
-				
-			if (seat.size() == 0 ) { // No seats taken
-			    // Check if passenger already booked flight
-			    String sqlbookcheck = String.format("SELECT * FROM Booking B WHERE B.departure='%s' AND B.flightNum='%s' AND B.pID='%s';"
-								,date.toString(),flightNum,pID);
-			    result = esql.executeQuery(sqlbookcheck);
-
-			    if (result == 0) { // didn't book
-				String sqlbookflight = String.format("INSERT INTO Booking (bookRef, departure, flightNum, pID) VALUES ('%s', '%s', '%s', '%d');",
-								     bookRef, date.toString(), flightNum, pID);
-				esql.executeUpdate(sqlbookflight);
-				System.out.println(String.format("Booked flight '%s'.", flightNum)); // TODO
-				return;
-			    } 
-			    else { // already booked
-				System.out.println("Flight is already booked for that passenger at that date");
-				if (!TryAgain()) return;
-				else break;
-			    }
+			// Claim a seat and book it in one transaction
+			Outcome outcome;
+			do {
+			    bookRef = newBookRef();
+			    outcome = esql.bookFlight(bookRef, pID, flightNum, date);
+			} while (outcome == Outcome.CONFLICT); // reference already taken, draw another
+
+			if (outcome == Outcome.OK) {
+			    esql.out.println(String.format("Booked flight '%s'. Booking reference: %s", flightNum, bookRef));
+			    return;
+			}
+			else if (outcome == Outcome.DUPLICATE) { // already booked
+			    esql.out.println("Flight is already booked for that passenger at that date");
+			    if (!TryAgain(esql)) return;
+			    else break;
 			}
-			else if (Integer.parseInt(seat.get(0).get(2)) > 0) { // Seats available
-			    // Check if passenger already booked flight
-			    String sqlbookcheck = String.format("SELECT * FROM Booking B WHERE B.departure='%s' AND B.flightNum='%s' AND B.pID='%s';"
-								,date.toString(),flightNum,pID);
-			    result = esql.executeQuery(sqlbookcheck);
-
-			    if (result == 0) {
-				String sqlbookflight = String.format("INSERT INTO Booking (bookRef, departure, flightNum, pID) VALUES ('%s', '%s', '%s', '%d');",
-								     bookRef, date.toString(), flightNum, pID);
-				esql.executeUpdate(sqlbookflight);
-				System.out.println(String.format("Booked flight '%s'.", flightNum)); // TODO
-				return;
-			    } 
-			    else {
-				System.out.println("Flight is already booked for that passenger at that date");
-				if (!TryAgain()) return;
-				else break;
-			    }
+			else if (outcome == Outcome.BUSY) { // shed by admission control
+			    esql.out.println("Too many bookings for this flight right now, please try again in a moment.");
+			    if (!TryAgain(esql)) return;
+			    else break;
 			}
 			else { // No seats available
-			    System.out.println("No available seats, please enter a differnt departure, origin, or destination");
-			    if(!TryAgain()) return;
+			    esql.out.println("No available seats, please enter a differnt departure, origin, or destination");
+			    if(!TryAgain(esql)) return;
 			    else break;
 			}
 		    }
 		    else { // Flight doesn't exist
-		    	System.out.println("Flight does not exist.");
-			if (!TryAgain()) return;
+		    	esql.out.println("Flight does not exist.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		} catch (Exception e) {
-		    System.out.println("Sorry, something went wrong.");
+		    esql.out.println("Sorry, something went wrong.");
 		    System.err.println(e.getMessage());
 		    return;
 		}
@@ -688,45 +2438,43 @@ public class AirBooking{
 	String flightNum = null;
 	int score = -1;
 	String comment = null;
-	int result = 0;
+	boolean[] checks = null;
 
 	// Get passenger and flight pair
 	do {
 	    // Get the passport number, then passeneger id
 	    do {
-		System.out.print("Enter the passenger's passport number: ");
+		esql.out.print(esql._search == null ? "Enter the passenger's passport number: "
+			       : "Enter the passenger's passport number or name: ");
 
 		try {
-		    passport = in.readLine();
-		    if (passport.length() > 10 || !passport.matches("[a-zA-Z0-9]+")) {
-			System.out.println("Invalid passport number.");
-			if (!TryAgain()) return;
+		    passport = esql.in.readLine();
+		    if (esql._search == null && (passport.length() > 10 || !passport.matches("[a-zA-Z0-9]+"))) {
+			esql.out.println("Invalid passport number.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 
 		} catch (Exception e) {
-		    System.out.println("Invalid input!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 
 		try {
-		    // Check if passport number exists
-		    String sqlpassNum = String.format("SELECT pID FROM Passenger WHERE passNum='%s';", passport);
-		    result = esql.executeQuery(sqlpassNum);
-		    if (result == 0) { // passport doesn't exist
-			System.out.println("A passenger with that passport number can not be found.");
-			if (!TryAgain()) return;
+		    // Get the pid associated with the passport number, if it exists
+		    Integer found = findPassenger(esql, passport);
+		    if (found == null) { // passport doesn't exist
+			esql.out.println("A passenger with that passport number can not be found.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    else { // passport exists
-			// Get the pid associated with the passport number
-			List<List<String>> pIDS = esql.executeQueryAndReturnResult(sqlpassNum);
-			pID = Integer.parseInt(pIDS.get(0).get(0));
+			pID = found;
 			break;
 		    } 
 		} catch (Exception e) {
-		    System.out.println("Sorry, something went wrong.");
+		    esql.out.println("Sorry, something went wrong.");
 		    System.err.println(e.getMessage());
 		    return;
 		}
@@ -735,72 +2483,55 @@ public class AirBooking{
 
 	    // Get flight number
 	    do {
-		System.out.print("Enter the flight number: ");
+		esql.out.print("Enter the flight number: ");
 		try {
-		    flightNum = in.readLine();
+		    flightNum = esql.in.readLine();
 		    if (flightNum.length() > 8) {
-			System.out.println("Invalid flight number.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid flight number.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    else if (!flightNum.matches("[a-zA-Z0-9]+")) {
-			System.out.println("The flight number has invalid characters!");
-			if (!TryAgain()) return;
+			esql.out.println("The flight number has invalid characters!");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 
-		    // Check if flight number exists
-		    String sqlflightNum = String.format("SELECT * FROM Flight WHERE flightNum = '%s';", flightNum);
+		    // Check if the flight exists, was booked and was rated by the passenger at once
 		    try {
-		    result = esql.executeQuery(sqlflightNum);
-		    if (result == 0) { // flight number doesn't exist
-			System.out.println(String.format("Flight '%s' doesn't exist.", flightNum));
-			if (!TryAgain()) return;
+		    checks = esql.reviewChecks(pID, flightNum);
+		    if (!checks[0]) { // flight number doesn't exist
+			esql.out.println(String.format("Flight '%s' doesn't exist.", flightNum));
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    else { // flight number exists
 			break;
 		    }
 		    } catch (Exception e) {
-			System.out.println("Something went wrong!");
-			System.out.println(e.getMessage());
+			esql.out.println("Something went wrong!");
+			esql.out.println(e.getMessage());
 			return;
 		    }
 		} catch (Exception e) {
-		    System.out.println("Invalid input.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 
 	    // Check if a booking exists.
-	    try {
-		String sqlbooking = String.format("SELECT * FROM Booking WHERE flightNum='%s' AND pID='%d';", flightNum, pID);
-		result = esql.executeQuery(sqlbooking);
-		if (result == 0) { // booking doesn't exist
-		    System.out.println(String.format("Passenger with passport '%s' never booked flight '%s'.", passport, flightNum));
-		    if (!TryAgain()) return;
-		    else continue;
-		}
-	    } catch (Exception e) {
-		System.out.println("Sorry, something went wrong.");
-		System.err.println(e.getMessage());
-		return;
+	    if (!checks[1]) { // booking doesn't exist
+		esql.out.println(String.format("Passenger with passport '%s' never booked flight '%s'.", passport, flightNum));
+		if (!TryAgain(esql)) return;
+		else continue;
 	    }
 
 	    // Check if a rating doesn't already exists
-	    try {
-		String sqlrating = String.format("SELECT * FROM Ratings WHERE flightnum='%s' AND pID='%d'", flightNum, pID);
-		result = esql.executeQuery(sqlrating);
-		if (result != 0) { // rating exists
-		    System.out.println("Passenger already left a rating for this flight.");
-		    if (!TryAgain()) return;
-		    else continue;
-		}
-	    } catch (Exception e) {
-		System.out.println("Sorry, something went wrong.");
-		System.err.println(e.getMessage());
-		return;
+	    if (checks[2]) { // rating exists
+		esql.out.println("Passenger already left a rating for this flight.");
+		if (!TryAgain(esql)) return;
+		else continue;
 	    }
 
 	    break;
@@ -809,45 +2540,53 @@ public class AirBooking{
 	// Bookings exist and no rating exists yet; found pID and flightNum
 	// Get the score
 	do {
-	    System.out.print("Enter the score (from 0 to 5): ");
+	    esql.out.print("Enter the score (from 0 to 5): ");
 	    try {
-		score = Integer.parseInt(in.readLine());
+		score = Integer.parseInt(esql.in.readLine());
 		    
 		// Check if score is in valid range
 		if (score > 5 || score < 0) {
-		    System.out.print("Invalid range!");
-		    if (!TryAgain()) return;
+		    esql.out.print("Invalid range!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else {
 		    break;
 		}
 	    } catch (Exception e) {
-		System.out.println("Invalid input, please enter an integer.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input, please enter an integer.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 		
 	// Get the comment
 	do {
-	    System.out.print("Enter the comment: ");
+	    esql.out.print("Enter the comment: ");
 	    try {
-		comment = in.readLine();
+		comment = esql.in.readLine();
 		break;
 	    } catch (Exception e) {
-		System.out.println("Invalid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 	 
 	// Execute the insert
 	try {
-	    sql = String.format("INSERT INTO Ratings (pID, flightNum, score, comment) VALUES ('%d', '%s', '%d', '%s')", pID, flightNum, score, comment);
-	    esql.executeUpdate(sql);
+	    esql.submitRating(pID, flightNum, score, comment).get();
+	} catch (ExecutionException e) {
+	    // another session may have rated the flight since the checks above
+	    if (e.getCause() instanceof SQLException && isUniqueViolation((SQLException) e.getCause())) {
+		esql.out.println("Passenger already left a rating for this flight.");
+		return;
+	    }
+	    esql.out.println("Insertion failed! Please try again.");
+	    System.err.println(e.getCause().getMessage());
+	    return;
 	} catch (Exception e) {
-	    System.out.println("Insertion failed! Please try again.");
+	    esql.out.println("Insertion failed! Please try again.");
 	    System.err.println(e.getMessage());
 	    return;
 	}
@@ -870,13 +2609,13 @@ public class AirBooking{
 	    // Get the Airline Id
 	    do {
 		// TODO maybe there is another way to get the Airline ID. User won't know it
-		System.out.print("Enter the Airline ID: ");
+		esql.out.print("Enter the Airline ID: ");
 
 		try {
-		    airID = Integer.parseInt(in.readLine());
+		    airID = Integer.parseInt(esql.in.readLine());
 		} catch (Exception e) {
-		    System.out.println("Invalid input!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 
@@ -885,15 +2624,15 @@ public class AirBooking{
 		    String sqlairid = String.format("SELECT * FROM Airline A WHERE A.airId='%d';", airID);
 		    result = esql.executeQuery(sqlairid);
 		    if (result == 0) { // airline already exists
-			System.out.println("The airline does not exist, please enter a different airline id.");
-			if (!TryAgain()) return;
+			esql.out.println("The airline does not exist, please enter a different airline id.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    else { 
 			break;
 		    } 
 		} catch (Exception e) {
-		    System.out.println("Sorry, something went wrong.");
+		    esql.out.println("Sorry, something went wrong.");
 		    System.err.println(e.getMessage());
 		    return;
 		}
@@ -901,18 +2640,18 @@ public class AirBooking{
 
 	    // Get the flight number
 	    do {
-		System.out.print("Enter the flight number: ");
+		esql.out.print("Enter the flight number: ");
 		try {
-		    flightNum = in.readLine();
+		    flightNum = esql.in.readLine();
 		    if (flightNum.length() > 8) {
-			System.out.println("Invalid flight number.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid flight number.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while(true);
@@ -920,168 +2659,147 @@ public class AirBooking{
 	 
 	    // Get the origin
 	    do {
-		System.out.print("Enter the origin: ");
+		esql.out.print("Enter the origin: ");
 		try {
-		    origin = in.readLine();
+		    origin = esql.in.readLine();
 		    if (origin.length() > 16) {
-			System.out.println("Invalid origin.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid origin.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 		   
 	    // Get the destination
 	    do {
-		System.out.print("Enter the destination: ");
+		esql.out.print("Enter the destination: ");
 		try {
-		    destination = in.readLine();
+		    destination = esql.in.readLine();
 		    if (destination.length() > 16) {
-			System.out.println("Invalid destination.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid destination.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 	
 	    // Get the plane
 	    do {
-		System.out.print("Enter the plane: ");
+		esql.out.print("Enter the plane: ");
 		try {
-		    plane = in.readLine();
+		    plane = esql.in.readLine();
 		    if (plane.length() > 16) {
-			System.out.println("Invalid plane.");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid plane.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 
 	    // Get the seat number
 	    do {
-		System.out.print("Enter the seat number: ");
+		esql.out.print("Enter the seat number: ");
 		try {
-		    seat = Integer.parseInt(in.readLine());
+		    seat = Integer.parseInt(esql.in.readLine());
 		    if (seat >= 500 || seat <= 0) {
-			System.out.println("Seat count must be between 0 and 500.");
-			if (!TryAgain()) return;
+			esql.out.println("Seat count must be between 0 and 500.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input. Please enter an integer.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input. Please enter an integer.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 
 	    // Get the duration
 	    do {
-		System.out.print("Enter the duration: ");
+		esql.out.print("Enter the duration: ");
 		try {
-		    duration = Integer.parseInt(in.readLine());
+		    duration = Integer.parseInt(esql.in.readLine());
 		    if (duration > 24 || duration <= 0) {
-			System.out.println("Duration must be between 0 and 25.");
-			if (!TryAgain()) return;
+			esql.out.println("Duration must be between 0 and 25.");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input. Please enter an integer.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input. Please enter an integer.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 	
 	    // Ask user if they want to update or insert
 	    int choice = 0;
-	    System.out.println("1. Insert this flight.");
-	    System.out.println("2. Update this flight.");
+	    esql.out.println("1. Insert this flight.");
+	    esql.out.println("2. Update this flight.");
 	    do {
-		System.out.print("Choose 1 or 2: ");
+		esql.out.print("Choose 1 or 2: ");
 		try {
-		    choice = Integer.parseInt(in.readLine());
+		    choice = Integer.parseInt(esql.in.readLine());
 		    if (choice != 1 && choice != 2) {
-			System.out.println("Invalid choice!");
-			if (!TryAgain()) return;
+			esql.out.println("Invalid choice!");
+			if (!TryAgain(esql)) return;
 			else continue;
 		    }
 		    break;
 		} catch (Exception e) {
-		    System.out.println("Invalid input!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid input!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 	    } while (true);
 
 	    if (choice == 1) { // Insert
 		try {
-		    // Check if flight already exists
-		    String sqlcheck = String.format("SELECT * " +
-						    "FROM Flight F " +
-						    "WHERE F.flightNum='%s';",
-						    flightNum);
-		    result = esql.executeQuery(sqlcheck);
-
-		    if(result == 0) { // Flight doesn't exist
-			String sql = String.format("INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) " +
-						   "VALUES ('%d','%s','%s','%s','%s', '%d','%d');",
-						   airID, flightNum, origin, destination, plane, seat, duration);
-			esql.executeUpdate(sql);
+		    // The primary key rejects the insert if the flight already exists
+		    if (esql.insertRoute(airID, flightNum, origin, destination, plane, seat, duration) == Outcome.OK) {
 			return;
 		    }
 		    else {
-			System.out.println("Flight already exists, try entering different input.");
-			if(!TryAgain()) return;
+			esql.out.println("Flight already exists, try entering different input.");
+			if(!TryAgain(esql)) return;
 			else continue;
 		    }
 
 		} catch (Exception e) {
-		    System.out.println("Something went wrong.");
+		    esql.out.println("Something went wrong.");
 		    System.err.println(e.getMessage());
 		    return;
 		}
 	    }
 	    else if (choice == 2) { // Update
 		try {
-		    // Check if flight already exists
-		    String sqlcheck = String.format("SELECT * " +
-						    "FROM Flight F " +
-						    "WHERE F.flightNum='%s';",
-						    flightNum);
-		    result = esql.executeQuery(sqlcheck);
-
-		    if(result != 0) { // Flight exists
-			String sql = String.format("UPDATE Flight " +
-						   "SET airId='%d', origin='%s', destination='%s', plane='%s', seats='%d', duration='%d' " +
-						   "WHERE flightNum='%s';",
-						   airID, origin, destination, plane, seat, duration, flightNum);
-			esql.executeUpdate(sql);
+		    // The update touches no row if the flight doesn't exist
+		    if (esql.updateRoute(airID, flightNum, origin, destination, plane, seat, duration) == Outcome.OK) {
 			return;
 		    }
 		    else {
-			System.out.println("Flight doesn't exist.");
-			if(!TryAgain()) return;
+			esql.out.println("Flight doesn't exist.");
+			if(!TryAgain(esql)) return;
 			else continue;
 		    }
 
 		} catch (Exception e) {
-		    System.out.println("Something went wrong.");
+		    esql.out.println("Something went wrong.");
 		    System.err.println(e.getMessage());
 		    return;
 		}
@@ -1098,64 +2816,67 @@ public class AirBooking{
 	
 	// Get the origin
 	do {
-	    System.out.print("Enter the origin: ");
+	    esql.out.print("Enter the origin: ");
 	    try {
-		origin = in.readLine();
+		origin = esql.in.readLine();
 		if (origin.length() > 16) {
-		    System.out.println("The origin name is too long.");
-		    if (!TryAgain()) return;
+		    esql.out.println("The origin name is too long.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
-		else if (!origin.matches("[a-zA-Z]+")) {
-		    System.out.println("The origin has invalid characters!");
-		    if (!TryAgain()) return;
+		else if (!origin.matches("[a-zA-Z]+( [a-zA-Z]+)*")) {
+		    esql.out.println("The origin has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
+		origin = findCity(esql, origin);
 		break;
 	    } catch (Exception e) {
-		System.out.println("Invalid input.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 	   
 	// Get the destination
 	do {
-	    System.out.print("Enter the destination: ");
+	    esql.out.print("Enter the destination: ");
 	    try {
-		destination = in.readLine();
+		destination = esql.in.readLine();
 		if (destination.length() > 16) {
-		    System.out.println("The destination name is too long.");
-		    if (!TryAgain()) return;
+		    esql.out.println("The destination name is too long.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
-		else if (!destination.matches("[a-zA-Z]+")) {
-		    System.out.println("The destination has invalid characters!");
-		    if (!TryAgain()) return;
+		else if (!destination.matches("[a-zA-Z]+( [a-zA-Z]+)*")) {
+		    esql.out.println("The destination has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
+		destination = findCity(esql, destination);
 		break;
 	    } catch (Exception e) {
-		System.out.println("Invalid input.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 	
 	// Execute query
-	sql = String.format("SELECT flightNum, origin, destination, plane, duration " +
-			    "FROM Flight WHERE origin='%s' AND destination='%s';", origin, destination);
 	try {
-	    result = esql.executeQueryAndPrintResult(sql);
+	    List<List<String>> flights = esql.listFlights(origin, destination);
+
+	    if (flights.size() == 0) {
+		esql.out.println(String.format("There are no flights from '%s' to '%s'.", origin, destination));
+		return;
+	    }
+	    esql.printListing(new String[] { "Flight", "Origin", "Destination", "Plane", "Duration" },
+			      new int[] { 9, 17, 17, 17, 0 }, flights);
 	} catch (Exception e) {
-	    System.out.println("Sorry, something went wrong.");
+	    esql.out.println("Sorry, something went wrong.");
 	    System.err.println(e.getMessage());
 	    return;
 	}
-	
-	if (result == 0) {
-	    System.out.println(String.format("There are no flights from '%s' to '%s'.", origin, destination));
-	}
     }
 	
     public static void ListMostPopularDestinations(AirBooking esql){//6
@@ -1165,47 +2886,31 @@ public class AirBooking{
 
 	// Get k
 	do {
-	    System.out.print("Enter the number of destinations to list: ");
+	    esql.out.print("Enter the number of destinations to list: ");
 	    try {
-		k = Integer.parseInt(in.readLine());
+		k = Integer.parseInt(esql.in.readLine());
 		if (k <= 0) {
-		    System.out.println("Invalid range!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid range!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else {
 		    break;
 		}
 	    } catch (Exception e) {
-		System.out.println("Invalid input, please enter an integer.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input, please enter an integer.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 
 	// List highest rated routes
 	try {	
-	    System.out.println(String.format("%-25s%-9s",
-						 "Destination", "Number of Flights"));
-	    System.out.println("-------------------------------------------");
-
 	    // Get list of most popular destinations based on number of flights to each one
-	    sql = String.format("SELECT F.destination, COUNT(*) " +
-				"FROM Flight F " + 
-				"GROUP BY F.destination " +
-				"ORDER BY COUNT(*) DESC;");
-
-	    List<List<String>> flights = esql.executeQueryAndReturnResult(sql);
-	    
-	    for (int i = 0; i < flights.size() && i < k; ++i) {
-
-		// Print result
-		System.out.print(String.format("%-25s", flights.get(i).get(0))); // destination
-		System.out.print(String.format("%-9s", flights.get(i).get(1))); // number of flight
-		System.out.println();
-	    }
+	    List<List<String>> flights = esql.popularDestinations(k);
+	    esql.printListing(new String[] { "Destination", "Number of Flights" }, new int[] { 25, 0 }, flights);
 	} catch (Exception e) {
-	    System.out.println("Sorry, something went wrong.");
+	    esql.out.println("Sorry, something went wrong.");
 	    System.err.println(e.getMessage());
 	    return;
 	}
@@ -1218,59 +2923,39 @@ public class AirBooking{
 
 	// Get k
 	do {
-	    System.out.print("Enter the number of routes to list: ");
+	    esql.out.print("Enter the number of routes to list: ");
 	    try {
-		k = Integer.parseInt(in.readLine());
+		k = Integer.parseInt(esql.in.readLine());
 		if (k <= 0) {
-		    System.out.println("Invalid range!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid range!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else {
 		    break;
 		}
 	    } catch (Exception e) {
-		System.out.println("Invalid input, please enter an integer.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input, please enter an integer.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 
 	// List highest rated routes
 	try {	
-	    System.out.println(String.format("%-25s%-9s%-17s%-17s%-17s%s",
-						 "Airline", "Flight", "Origin", "Destination", "Plane", "Rating"));
-	    System.out.println("------------------------------------------------------------------------------------------------");
-
-	    // Get averge ratings of every flight in order
-	    sql = String.format("SELECT F.flightNum, AVG(R.score) " +
-				"FROM Flight F, Ratings R " +
-				"WHERE F.flightNum = R.flightNum " + 
-				"GROUP BY F.flightNum " +
-				"ORDER BY AVG(R.score) DESC;");
-
-	    List<List<String>> flights = esql.executeQueryAndReturnResult(sql);
-	    
-	    for (int i = 0; i < flights.size() && i < k; ++i) {
-		// Get flight info
-		sql = String.format("SELECT A.name, F.flightNum, F.origin, F.destination, F.plane " +
-				    "FROM Airline A, Flight F " + 
-				    "WHERE A.airId = F.airId AND F.flightNum='%s';", flights.get(i).get(0));
-		List<List<String>> info = esql.executeQueryAndReturnResult(sql);
-
-		// Print result
-		for (List<String> tuple : info) {
-		    System.out.print(String.format("%-25s", tuple.get(0))); // Airline name
-		    System.out.print(String.format("%-9s", tuple.get(1))); // Flight num
-		    System.out.print(String.format("%-17s", tuple.get(2))); // Origin
-		    System.out.print(String.format("%-17s", tuple.get(3))); // Destination
-		    System.out.print(String.format("%-17s", tuple.get(4))); // Plane
-		}
-		System.out.print(String.format("%.2f", Double.parseDouble(flights.get(i).get(1)))); // Average rating
-		System.out.println();
+	    // Get the k best routes with their average ratings in order
+	    List<List<String>> flights = esql.highestRatedRoutes(k);
+	    List<List<String>> rows = new ArrayList<List<String>>(flights.size());
+	    for (List<String> tuple : flights) {
+		List<String> row = new ArrayList<String>(tuple);
+		// average rating to two decimals
+		row.set(5, new BigDecimal(tuple.get(5)).setScale(2, RoundingMode.HALF_UP).toPlainString());
+		rows.add(row);
 	    }
+	    esql.printListing(new String[] { "Airline", "Flight", "Origin", "Destination", "Plane", "Rating" },
+			      new int[] { 25, 9, 17, 17, 17, 0 }, rows);
 	} catch (Exception e) {
-	    System.out.println("Sorry, something went wrong.");
+	    esql.out.println("Sorry, something went wrong.");
 	    System.err.println(e.getMessage());
 	    return;
 	}
@@ -1285,66 +2970,68 @@ public class AirBooking{
 
 	// Get k
 	do {
-	    System.out.print("Enter the number of flights to list: ");
+	    esql.out.print("Enter the number of flights to list: ");
 	    try {
-		k = Integer.parseInt(in.readLine());
+		k = Integer.parseInt(esql.in.readLine());
 		if (k <= 0) {
-		    System.out.println("Invalid range!");
-		    if (!TryAgain()) return;
+		    esql.out.println("Invalid range!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else {
 		    break;
 		}
 	    } catch (Exception e) {
-		System.out.println("Invalid input, please enter an integer.");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input, please enter an integer.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 
 	// Get the origin
 	do {
-	    System.out.print("Enter the origin: ");
+	    esql.out.print("Enter the origin: ");
 	    try {
-		origin = in.readLine();
+		origin = esql.in.readLine();
 		if (origin.length() > 16) {
-		    System.out.println("The name of the origin is too long.");
-		    if (!TryAgain()) return;
+		    esql.out.println("The name of the origin is too long.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
-		else if (!origin.matches("[a-zA-Z]+")) {
-		    System.out.println("The origin has invalid characters!");
-		    if (!TryAgain()) return;
+		else if (!origin.matches("[a-zA-Z]+( [a-zA-Z]+)*")) {
+		    esql.out.println("The origin has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
+		origin = findCity(esql, origin);
 		break;
 	    } catch (Exception e) {
-		System.out.println("Invalid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 	   
 	// Get the destination
 	do {
-	    System.out.print("Enter the destination: ");
+	    esql.out.print("Enter the destination: ");
 	    try {
-		destination = in.readLine();
+		destination = esql.in.readLine();
 		if (destination.length() > 16) {
-		    System.out.println("The name of the destination is too long.");
-		    if (!TryAgain()) return;
+		    esql.out.println("The name of the destination is too long.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
-		else if (!destination.matches("[a-zA-Z]+")) {
-		    System.out.println("The destination has invalid characters!");
-		    if (!TryAgain()) return;
+		else if (!destination.matches("[a-zA-Z]+( [a-zA-Z]+)*")) {
+		    esql.out.println("The destination has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
+		destination = findCity(esql, destination);
 		break;
 	    } catch (Exception e) {
-		System.out.println("Invalid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
@@ -1352,33 +3039,17 @@ public class AirBooking{
 	// Execute query
 	try {
 	    // Get flights in order of duration
-	    sql = String.format("SELECT A.name, F.flightNum, F.origin, F.destination, F.plane, F.duration " +
-				"FROM Flight F, Airline A " +
-				"WHERE F.airId=A.airId AND F.origin='%s' AND F.destination='%s' " + 
-				"ORDER BY F.duration ASC;", origin, destination);
-
-	    List<List<String>> flights = esql.executeQueryAndReturnResult(sql);
+	    List<List<String>> flights = esql.flightsByDuration(origin, destination, k);
 
 	    if (flights.size() == 0) {
-		System.out.println(String.format("There are no flights from '%s' to '%s'.", origin, destination));
+		esql.out.println(String.format("There are no flights from '%s' to '%s'.", origin, destination));
 	    }
 	    else {
-		System.out.println(String.format("%-25s%-9s%-17s%-17s%-17s%s",
-						 "Airline", "Flight", "Origin", "Destination", "Plane", "Duration"));
-		System.out.println("------------------------------------------------------------------------------------------------");
-	    }
-
-	    for (int i = 0; i < flights.size() && i < k; ++i) {
-		System.out.print(String.format("%-25s", flights.get(i).get(0))); // Airline name
-		System.out.print(String.format("%-9s", flights.get(i).get(1))); // Flight num
-		System.out.print(String.format("%-17s", flights.get(i).get(2))); // Origin
-		System.out.print(String.format("%-17s", flights.get(i).get(3))); // Destination
-		System.out.print(String.format("%-17s", flights.get(i).get(4))); // Plane
-		System.out.print(String.format("%d", Integer.parseInt(flights.get(i).get(5)))); // Duration
-		System.out.println();
+		esql.printListing(new String[] { "Airline", "Flight", "Origin", "Destination", "Plane", "Duration" },
+				  new int[] { 25, 9, 17, 17, 17, 0 }, flights);
 	    }
 	} catch (Exception e) {
-	    System.out.println("Sorry, something went wrong.");
+	    esql.out.println("Sorry, something went wrong.");
 	    System.err.println(e.getMessage());
 	    return;
 	}
@@ -1393,17 +3064,17 @@ public class AirBooking{
 	
 	// Get flight number
 	do {
-	    System.out.print("Enter the flight number: ");
+	    esql.out.print("Enter the flight number: ");
 	    try {
-		flightNum = in.readLine();
+		flightNum = esql.in.readLine();
 		if (flightNum.length() > 8) {
-		    System.out.println("The flight number is too long.");
-		    if (!TryAgain()) return;
+		    esql.out.println("The flight number is too long.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else if (!flightNum.matches("[a-zA-Z0-9]+")) {
-		    System.out.println("The flight number has invalid characters!");
-		    if (!TryAgain()) return;
+		    esql.out.println("The flight number has invalid characters!");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 
@@ -1412,103 +3083,285 @@ public class AirBooking{
 		try {
 		result = esql.executeQuery(sqlflightNum);
 		if (result == 0) { // flight number doesn't exist
-		    System.out.println("Flight doesn't exist, please enter a valid flight number.");
-		    if (!TryAgain()) return;
+		    esql.out.println("Flight doesn't exist, please enter a valid flight number.");
+		    if (!TryAgain(esql)) return;
 		    else continue;
 		}
 		else { // flight number exists
 		    break;
 		}
 		} catch (Exception e) {
-		    System.out.println("Something went wrong.");
-		    System.out.println(e.getMessage());
+		    esql.out.println("Something went wrong.");
+		    esql.out.println(e.getMessage());
 		    return;
 		}
 	    } catch (Exception e) {
-		System.out.println("Invlaid input!");
-		if (!TryAgain()) return;
+		esql.out.println("Invlaid input!");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 
 	// Get date
 	do {
-	    System.out.print("Enter the flight's date <YYYY-MM-DD>: ");
+	    esql.out.print("Enter the flight's date <YYYY-MM-DD>: ");
 	    try {
-		date = Date.valueOf(in.readLine());
+		date = Date.valueOf(esql.in.readLine());
 		// Date is valid
 		break;
 	    }
 	    catch (Exception e) {
-		System.out.println("Please enter a valid date. Use YYYY-MM-DD.");
-		if (!TryAgain()) return;
+		esql.out.println("Please enter a valid date. Use YYYY-MM-DD.");
+		if (!TryAgain(esql)) return;
 		else continue;
 	    }
 	} while (true);
 		
 	// Execute Query
 	try {
-	    sql = String.format("SELECT F.flightNum, F.origin, F.destination, B.departure, COUNT(*), F.seats, F.seats-COUNT(*) " +
-				"FROM Flight F, Booking B " +
-				"WHERE F.flightNum=B.flightNum AND F.flightNum='%s' AND B.departure='%s' " +
-				"GROUP BY F.flightNum, F.origin, F.destination, B.departure, F.seats;", flightNum, date.toString());
-
-	    List<List<String>> seats = esql.executeQueryAndReturnResult(sql);
-
-	    System.out.println(String.format("%-9s%-17s%-17s%-15s%-15s%-15s%-15s",
-					     "Flight", "Origin", "Destination", "Departure",
-					     "Booked Seats", "Total Seats", "Free Seats"));
-	    System.out.println("------------------------------------------------------------------------------------------------");
-
-	    if (seats.size() == 0) { // Every seat is free that day
-		sql = String.format("SELECT F.flightNum, F.origin, F.destination, F.seats " +
-				    "FROM Flight F " + 
-				    "WHERE F.flightNum='%s';", flightNum);
-		seats = esql.executeQueryAndReturnResult(sql);
-		System.out.print(String.format("%-9s", seats.get(0).get(0))); // Flight num
-		System.out.print(String.format("%-17s", seats.get(0).get(1))); // Origin
-		System.out.print(String.format("%-17s", seats.get(0).get(2))); // Destination
-		System.out.print(String.format("%-15s", date.toString())); // Departure
-		System.out.print(String.format("%-15s", "0")); // Booked Seats
-		System.out.print(String.format("%-15s", seats.get(0).get(3))); // Total Seats
-		System.out.print(String.format("%-15s", seats.get(0).get(3))); // Free Seats
-		System.out.println();
+	    List<String> seats = esql.seatAvailability(flightNum, date);
+
+	    if (seats == null) {
+		esql.out.println(String.format("There is no flight '%s'.", flightNum));
 		return;
 	    }
+	    esql.printListing(new String[] { "Flight", "Origin", "Destination", "Departure", "Booked Seats", "Total Seats", "Free Seats" },
+			      new int[] { 9, 17, 17, 15, 15, 15, 0 }, Collections.singletonList(seats));
+	} catch (Exception e) {
+	    esql.out.println("Sorry, something went wrong.");
+	    System.err.println(e.getMessage());
+	    return;
+	}
+    }
+
+    public static void CancelBooking(AirBooking esql){//10
+	//Cancel an existing booking
+	String bookRef = null;
+	List<String> booking = null;
+
+	// Get the booking reference
+	do {
+	    esql.out.print("Enter the booking reference: ");
+	    try {
+		bookRef = esql.in.readLine();
+		if (bookRef.length() > 10 || !bookRef.matches("[a-zA-Z0-9]+")) {
+		    esql.out.println("Invalid booking reference.");
+		    if (!TryAgain(esql)) return;
+		    else continue;
+		}
+	    } catch (Exception e) {
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
+		else continue;
+	    }
 
-	    for (int i = 0; i < seats.size(); ++i) {
-		System.out.print(String.format("%-9s", seats.get(i).get(0))); // Flight num
-		System.out.print(String.format("%-17s", seats.get(i).get(1))); // Origin
-		System.out.print(String.format("%-17s", seats.get(i).get(2))); // Destination
-		System.out.print(String.format("%-15s", seats.get(i).get(3))); // Departure
-		System.out.print(String.format("%-15s", seats.get(i).get(4))); // Booked Seats
-		System.out.print(String.format("%-15s", seats.get(i).get(5))); // Total Seats
-		System.out.print(String.format("%-15s", seats.get(i).get(6))); // Free Seats
-		System.out.println();
+	    try {
+		booking = esql.findBooking(bookRef);
+		if (booking == null) {
+		    esql.out.println(String.format("Booking '%s' doesn't exist.", bookRef));
+		    if (!TryAgain(esql)) return;
+		    else continue;
+		}
+		break;
+	    } catch (Exception e) {
+		esql.out.println("Sorry, something went wrong.");
+		System.err.println(e.getMessage());
+		return;
 	    }
+	} while (true);
+
+	// Execute the cancellation
+	try {
+	    Outcome outcome = esql.cancelBooking(bookRef, Integer.parseInt(booking.get(3)));
+	    if (outcome == Outcome.OK)
+		esql.out.println(String.format("Cancelled booking '%s' on flight '%s' at %s.", bookRef, booking.get(1), booking.get(0)));
+	    else if (outcome == Outcome.NOT_FOUND)
+		esql.out.println("The booking was cancelled by someone else.");
+	    else
+		esql.out.println("The booking was changed by someone else, please try again.");
 	} catch (Exception e) {
-	    System.out.println("Sorry, something went wrong.");
+	    esql.out.println("Cancellation failed! Please try again.");
 	    System.err.println(e.getMessage());
-	    return;
 	}
     }
 
-    public static boolean TryAgain() {
+    public static void ChangeBooking(AirBooking esql){//11
+	//Move an existing booking to another date and/or flight
+	String bookRef = null;
+	List<String> booking = null;
+	Date date = null;
+	String flightNum = null;
+
+	// Get the booking reference
+	do {
+	    esql.out.print("Enter the booking reference: ");
+	    try {
+		bookRef = esql.in.readLine();
+		if (bookRef.length() > 10 || !bookRef.matches("[a-zA-Z0-9]+")) {
+		    esql.out.println("Invalid booking reference.");
+		    if (!TryAgain(esql)) return;
+		    else continue;
+		}
+	    } catch (Exception e) {
+		esql.out.println("Invalid input!");
+		if (!TryAgain(esql)) return;
+		else continue;
+	    }
+
+	    try {
+		booking = esql.findBooking(bookRef);
+		if (booking == null) {
+		    esql.out.println(String.format("Booking '%s' doesn't exist.", bookRef));
+		    if (!TryAgain(esql)) return;
+		    else continue;
+		}
+		esql.out.println(String.format("Booking '%s' is on flight '%s' at %s.", bookRef, booking.get(1), booking.get(0)));
+		break;
+	    } catch (Exception e) {
+		esql.out.println("Sorry, something went wrong.");
+		System.err.println(e.getMessage());
+		return;
+	    }
+	} while (true);
+
+	do {
+	    // Get the new date, keep the old one if nothing is entered
+	    do {
+		esql.out.print("Enter the new date <YYYY-MM-DD> (empty to keep): ");
+		try {
+		    String line = esql.in.readLine();
+		    date = line.isEmpty() ? Date.valueOf(booking.get(0)) : Date.valueOf(line);
+		    break;
+		} catch (Exception e) {
+		    esql.out.println("Please enter a valid date. Use YYYY-MM-DD.");
+		    if (!TryAgain(esql)) return;
+		    else continue;
+		}
+	    } while (true);
+
+	    // Get the new flight number, keep the old one if nothing is entered
+	    do {
+		esql.out.print("Enter the new flight number (empty to keep): ");
+		try {
+		    flightNum = esql.in.readLine();
+		    if (flightNum.isEmpty()) {
+			flightNum = booking.get(1);
+		    }
+		    else if (flightNum.length() > 8 || !flightNum.matches("[a-zA-Z0-9]+")) {
+			esql.out.println("Invalid flight number.");
+			if (!TryAgain(esql)) return;
+			else continue;
+		    }
+		    break;
+		} catch (Exception e) {
+		    esql.out.println("Invalid input!");
+		    if (!TryAgain(esql)) return;
+		    else continue;
+		}
+	    } while (true);
+
+	    // Execute the change
+	    try {
+		Outcome outcome = esql.changeBooking(bookRef, Integer.parseInt(booking.get(3)), date, flightNum);
+		switch (outcome) {
+		case OK:
+		    esql.out.println(String.format("Booking '%s' moved to flight '%s' at %s.", bookRef, flightNum, date.toString()));
+		    return;
+		case NOT_FOUND:
+		    esql.out.println("The flight or the booking doesn't exist anymore.");
+		    break;
+		case NO_SEATS:
+		    esql.out.println("No available seats on that flight and date.");
+		    break;
+		case DUPLICATE:
+		    esql.out.println("The passenger already booked that flight at that date.");
+		    break;
+		case CONFLICT:
+		    esql.out.println("The booking was changed by someone else, please start over.");
+		    return;
+		}
+		if (!TryAgain(esql)) return;
+	    } catch (Exception e) {
+		esql.out.println("Sorry, something went wrong.");
+		System.err.println(e.getMessage());
+		return;
+	    }
+	} while (true);
+    }
+
+    /**
+     * Method to find a passenger by passport number or, with the search
+     * index, by name: the passengers whose name matches are listed for the
+     * user to choose from.
+     *
+     * @param esql the session
+     * @param input a passport number or a name
+     * @return the passenger's pID or null if none was found or chosen
+     * @throws java.sql.SQLException when failed to execute the query
+     * @throws java.io.IOException when failed to read the choice
+     */
+    public static Integer findPassenger(AirBooking esql, String input) throws SQLException, IOException {
+	Integer found = esql.findPassengerId(input);
+	if (found != null || esql._search == null) return found;
+	SearchIndex.Match chosen = choose(esql, esql._search.passengers(input, SUGGESTIONS));
+	return chosen == null ? null : chosen.id;
+    }
+
+    /**
+     * Method to spell a city the way it is stored or, if no flight goes from
+     * or to it, to let the user choose one of the cities it looks like.
+     *
+     * @param esql the session
+     * @param input the city as typed
+     * @return the city chosen, or the input if there is no search index or nothing was chosen
+     * @throws java.io.IOException when failed to read the choice
+     */
+    public static String findCity(AirBooking esql, String input) throws IOException {
+	if (esql._search == null) return input;
+	String city = esql._search.city(input);
+	if (city != null) return city;
+	SearchIndex.Match chosen = choose(esql, esql._search.cities(input, SUGGESTIONS));
+	return chosen == null ? input : chosen.text;
+    }
+
+    // Lists the matches and reads the number of the one the user meant; null for none.
+    private static SearchIndex.Match choose(AirBooking esql, List<SearchIndex.Match> matches) throws IOException {
+	if (matches.isEmpty()) return null;
+	esql.out.println("Did you mean:");
+	for (int i = 0; i < matches.size(); ++i) {
+	    SearchIndex.Match match = matches.get(i);
+	    esql.out.println(String.format("%d. %s%s", i + 1, match.text, match.detail == null ? "" : " (" + match.detail + ")"));
+	}
+	esql.out.print("Enter a number, or nothing for none of these: ");
+	String answer = esql.in.readLine();
+	try {
+	    int choice = Integer.parseInt(answer.trim());
+	    if (choice >= 1 && choice <= matches.size()) return matches.get(choice - 1);
+	} catch (NumberFormatException | NullPointerException e) {
+	    // none of these.
+	}
+	return null;
+    }
+
+    public static boolean TryAgain(AirBooking esql) {
 	do {
 	    try {
-		System.out.print("Try again (y/n)? ");
-		String answer = in.readLine();
-		if (answer.charAt(0) == 'y' || answer.charAt(0) == 'Y') {
+		esql.out.print("Try again (y/n)? ");
+		String answer = esql.in.readLine();
+		if (answer == null) { // end of input
+		    return false;
+		}
+		else if (answer.charAt(0) == 'y' || answer.charAt(0) == 'Y') {
 		    return true;
 		}
 		else if (answer.charAt(0) == 'n' || answer.charAt(0) == 'N') {
 		    return false;
 		}
 		else {
-		    System.out.println("Please enter y or n.");
+		    esql.out.println("Please enter y or n.");
 		}
 	    } catch(Exception e) {
-		System.out.println("Invalid input.");
+		esql.out.println("Invalid input.");
 	    }
 	} while(true);
     }
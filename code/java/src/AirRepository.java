@@ -0,0 +1,142 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * The business operations on passengers, flights, bookings and ratings,
+ * independent of where the data is kept. AirBooking implements them on
+ * PostgreSQL, MemoryRepository in memory. Records are returned as lists of
+ * strings in the column order documented on each method, the way the
+ * queries return them.
+ */
+
+public interface AirRepository {
+    /**
+     * Method to add a passenger.
+     *
+     * @return the pID of the new passenger or null if the passport number is already in use
+     */
+    Integer addPassenger(String passNum, String fullName, Date bdate, String country) throws SQLException;
+
+    /**
+     * Method to look up a passenger by passport number.
+     *
+     * @return the passenger's pID or null if there is no such passenger
+     */
+    Integer findPassengerId(String passNum) throws SQLException;
+
+    /**
+     * Method to book a seat for a passenger.
+     *
+     * @return OK, NOT_FOUND, NO_SEATS, DUPLICATE if the passenger already booked
+     *         the flight at that date, CONFLICT if the reference is taken, or BUSY
+     */
+    AirBooking.Outcome bookFlight(String bookRef, int pID, String flightNum, Date departure) throws SQLException;
+
+    /**
+     * Method to look up a booking by its reference.
+     *
+     * @return the record (departure, flightNum, pID, version) or null if there is no such booking
+     */
+    List<String> findBooking(String bookRef) throws SQLException;
+
+    /**
+     * Method to cancel a booking if it still has the given version.
+     *
+     * @return OK, NOT_FOUND or CONFLICT if the booking was changed meanwhile
+     */
+    AirBooking.Outcome cancelBooking(String bookRef, int version) throws SQLException;
+
+    /**
+     * Method to move a booking to another flight and/or date if it still has
+     * the given version.
+     *
+     * @return OK, NOT_FOUND, NO_SEATS, DUPLICATE or CONFLICT
+     */
+    AirBooking.Outcome changeBooking(String bookRef, int version, Date departure, String flightNum) throws SQLException;
+
+    /**
+     * Method to add a passenger's rating of a flight.
+     *
+     * @return the rID of the new rating
+     * @throws java.sql.SQLException with SQLState 23505 when the passenger already rated the flight
+     */
+    int addRating(int pID, String flightNum, int score, String comment) throws SQLException;
+
+    /**
+     * Method to add a passenger's rating of a flight, possibly together with
+     * others. By default it is written right away with addRating.
+     *
+     * @return a future completed with the rID once the rating is stored
+     */
+    default CompletableFuture<Integer> submitRating(int pID, String flightNum, int score, String comment) {
+	CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+	try {
+	    done.complete(addRating(pID, flightNum, score, comment));
+	} catch (SQLException e) {
+	    done.completeExceptionally(e);
+	}
+	return done;
+    }
+
+    /**
+     * Method to check whether a passenger can rate a flight.
+     *
+     * @return { the flight exists, the passenger booked it, the passenger already rated it }
+     */
+    boolean[] reviewChecks(int pID, String flightNum) throws SQLException;
+
+    /**
+     * Method to insert a new route.
+     *
+     * @return OK or DUPLICATE if the flight number already exists
+     */
+    AirBooking.Outcome insertRoute(int airId, String flightNum, String origin, String destination,
+				   String plane, int seats, int duration) throws SQLException;
+
+    /**
+     * Method to update an existing route.
+     *
+     * @return OK or NOT_FOUND if the flight number doesn't exist
+     */
+    AirBooking.Outcome updateRoute(int airId, String flightNum, String origin, String destination,
+				   String plane, int seats, int duration) throws SQLException;
+
+    /**
+     * Method to list the flights between two cities.
+     *
+     * @return records of (flightNum, origin, destination, plane, duration)
+     */
+    List<List<String>> listFlights(String origin, String destination) throws SQLException;
+
+    /**
+     * Method to list the k destinations with the most flights to them.
+     *
+     * @return records of (destination, number of flights)
+     */
+    List<List<String>> popularDestinations(int k) throws SQLException;
+
+    /**
+     * Method to list the k routes with the highest average rating.
+     *
+     * @return records of (airline name, flightNum, origin, destination, plane, average score)
+     */
+    List<List<String>> highestRatedRoutes(int k) throws SQLException;
+
+    /**
+     * Method to list the k shortest flights between two cities.
+     *
+     * @return records of (airline name, flightNum, origin, destination, plane, duration)
+     */
+    List<List<String>> flightsByDuration(String origin, String destination, int k) throws SQLException;
+
+    /**
+     * Method to count the booked and free seats of a flight on a given date.
+     *
+     * @return the record (flightNum, origin, destination, departure, booked, seats, free)
+     *         or null if the flight doesn't exist
+     */
+    List<String> seatAvailability(String flightNum, Date departure) throws SQLException;
+}
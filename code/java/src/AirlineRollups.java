@@ -0,0 +1,273 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Airline dashboard: the routes of every airline, the flights it operated
+ * and the seats it offered and sold each day, its load factor and its
+ * average rating, kept in summary tables (see create.sql) so the dashboard
+ * reads a few rows by key however many bookings there are.
+ *
+ * Triggers log every seat booked or freed and every change of a flight to
+ * RollupDelta, which only ever gets inserts, so bookings of the same
+ * airline never wait for each other on a summary row. refresh folds the
+ * log into the summaries: it deletes the committed log rows and applies
+ * them in one transaction, so each is applied exactly once, adds the seats
+ * to FlightDay, and recomputes AirlineDay only for the airlines and days
+ * they touched and AirlineRollup only for those airlines. The average
+ * rating comes from the summaries of RatingAnalytics, refreshed along.
+ */
+
+public class AirlineRollups {
+    // advisory lock key held while the log is folded in ("rollup" in ASCII)
+    private static final long REFRESH_LOCK = 0x726f6c6c7570L;
+
+    // the airlines and days touched by the seats booked (?, ?) and the flights changed (?), with their old airline (?, ?)
+    private static final String TOUCHED =
+	"WITH T AS (SELECT F.airId, K.d AS day FROM unnest(?::text[], ?::date[]) K(f, d) JOIN Flight F ON F.flightNum = K.f " +
+	"           UNION " +
+	"           SELECT F.airId, D.day FROM unnest(?::text[]) C(f) JOIN Flight F ON F.flightNum = C.f " +
+	"           JOIN FlightDay D ON D.flightNum = C.f " +
+	"           UNION " +
+	"           SELECT C.a, D.day FROM unnest(?::text[], ?::int[]) C(f, a) JOIN FlightDay D ON D.flightNum = C.f) ";
+
+    // columns of the dashboard, in the order of the records returned
+    private static final String DASHBOARD =
+	"SELECT A.airId, A.name, COALESCE(R.routes, 0), COALESCE(R.capacity, 0), COALESCE(R.days, 0), COALESCE(R.flights, 0), " +
+	"       COALESCE(R.seats, 0), COALESCE(R.booked, 0), ROUND(R.booked::numeric / NULLIF(R.seats, 0), 3), S.ratings, " +
+	"       ROUND(S.total::numeric / S.ratings, 2) " +
+	"FROM Airline A LEFT JOIN AirlineRollup R ON R.airId = A.airId " +
+	"LEFT JOIN LATERAL (SELECT SUM(C.ratings) AS ratings, SUM(C.score * C.ratings) AS total " +
+	"                   FROM AirlineScore C WHERE C.airId = A.airId HAVING SUM(C.ratings) > 0) S ON TRUE " +
+	"%s ORDER BY A.airId";
+
+    // the same from the base tables
+    private static final String RAW_DASHBOARD =
+	"SELECT A.airId, A.name, COALESCE(R.routes, 0), COALESCE(R.capacity, 0), COALESCE(B.days, 0), COALESCE(B.flights, 0), " +
+	"       COALESCE(B.seats, 0), COALESCE(B.booked, 0), ROUND(B.booked::numeric / NULLIF(B.seats, 0), 3), S.ratings, " +
+	"       ROUND(S.average, 2) " +
+	"FROM Airline A " +
+	"LEFT JOIN (SELECT airId, COUNT(*) AS routes, SUM(seats) AS capacity FROM Flight GROUP BY airId) R ON R.airId = A.airId " +
+	"LEFT JOIN (SELECT F.airId, COUNT(DISTINCT X.departure) AS days, COUNT(*) AS flights, SUM(F.seats) AS seats, " +
+	"                  SUM(X.booked) AS booked " +
+	"           FROM (SELECT flightNum, departure, COUNT(*) AS booked FROM Booking GROUP BY flightNum, departure) X " +
+	"           JOIN Flight F ON F.flightNum = X.flightNum GROUP BY F.airId) B ON B.airId = A.airId " +
+	"LEFT JOIN (SELECT F.airId, COUNT(*) AS ratings, AVG(R.score) AS average " +
+	"           FROM Ratings R JOIN Flight F ON F.flightNum = R.flightNum GROUP BY F.airId) S ON S.airId = A.airId " +
+	"ORDER BY A.airId";
+
+    private final AirBooking esql;
+    private final RatingAnalytics ratings;
+
+    private long deltas = 0;
+    private long days = 0;
+    private long refreshes = 0;
+    private long refreshNanos = 0;
+
+    /**
+     * @param esql the session the rollups are read and written with
+     * @param ratings the rating summaries the average ratings are read from
+     */
+    public AirlineRollups(AirBooking esql, RatingAnalytics ratings) {
+	this.esql = esql;
+	this.ratings = ratings;
+    }
+
+    /**
+     * Method to fold the bookings, cancellations, booking changes and route
+     * changes since the last refresh into the rollups, and the ratings into
+     * the rating summaries.
+     *
+     * @return the number of log rows folded in
+     * @throws java.sql.SQLException when failed to read the log or to write the rollups
+     */
+    public int refresh() throws SQLException {
+	long start = System.nanoTime();
+	int[] counts = this.esql.inTransaction(this::fold);
+	this.ratings.refresh();
+	this.deltas += counts[0];
+	this.days += counts[1];
+	this.refreshes += 1;
+	this.refreshNanos += System.nanoTime() - start;
+	return counts[0];
+    }
+
+    // Returns { log rows, airline days recomputed }.
+    private int[] fold(Connection conn) throws SQLException {
+	AirBooking.query(conn, "SELECT pg_advisory_xact_lock(?)", REFRESH_LOCK);
+	List<List<String>> log = AirBooking.query(conn,
+	    "WITH D AS (DELETE FROM RollupDelta RETURNING flightNum, day, booked, airId) " +
+	    "SELECT flightNum, day, SUM(booked), airId, COUNT(*) FROM D GROUP BY flightNum, day, airId");
+	List<String> bookedFlights = new ArrayList<String>();
+	List<Date> bookedDays = new ArrayList<Date>();
+	List<Integer> booked = new ArrayList<Integer>();
+	List<String> changedFlights = new ArrayList<String>();
+	List<Integer> oldAirlines = new ArrayList<Integer>();
+	int rows = 0;
+	for (List<String> delta : log) {
+	    rows += Integer.parseInt(delta.get(4));
+	    if (delta.get(1) == null) {
+		changedFlights.add(delta.get(0));
+		oldAirlines.add(Integer.valueOf(delta.get(3)));
+	    } else if (Integer.parseInt(delta.get(2)) != 0) { // booked and freed again
+		bookedFlights.add(delta.get(0));
+		bookedDays.add(Date.valueOf(delta.get(1)));
+		booked.add(Integer.valueOf(delta.get(2)));
+	    }
+	}
+	if (rows == 0) return new int[] { 0, 0 };
+
+	Array flights = conn.createArrayOf("text", bookedFlights.toArray());
+	Array days = conn.createArrayOf("date", bookedDays.toArray());
+	Array changed = conn.createArrayOf("text", changedFlights.toArray());
+	Array airlines = conn.createArrayOf("int4", oldAirlines.toArray());
+	AirBooking.update(conn,
+	    "INSERT INTO FlightDay (flightNum, day, booked) SELECT * FROM unnest(?::text[], ?::date[], ?::int[]) " +
+	    "ON CONFLICT (flightNum, day) DO UPDATE SET booked = FlightDay.booked + EXCLUDED.booked",
+	    flights, days, conn.createArrayOf("int4", booked.toArray()));
+	AirBooking.update(conn,
+	    "DELETE FROM FlightDay D USING unnest(?::text[], ?::date[]) K(f, d) " +
+	    "WHERE D.flightNum = K.f AND D.day = K.d AND D.booked <= 0", flights, days);
+
+	int recomputed = AirBooking.update(conn, TOUCHED +
+	    "INSERT INTO AirlineDay (airId, day, flights, seats, booked) " +
+	    "SELECT T.airId, T.day, COUNT(*), SUM(F.seats), SUM(D.booked) " +
+	    "FROM T JOIN Flight F ON F.airId = T.airId JOIN FlightDay D ON D.flightNum = F.flightNum AND D.day = T.day " +
+	    "GROUP BY T.airId, T.day " +
+	    "ON CONFLICT (airId, day) DO UPDATE SET flights = EXCLUDED.flights, seats = EXCLUDED.seats, booked = EXCLUDED.booked",
+	    flights, days, changed, changed, airlines);
+	recomputed += AirBooking.update(conn, TOUCHED +
+	    "DELETE FROM AirlineDay A USING T WHERE A.airId = T.airId AND A.day = T.day AND NOT EXISTS " +
+	    "(SELECT 1 FROM Flight F JOIN FlightDay D ON D.flightNum = F.flightNum WHERE F.airId = T.airId AND D.day = T.day)",
+	    flights, days, changed, changed, airlines);
+
+	List<String> touchedFlights = new ArrayList<String>(bookedFlights);
+	touchedFlights.addAll(changedFlights);
+	AirBooking.update(conn,
+	    "WITH T AS (SELECT airId FROM Flight WHERE flightNum = ANY (?::text[]) UNION SELECT unnest(?::int[])) " +
+	    "INSERT INTO AirlineRollup (airId, routes, capacity, days, flights, seats, booked) " +
+	    "SELECT T.airId, " +
+	    "       (SELECT COUNT(*) FROM Flight F WHERE F.airId = T.airId), " +
+	    "       (SELECT COALESCE(SUM(F.seats), 0) FROM Flight F WHERE F.airId = T.airId), " +
+	    "       COUNT(D.day), COALESCE(SUM(D.flights), 0), COALESCE(SUM(D.seats), 0), COALESCE(SUM(D.booked), 0) " +
+	    "FROM T LEFT JOIN AirlineDay D ON D.airId = T.airId GROUP BY T.airId " +
+	    "ON CONFLICT (airId) DO UPDATE SET routes = EXCLUDED.routes, capacity = EXCLUDED.capacity, days = EXCLUDED.days, " +
+	    "flights = EXCLUDED.flights, seats = EXCLUDED.seats, booked = EXCLUDED.booked",
+	    conn.createArrayOf("text", touchedFlights.toArray()), airlines);
+	return new int[] { rows, recomputed };
+    }
+
+    /**
+     * Method to read the dashboard of every airline.
+     *
+     * @return records of (airId, name, routes, seats of the routes, days with bookings, flights
+     *         operated, seats offered, seats booked, load factor, ratings, average rating)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> airlines() throws SQLException {
+	return this.esql.withConnection(conn -> AirBooking.query(conn, String.format(DASHBOARD, "")));
+    }
+
+    /**
+     * Method to read the dashboard of one airline.
+     *
+     * @param airId the airline
+     * @return the record, as in airlines(), or null if there is no such airline
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<String> airline(final int airId) throws SQLException {
+	List<List<String>> result = this.esql.withConnection(conn -> AirBooking.query(conn,
+	    String.format(DASHBOARD, "WHERE A.airId = ?"), airId));
+	return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Method to read the days of an airline.
+     *
+     * @param airId the airline
+     * @param from the first day
+     * @param to the last day
+     * @return records of (day, flights operated, seats offered, seats booked, load factor) of
+     *         the days with bookings, in order
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> days(final int airId, final Date from, final Date to) throws SQLException {
+	return this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT day, flights, seats, booked, ROUND(booked::numeric / seats, 3) FROM AirlineDay " +
+	    "WHERE airId = ? AND day BETWEEN ? AND ? ORDER BY day", airId, from, to));
+    }
+
+    // The days of an airline from the base tables.
+    private List<List<String>> rawDays(final int airId, final Date from, final Date to) throws SQLException {
+	return this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT X.departure, COUNT(*), SUM(F.seats), SUM(X.booked), ROUND(SUM(X.booked)::numeric / SUM(F.seats), 3) " +
+	    "FROM (SELECT flightNum, departure, COUNT(*) AS booked FROM Booking WHERE departure BETWEEN ? AND ? " +
+	    "      GROUP BY flightNum, departure) X " +
+	    "JOIN Flight F ON F.flightNum = X.flightNum WHERE F.airId = ? " +
+	    "GROUP BY X.departure ORDER BY X.departure", from, to, airId));
+    }
+
+    /**
+     * Method to time the dashboard and the days of the busiest airline read
+     * from the rollups against the same computed with GROUP BY over the base
+     * tables, and to check that they agree.
+     *
+     * @param rounds the number of times each is read
+     * @return the report
+     * @throws java.sql.SQLException when failed to execute the queries
+     */
+    public String benchmark(int rounds) throws SQLException {
+	refresh();
+	List<List<String>> dashboard = airlines();
+	int busiest = -1;
+	long most = -1;
+	for (List<String> airline : dashboard)
+	    if (Long.parseLong(airline.get(7)) > most) {
+		most = Long.parseLong(airline.get(7));
+		busiest = Integer.parseInt(airline.get(0));
+	    }
+	final int airId = busiest;
+	final Date from = Date.valueOf("1900-01-01");
+	final Date to = Date.valueOf("9999-12-31");
+
+	long[] nanos = new long[4];
+	List<List<List<String>>> last = new ArrayList<List<List<String>>>();
+	for (int i = 0; i < 4; ++i)
+	    last.add(null);
+	for (int round = 0; round < rounds; ++round) {
+	    long start = System.nanoTime();
+	    last.set(0, airlines());
+	    nanos[0] += System.nanoTime() - start;
+	    start = System.nanoTime();
+	    last.set(1, this.esql.withConnection(conn -> AirBooking.query(conn, RAW_DASHBOARD)));
+	    nanos[1] += System.nanoTime() - start;
+	    start = System.nanoTime();
+	    last.set(2, days(airId, from, to));
+	    nanos[2] += System.nanoTime() - start;
+	    start = System.nanoTime();
+	    last.set(3, rawDays(airId, from, to));
+	    nanos[3] += System.nanoTime() - start;
+	}
+	return String.format("Airline dashboard (%d airlines): %.3f ms from the rollups, %.3f ms with GROUP BY, %s%n" +
+			     "Days of airline %d (%d days): %.3f ms from the rollups, %.3f ms with GROUP BY, %s%n",
+			     last.get(0).size(), nanos[0] / 1e6 / rounds, nanos[1] / 1e6 / rounds,
+			     last.get(0).equals(last.get(1)) ? "same results" : "results differ (written meanwhile?)",
+			     airId, last.get(2).size(), nanos[2] / 1e6 / rounds, nanos[3] / 1e6 / rounds,
+			     last.get(2).equals(last.get(3)) ? "same results" : "results differ (written meanwhile?)");
+    }
+
+    /**
+     * Method to describe the refreshes run so far.
+     *
+     * @return the report
+     */
+    public String report() {
+	return String.format("Airline rollups: %d refreshes, %d log rows folded in, %d airline days recomputed, %.2f ms per refresh%n",
+			     this.refreshes, this.deltas, this.days, this.refreshes == 0 ? 0.0 : this.refreshNanos / 1e6 / this.refreshes)
+	    + this.ratings.report();
+    }
+}
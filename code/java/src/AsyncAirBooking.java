@@ -0,0 +1,186 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Asynchronous front end for the business methods of AirBooking. Every
+ * operation returns a CompletableFuture right away and runs on a small,
+ * fixed set of worker threads, one per pooled connection, so any number of
+ * requests can be in flight without a thread each.
+ *
+ * JDBC can't pipeline statements on a connection, so seat availability
+ * lookups are pipelined by coalescing: lookups that queue up while the
+ * workers are busy are answered together by one query. The number of
+ * operations in flight is bounded; callers that would exceed the bound wait
+ * until an earlier operation completes, which pushes back on the source of
+ * the load instead of growing the queue.
+ */
+
+public class AsyncAirBooking {
+    // most seat lookups answered by one query
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * An operation run on a worker thread.
+     */
+    public interface Call<T> {
+	T run(AirBooking esql) throws SQLException;
+    }
+
+    private static class SeatLookup {
+	final String flightNum;
+	final Date departure;
+	final CompletableFuture<List<String>> done = new CompletableFuture<List<String>>();
+
+	SeatLookup(String flightNum, Date departure) {
+	    this.flightNum = flightNum;
+	    this.departure = departure;
+	}
+    }
+
+    private final AirBooking esql;
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final ConcurrentLinkedQueue<SeatLookup> seatLookups = new ConcurrentLinkedQueue<SeatLookup>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong seatQueries = new AtomicLong();
+    private final AtomicLong seatAnswers = new AtomicLong();
+
+    /**
+     * @param esql the session whose pool the operations use
+     * @param threads the number of worker threads, normally the pool size
+     * @param maxInFlight the most operations submitted but not completed
+     */
+    public AsyncAirBooking(AirBooking esql, int threads, int maxInFlight) {
+	this.esql = esql;
+	this.maxInFlight = maxInFlight;
+	this.inFlight = new Semaphore(maxInFlight);
+	this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+	    Thread thread = new Thread(r, "async-worker");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+    }
+
+    /**
+     * Method to run any operation asynchronously.
+     *
+     * @param call the operation
+     * @return a future completed with the result of the operation
+     */
+    public <T> CompletableFuture<T> submit(final Call<T> call) {
+	admit();
+	final CompletableFuture<T> done = new CompletableFuture<T>();
+	this.workers.execute(() -> {
+	    try {
+		done.complete(call.run(this.esql));
+	    } catch (Exception e) {
+		done.completeExceptionally(e);
+	    } finally {
+		this.inFlight.release();
+	    }
+	});
+	return done;
+    }
+
+    public CompletableFuture<Integer> findPassengerId(final String passNum) {
+	return submit(esql -> esql.findPassengerId(passNum));
+    }
+
+    public CompletableFuture<AirBooking.Outcome> bookFlight(final String bookRef, final int pID, final String flightNum, final Date departure) {
+	return submit(esql -> esql.bookFlight(bookRef, pID, flightNum, departure));
+    }
+
+    public CompletableFuture<List<List<String>>> listFlights(final String origin, final String destination) {
+	return submit(esql -> esql.listFlights(origin, destination));
+    }
+
+    /**
+     * Method to count the booked and free seats of a flight on a given
+     * date, together with the other lookups waiting at the time.
+     *
+     * @return a future completed with the record of AirBooking.seatAvailability
+     */
+    public CompletableFuture<List<String>> seatAvailability(String flightNum, Date departure) {
+	admit();
+	SeatLookup lookup = new SeatLookup(flightNum, departure);
+	this.seatLookups.add(lookup);
+	this.workers.execute(this::answerSeatLookups);
+	return lookup.done;
+    }
+
+    // Every lookup queues one of these; the first to run takes the lookups waiting, the rest find none.
+    private void answerSeatLookups() {
+	List<SeatLookup> batch = new ArrayList<SeatLookup>();
+	SeatLookup lookup;
+	while (batch.size() < MAX_BATCH && (lookup = this.seatLookups.poll()) != null)
+	    batch.add(lookup);
+	if (batch.isEmpty()) return;
+
+	List<String> flightNums = new ArrayList<String>();
+	List<Date> departures = new ArrayList<Date>();
+	for (SeatLookup l : batch) {
+	    flightNums.add(l.flightNum);
+	    departures.add(l.departure);
+	}
+	try {
+	    List<List<String>> records = this.esql.seatAvailability(flightNums, departures);
+	    for (int i = 0; i < batch.size(); ++i)
+		batch.get(i).done.complete(records.get(i));
+	} catch (Exception e) {
+	    for (SeatLookup l : batch)
+		l.done.completeExceptionally(e);
+	} finally {
+	    this.seatQueries.incrementAndGet();
+	    this.seatAnswers.addAndGet(batch.size());
+	    this.inFlight.release(batch.size());
+	}
+    }
+
+    private void admit() {
+	this.submitted.incrementAndGet();
+	if (!this.inFlight.tryAcquire()) {
+	    this.throttled.incrementAndGet();
+	    this.inFlight.acquireUninterruptibly();
+	}
+    }
+
+    /**
+     * Method to wait for the operations in flight and stop the workers.
+     */
+    public void close() {
+	this.workers.shutdown();
+	try {
+	    this.workers.awaitTermination(1, TimeUnit.MINUTES);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Method to describe how often callers were held back and how well seat
+     * lookups were coalesced.
+     *
+     * @return the report
+     */
+    public String report() {
+	long queries = this.seatQueries.get();
+	return String.format("Async: %d operations, %d waited for one of the %d in-flight slots, " +
+			     "%d seat lookups in %d queries (%.1f per query)%n",
+			     this.submitted.get(), this.throttled.get(), this.maxInFlight,
+			     this.seatAnswers.get(), queries, queries == 0 ? 0.0 : (double) this.seatAnswers.get() / queries);
+    }
+}
@@ -0,0 +1,251 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+/**
+ * Feed of the bookings, cancellations, booking changes, ratings and route
+ * changes written through AirBooking, for downstream consumers. The writes
+ * append a row to the Outbox table in their own transaction (see append),
+ * so a change is in the feed if and only if it committed.
+ *
+ * Outbox.seq orders the changes as they were written, but a transaction
+ * can commit after another that wrote later, so a reader that remembered
+ * seq could skip a change. Readers therefore first give the committed
+ * changes without a position one from the outbox_pos sequence, in seq
+ * order and under a lock, and then read by position: a position is only
+ * given once the change is visible, and later positions are always larger,
+ * so a consumer's position is a complete, resumable offset. Two changes of
+ * the same row are written in the order of their row locks, and keep that
+ * order in the feed.
+ *
+ * Consumers wait for the outbox_changed_t trigger's notifications on their
+ * own connection instead of polling the base tables.
+ */
+
+public class ChangeFeed {
+    /**
+     * One change.
+     */
+    public static class Change {
+	public final long position;
+	public final String at;
+	public final String event;
+	public final String key;
+	public final String data;
+
+	Change(List<String> record) {
+	    this.position = Long.parseLong(record.get(0));
+	    this.at = record.get(1);
+	    this.event = record.get(2);
+	    this.key = record.get(3);
+	    this.data = record.get(4);
+	}
+
+	/**
+	 * @return the change as one line of JSON
+	 */
+	public String toJson() {
+	    StringBuilder json = new StringBuilder();
+	    json.append("{\"position\": ").append(this.position).append(", \"at\": ");
+	    quote(json, this.at);
+	    json.append(", \"event\": ");
+	    quote(json, this.event);
+	    json.append(", \"key\": ");
+	    quote(json, this.key);
+	    return json.append(", \"data\": ").append(this.data).append('}').toString();
+	}
+    }
+
+    /**
+     * Receives the changes of a consumer, batch by batch.
+     */
+    public interface Handler {
+	void handle(List<Change> batch) throws Exception;
+    }
+
+    // advisory lock key held while positions are given ("outbox" in ASCII)
+    private static final long PLACE_LOCK = 0x6f7574626f78L;
+
+    private final AirBooking esql;
+
+    /**
+     * @param esql the session the feed is read with
+     */
+    public ChangeFeed(AirBooking esql) {
+	this.esql = esql;
+    }
+
+    /**
+     * Method to append a change to the outbox, inside the caller's
+     * transaction.
+     *
+     * @param conn a connection with an open transaction
+     * @param event what happened, e.g. booked
+     * @param key the key of the changed row
+     * @param data the new values, see json
+     * @throws java.sql.SQLException when failed to execute the insert
+     */
+    static void append(Connection conn, String event, String key, String data) throws SQLException {
+	AirBooking.update(conn, "INSERT INTO Outbox (event, key, data) VALUES (?, ?, ?)", event, key, data);
+    }
+
+    /**
+     * Method to append several changes to the outbox in one statement,
+     * inside the caller's transaction.
+     *
+     * @param conn a connection with an open transaction
+     * @param changes { event, key, data } of each change
+     * @throws java.sql.SQLException when failed to execute the insert
+     */
+    static void append(Connection conn, List<String[]> changes) throws SQLException {
+	if (changes.isEmpty()) return;
+	StringBuilder sql = new StringBuilder("INSERT INTO Outbox (event, key, data) VALUES ");
+	List<Object> params = new ArrayList<Object>();
+	for (String[] change : changes) {
+	    sql.append(params.isEmpty() ? "" : ", ").append("(?, ?, ?)");
+	    for (String value : change)
+		params.add(value);
+	}
+	AirBooking.update(conn, sql.toString(), params.toArray());
+    }
+
+    /**
+     * Method to build the data of a change.
+     *
+     * @param namesAndValues alternating names and values; numbers are written as numbers
+     * @return a JSON object
+     */
+    static String json(Object... namesAndValues) {
+	StringBuilder json = new StringBuilder("{");
+	for (int i = 0; i < namesAndValues.length; i += 2) {
+	    if (i > 0) json.append(", ");
+	    quote(json, (String) namesAndValues[i]);
+	    json.append(": ");
+	    Object value = namesAndValues[i + 1];
+	    if (value == null) json.append("null");
+	    else if (value instanceof Number) json.append(value);
+	    else quote(json, value.toString().trim());
+	}
+	return json.append('}').toString();
+    }
+
+    private static void quote(StringBuilder json, String value) {
+	json.append('"');
+	for (int c = 0; c < value.length(); ++c) {
+	    char ch = value.charAt(c);
+	    if (ch == '"' || ch == '\\') json.append('\\').append(ch);
+	    else if (ch < 0x20) json.append(String.format("\\u%04x", (int) ch));
+	    else json.append(ch);
+	}
+	json.append('"');
+    }
+
+    /**
+     * Method to read the changes after a position.
+     *
+     * @param after the position of the last change already processed, 0 for the start of the feed
+     * @param max the most changes returned
+     * @return the changes in feed order, empty if there are none yet
+     * @throws java.sql.SQLException when failed to execute the queries
+     */
+    public List<Change> read(final long after, final int max) throws SQLException {
+	place();
+	List<List<String>> records = this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT pos, at, event, key, data FROM Outbox WHERE pos > ? ORDER BY pos LIMIT ?", after, max));
+	List<Change> changes = new ArrayList<Change>(records.size());
+	for (List<String> record : records)
+	    changes.add(new Change(record));
+	return changes;
+    }
+
+    // Gives the committed changes without a position the next positions, in the order they were written.
+    private void place() throws SQLException {
+	this.esql.inTransaction(conn -> {
+	    AirBooking.query(conn, "SELECT pg_advisory_xact_lock(?)", PLACE_LOCK);
+	    return AirBooking.update(conn, "UPDATE Outbox O SET pos = P.pos " +
+				     "FROM (SELECT seq, nextval('outbox_pos') AS pos " +
+				     "      FROM (SELECT seq FROM Outbox WHERE pos IS NULL ORDER BY seq) S) P " +
+				     "WHERE O.seq = P.seq");
+	});
+    }
+
+    /**
+     * Method to get the position a consumer has processed the feed up to.
+     *
+     * @param consumer the name of the consumer
+     * @return the position, 0 for a new consumer
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public long offset(final String consumer) throws SQLException {
+	List<List<String>> result = this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT pos FROM OutboxOffset WHERE consumer = ?", consumer));
+	return result.isEmpty() ? 0 : Long.parseLong(result.get(0).get(0));
+    }
+
+    /**
+     * Method to record that a consumer has processed the feed up to a position.
+     *
+     * @param consumer the name of the consumer
+     * @param position the position of the last change processed
+     * @throws java.sql.SQLException when failed to execute the upsert
+     */
+    public void commit(final String consumer, final long position) throws SQLException {
+	this.esql.inTransaction(conn -> AirBooking.update(conn,
+	    "INSERT INTO OutboxOffset (consumer, pos) VALUES (?, ?) " +
+	    "ON CONFLICT (consumer) DO UPDATE SET pos = EXCLUDED.pos", consumer, position));
+    }
+
+    /**
+     * Method to hand the changes to a consumer as they come, from where it
+     * left off, until the thread is interrupted. The consumer's offset is
+     * committed after each batch it handled, so a change is handled at
+     * least once; a consumer that failed is given the batch again when it
+     * is restarted.
+     *
+     * @param consumer the name of the consumer
+     * @param batchSize the most changes per batch
+     * @param interval how often the connection is checked for notifications while idle, in milliseconds
+     * @param handler the consumer
+     * @throws java.lang.Exception the exception thrown by the handler, or when the feed can't be read
+     */
+    public void follow(String consumer, int batchSize, long interval, Handler handler) throws Exception {
+	// not from the pool, which read and commit need even when it has a single connection
+	Connection listener = this.esql.getPool().openUnpooled();
+	try {
+	    AirBooking.update(listener, "LISTEN table_changed");
+	    PGConnection pgconn = listener.unwrap(PGConnection.class);
+	    Statement stmt = listener.createStatement();
+	    long position = offset(consumer);
+	    while (!Thread.currentThread().isInterrupted()) {
+		List<Change> batch = read(position, batchSize);
+		if (!batch.isEmpty()) {
+		    handler.handle(batch);
+		    position = batch.get(batch.size() - 1).position;
+		    commit(consumer, position);
+		    if (batch.size() == batchSize) continue; // more to come
+		}
+		// wait for a new change; notifications are only read from the socket when a statement runs
+		boolean changed = false;
+		while (!changed && !Thread.currentThread().isInterrupted()) {
+		    Thread.sleep(interval);
+		    stmt.execute("SELECT 1");
+		    PGNotification[] notifications = pgconn.getNotifications();
+		    if (notifications != null)
+			for (PGNotification notification : notifications)
+			    changed |= notification.getParameter().equalsIgnoreCase("outbox");
+		}
+	    }
+	    stmt.close();
+	} catch (InterruptedException e) {
+	    // stopping.
+	} finally {
+	    listener.close();
+	}
+    }
+}
@@ -0,0 +1,115 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+/**
+ * Listens for the table_changed notifications sent by the triggers in
+ * create.sql and bumps the version of the changed table (see
+ * AirBooking.tableChanged), so results cached by this process also go stale
+ * when another process writes to the database. The listener holds its own
+ * connection and polls it for notifications. If the connection breaks it is
+ * opened again, and since notifications may have been missed meanwhile,
+ * every table is taken as changed.
+ */
+
+public class ChangeListener implements Runnable {
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private volatile Connection conn;
+    private final long interval;
+    private volatile boolean stopped = false;
+
+    /**
+     * Opens the connection and starts listening.
+     *
+     * @param url the JDBC URL of the primary
+     * @param user the database user
+     * @param passwd the password
+     * @param interval the time between polls, in milliseconds
+     * @throws java.sql.SQLException when the connection can't be opened
+     */
+    public ChangeListener(String url, String user, String passwd, long interval) throws SQLException {
+	this.url = url;
+	this.user = user;
+	this.passwd = passwd;
+	this.conn = DriverManager.getConnection(url, user, passwd);
+	this.interval = interval;
+	AirBooking.update(this.conn, "LISTEN table_changed");
+    }
+
+    /**
+     * Method to start polling on a daemon thread.
+     */
+    public void start() {
+	Thread thread = new Thread(this, "change-listener");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    public void run() {
+	try {
+	    while (!this.stopped) {
+		try {
+		    listen();
+		} catch (SQLException e) {
+		    if (this.stopped) return;
+		    if (!AirBooking.isConnectionFailure(e)) {
+			System.err.println("Change listener stopped: " + e.getMessage());
+			return;
+		    }
+		    try {
+			this.conn.close();
+		    } catch (SQLException ce) {
+			// ignored.
+		    }
+		    this.conn = ConnectionPool.open(this.url, this.user, this.passwd, Long.MAX_VALUE / 2);
+		    if (this.stopped) {
+			this.conn.close();
+			return;
+		    }
+		    AirBooking.update(this.conn, "LISTEN table_changed");
+		    AirBooking.allTablesChanged();
+		}
+	    }
+	} catch (SQLException e) {
+	    if (!this.stopped)
+		System.err.println("Change listener stopped: " + e.getMessage());
+	} catch (InterruptedException e) {
+	    // stopping.
+	}
+    }
+
+    // Polls the connection until it's closed or breaks.
+    private void listen() throws SQLException, InterruptedException {
+	PGConnection pgconn = this.conn.unwrap(PGConnection.class);
+	Statement stmt = this.conn.createStatement();
+	while (!this.stopped) {
+	    // notifications are only read from the socket when a statement runs
+	    stmt.execute("SELECT 1");
+	    PGNotification[] notifications = pgconn.getNotifications();
+	    if (notifications != null)
+		for (PGNotification notification : notifications)
+		    AirBooking.tableChanged(notification.getParameter());
+	    Thread.sleep(this.interval);
+	}
+	stmt.close();
+    }
+
+    /**
+     * Method to stop polling and close the connection.
+     */
+    public void close() {
+	this.stopped = true;
+	try {
+	    this.conn.close();
+	} catch (SQLException e) {
+	    // ignored.
+	}
+    }
+}
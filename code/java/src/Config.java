@@ -0,0 +1,305 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Settings of the program, under the names of its command line options
+ * (pool-size, report-cache, ...) plus the connection settings host, port,
+ * dbname, user, password, ssl, ssl-mode and so on. They are taken from, in
+ * increasing order of precedence:
+ *
+ *  - a properties or YAML file, given with --config=<file> or in the
+ *    AIRBOOKING_CONFIG environment variable. In YAML, nested keys are
+ *    joined with '-', so "pool: {size: 10}" sets pool-size;
+ *  - environment variables AIRBOOKING_<NAME>, e.g. AIRBOOKING_POOL_SIZE
+ *    sets pool-size and AIRBOOKING_PASSWORD the password;
+ *  - the command line: <dbname> <port> <user> and the options.
+ *
+ * A setting whose value is false counts as not given, so a flag set in the
+ * file can be turned off from the command line or the environment.
+ *
+ * The file can be watched for changes. The settings in RELOADABLE are
+ * handed to a listener that applies them to the running program; a change
+ * to any other setting is reported as needing a restart.
+ */
+
+public class Config {
+    // settings that can be changed while the program runs, see AirBooking.applyTunables
+    static final String[] RELOADABLE = { "fetch-size", "query-timeout-s", "reconnect-ms", "report-cache-ttl-ms",
+					 "admission", "max-wait-ms", "sold-out-ttl-ms" };
+    // reloadable settings of a component made at startup, so turning it on or off needs a restart
+    static final String[] STARTUP_COMPONENTS = { "admission" };
+    private static final String ENV_PREFIX = "AIRBOOKING_";
+    private static final String[] SECRETS = { "password", "ssl-password" };
+
+    private final String file;
+    private final Map<String, String> environment;
+    private final Map<String, String> commandLine;
+    private volatile Map<String, String> values;
+    private long modified;
+    private ScheduledExecutorService watcher = null;
+
+    private Config(String file, Map<String, String> environment, Map<String, String> commandLine) throws IOException {
+	this.file = file;
+	this.environment = environment;
+	this.commandLine = commandLine;
+	this.values = merge(read());
+    }
+
+    /**
+     * Method to read the settings of the program.
+     *
+     * @param args the command line: optionally <dbname> <port | host:port[,...]> <user>, then options
+     * @return the settings
+     * @throws java.io.IOException when the file can't be read or parsed
+     * @throws java.lang.IllegalArgumentException when the command line can't be parsed
+     */
+    public static Config load(String[] args) throws IOException {
+	int positional = 0;
+	while (positional < args.length && !args[positional].startsWith("--")) ++positional;
+	if (positional != 0 && positional != 3)
+	    throw new IllegalArgumentException("Expected <dbname> <port> <user> or none of them, got " + positional + " arguments");
+	Map<String, String> commandLine = AirBooking.parseOptions(args, positional);
+	if (positional == 3) {
+	    commandLine.put("dbname", args[0]);
+	    commandLine.put(args[1].matches("[0-9]+") ? "port" : "host", args[1]);
+	    commandLine.put("user", args[2]);
+	}
+	Map<String, String> environment = environment(System.getenv());
+	String file = commandLine.containsKey("config") ? commandLine.get("config") : System.getenv(ENV_PREFIX + "CONFIG");
+	return new Config(file, environment, commandLine);
+    }
+
+    // Takes the AIRBOOKING_* variables, AIRBOOKING_POOL_SIZE as pool-size.
+    static Map<String, String> environment(Map<String, String> env) {
+	Map<String, String> settings = new HashMap<String, String>();
+	for (Map.Entry<String, String> var : env.entrySet())
+	    if (var.getKey().startsWith(ENV_PREFIX) && !var.getKey().equals(ENV_PREFIX + "CONFIG"))
+		settings.put(var.getKey().substring(ENV_PREFIX.length()).toLowerCase().replace('_', '-'), var.getValue());
+	return settings;
+    }
+
+    private Map<String, String> read() throws IOException {
+	if (this.file == null) return new HashMap<String, String>();
+	File file = new File(this.file);
+	this.modified = file.lastModified();
+	String name = file.getName().toLowerCase();
+	if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+	    BufferedReader reader = new BufferedReader(new FileReader(file));
+	    try {
+		return readYaml(reader, this.file);
+	    } finally {
+		reader.close();
+	    }
+	}
+	Properties properties = new Properties();
+	InputStream in = new FileInputStream(file);
+	try {
+	    properties.load(in);
+	} finally {
+	    in.close();
+	}
+	Map<String, String> settings = new HashMap<String, String>();
+	for (String key : properties.stringPropertyNames())
+	    settings.put(key.replace('.', '-'), properties.getProperty(key).trim());
+	return settings;
+    }
+
+    /**
+     * Method to read the block mappings of a YAML file with scalar values,
+     * which is all the settings need. Nested keys are joined with '-'.
+     * Sequences, flow collections and multi-line scalars are not supported.
+     *
+     * @param reader the file
+     * @param path the name of the file, for the error messages
+     * @return the settings
+     * @throws java.io.IOException when the file can't be read or uses what isn't supported
+     */
+    static Map<String, String> readYaml(BufferedReader reader, String path) throws IOException {
+	Map<String, String> settings = new HashMap<String, String>();
+	// keys of the mappings the current line is nested in, with their indentation
+	List<String> keys = new ArrayList<String>();
+	List<Integer> indents = new ArrayList<Integer>();
+	String line;
+	int lineNum = 0;
+	while ((line = reader.readLine()) != null) {
+	    ++lineNum;
+	    String content = stripComment(line);
+	    if (content.trim().isEmpty() || content.trim().equals("---")) continue;
+	    int indent = 0;
+	    while (content.charAt(indent) == ' ') ++indent;
+	    content = content.trim();
+	    int colon = content.indexOf(':');
+	    if (content.startsWith("-") || colon <= 0 || (colon + 1 < content.length() && content.charAt(colon + 1) != ' '))
+		throw new IOException(String.format("%s:%d: expected key: value", path, lineNum));
+	    while (!indents.isEmpty() && indents.get(indents.size() - 1) >= indent) {
+		keys.remove(keys.size() - 1);
+		indents.remove(indents.size() - 1);
+	    }
+	    String key = content.substring(0, colon).trim();
+	    String value = content.substring(colon + 1).trim();
+	    if (value.isEmpty()) { // a nested mapping follows
+		keys.add(key);
+		indents.add(indent);
+		continue;
+	    }
+	    if (value.startsWith("[") || value.startsWith("{") || value.equals("|") || value.equals(">"))
+		throw new IOException(String.format("%s:%d: only plain values are supported", path, lineNum));
+	    if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.endsWith(value.substring(0, 1)))
+		value = value.substring(1, value.length() - 1);
+	    StringBuilder name = new StringBuilder();
+	    for (String parent : keys)
+		name.append(parent).append('-');
+	    settings.put(name.append(key).toString(), value);
+	}
+	return settings;
+    }
+
+    // Removes a # comment that isn't inside quotes.
+    private static String stripComment(String line) {
+	char quote = 0;
+	for (int i = 0; i < line.length(); ++i) {
+	    char c = line.charAt(i);
+	    if (quote != 0) {
+		if (c == quote) quote = 0;
+	    } else if (c == '"' || c == '\'') {
+		quote = c;
+	    } else if (c == '#' && (i == 0 || line.charAt(i - 1) == ' ')) {
+		return line.substring(0, i);
+	    }
+	}
+	return line;
+    }
+
+    private Map<String, String> merge(Map<String, String> fromFile) {
+	Map<String, String> merged = new HashMap<String, String>(fromFile);
+	merged.putAll(this.environment);
+	merged.putAll(this.commandLine);
+	merged.values().removeIf(value -> value.equalsIgnoreCase("false"));
+	return merged;
+    }
+
+    /**
+     * @return the settings in effect, to be read with the option names
+     */
+    public Map<String, String> values() {
+	return this.values;
+    }
+
+    /**
+     * Method to build the JDBC URL from the connection settings: host (a
+     * name, or host:port[,...] to fail over between servers), port, dbname,
+     * ssl, ssl-mode, ssl-root-cert, connect-timeout-s, socket-timeout-s and
+     * statement-cache (prepared statements kept per connection).
+     *
+     * @return the URL
+     */
+    public String url() {
+	Map<String, String> values = this.values;
+	String port = values.getOrDefault("port", "5432");
+	List<String> hosts = new ArrayList<String>();
+	for (String host : values.getOrDefault("host", "localhost").split(","))
+	    hosts.add(host.contains(":") ? host.trim() : host.trim() + ":" + port);
+	StringBuilder url = new StringBuilder("jdbc:postgresql://").append(String.join(",", hosts)).append('/')
+	    .append(values.get("dbname"));
+	url.append("?connectTimeout=").append(values.getOrDefault("connect-timeout-s", "10"));
+	if (values.containsKey("socket-timeout-s"))
+	    url.append("&socketTimeout=").append(values.get("socket-timeout-s"));
+	if (values.containsKey("statement-cache"))
+	    url.append("&preparedStatementCacheQueries=").append(values.get("statement-cache"));
+	if (hosts.size() > 1) // hosts found read-only or down are tried again after hostRecheckSeconds
+	    url.append("&targetServerType=master&hostRecheckSeconds=2");
+	if (values.containsKey("ssl")) {
+	    url.append("&ssl=true&sslmode=").append(values.getOrDefault("ssl-mode", "require"));
+	    if (values.containsKey("ssl-root-cert"))
+		url.append("&sslrootcert=").append(values.get("ssl-root-cert"));
+	}
+	return url.toString();
+    }
+
+    /**
+     * Method to watch the file for changes on a daemon thread. When it
+     * changed, the settings are read again and, if a reloadable setting
+     * changed, handed to the listener; changes to the other settings are
+     * only reported.
+     *
+     * @param interval the time between checks of the file, in milliseconds
+     * @param listener applies the settings
+     */
+    public void watch(long interval, final Consumer<Map<String, String>> listener) {
+	if (this.file == null) return;
+	this.watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+	    Thread thread = new Thread(r, "config-watcher");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	this.watcher.scheduleWithFixedDelay(() -> {
+	    if (new File(this.file).lastModified() == this.modified) return;
+	    try {
+		Map<String, String> values = merge(read());
+		Set<String> changed = changed(this.values, values);
+		if (changed.isEmpty()) return;
+		Set<String> restart = new HashSet<String>(changed);
+		restart.removeAll(Arrays.asList(RELOADABLE));
+		for (String key : STARTUP_COMPONENTS)
+		    if (this.values.containsKey(key) != values.containsKey(key)) restart.add(key);
+		if (restart.size() < changed.size()) listener.accept(values);
+		this.values = values;
+		changed.removeAll(restart);
+		if (!changed.isEmpty())
+		    System.err.println("Configuration reloaded: " + String.join(", ", changed));
+		if (!restart.isEmpty())
+		    System.err.println("Configuration changed, takes effect after a restart: " + String.join(", ", restart));
+	    } catch (IOException | RuntimeException e) {
+		System.err.println("Configuration not reloaded: " + e.getMessage());
+	    }
+	}, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static Set<String> changed(Map<String, String> before, Map<String, String> after) {
+	Set<String> changed = new HashSet<String>();
+	for (String key : before.keySet())
+	    if (!before.get(key).equals(after.get(key))) changed.add(key);
+	for (String key : after.keySet())
+	    if (!before.containsKey(key)) changed.add(key);
+	return changed;
+    }
+
+    /**
+     * Method to stop watching the file.
+     */
+    public void close() {
+	if (this.watcher != null) this.watcher.shutdownNow();
+    }
+
+    /**
+     * Method to describe the settings in effect, passwords hidden.
+     *
+     * @return one name=value line per setting, by name
+     */
+    public String report() {
+	StringBuilder report = new StringBuilder();
+	for (Map.Entry<String, String> setting : new TreeMap<String, String>(this.values).entrySet()) {
+	    boolean secret = Arrays.asList(SECRETS).contains(setting.getKey());
+	    report.append(String.format("%s=%s%n", setting.getKey(), secret ? "********" : setting.getValue()));
+	}
+	return report.append(String.format("url=%s%n", url())).toString();
+    }
+}
@@ -0,0 +1,375 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A fixed size pool of physical connections shared by AirBooking sessions.
+ * Connections are opened on demand up to the pool size. When every
+ * connection is in use, callers queue in arrival order and the time they
+ * wait is recorded against the AirBooking operation that asked, so the
+ * contention report shows which operations sessions block on.
+ *
+ * The first connection can also be opened in the background, so the program
+ * starts while the database handshake is under way; the first acquire waits
+ * for it.
+ *
+ * A connection broken by a database restart or failover is discarded by the
+ * borrower that ran into it (see AirBooking.isConnectionFailure), and a
+ * caller waiting for a connection opens one in its place. Idle
+ * connections released before the last such failure, or idle for longer than
+ * VALIDATE_AFTER_MS, are checked before they are handed out, and connections
+ * opened to replace them are retried with exponential backoff until the
+ * database is back or the reconnect timeout passed, so callers wait out a
+ * restart instead of failing.
+ */
+
+public class ConnectionPool {
+    // AirBooking methods that only pass a connection on to the operation that needs it
+    private static final String[] PLUMBING = { "withConnection", "withReadConnection", "inTransaction", "write" };
+
+    // idle connections unused for longer than this are checked before they are handed out
+    private static final long VALIDATE_AFTER_MS = 1000;
+    // first and longest pause between attempts to reach the database again
+    private static final long FIRST_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    // how often a caller waiting for a connection checks whether one was discarded
+    private static final long WAIT_CHECK_MS = 50;
+
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private final int size;
+    private final BlockingQueue<Connection> idle;
+    private final AtomicInteger opened = new AtomicInteger();
+    // System.currentTimeMillis() at which each idle connection was released
+    private final Map<Connection, Long> releasedAt = new ConcurrentHashMap<Connection, Long>();
+    // System.currentTimeMillis() at which a borrower last found its connection broken
+    private volatile long failedAt = 0;
+    private volatile long reconnectTimeout = 30000;
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    // completed once the first connection is open, or with the reason it couldn't be
+    private final CompletableFuture<Void> ready;
+    private volatile long readyAt; // System.currentTimeMillis() when the first connection was open
+
+    // operation -> { number of waits, total nanoseconds waited, longest wait }
+    private final Map<String, AtomicLong[]> waits = new ConcurrentHashMap<String, AtomicLong[]>();
+    private final AtomicLong acquired = new AtomicLong();
+
+    /**
+     * Creates the pool and opens its first connection, so a bad URL or
+     * credentials are reported right away.
+     *
+     * @param url the JDBC URL
+     * @param user the database user
+     * @param passwd the password
+     * @param size the maximum number of physical connections
+     * @throws java.sql.SQLException when the first connection can't be opened
+     */
+    public ConnectionPool(String url, String user, String passwd, int size) throws SQLException {
+	this(url, user, passwd, size, new CompletableFuture<Void>());
+	this.opened.incrementAndGet();
+	this.idle.add(DriverManager.getConnection(url, user, passwd));
+	this.readyAt = System.currentTimeMillis();
+	this.ready.complete(null);
+    }
+
+    private ConnectionPool(String url, String user, String passwd, int size, CompletableFuture<Void> ready) {
+	if (size < 1) throw new IllegalArgumentException("pool size must be at least 1");
+	this.url = url;
+	this.user = user;
+	this.passwd = passwd;
+	this.size = size;
+	this.idle = new ArrayBlockingQueue<Connection>(size, true);
+	this.ready = ready;
+    }
+
+    /**
+     * Method to create a pool whose first connection, and the JDBC driver,
+     * are loaded on a background thread.
+     *
+     * @param url the JDBC URL
+     * @param user the database user
+     * @param passwd the password
+     * @param size the maximum number of physical connections
+     * @return the pool, right away
+     */
+    public static ConnectionPool openInBackground(String url, String user, String passwd, int size) {
+	final ConnectionPool pool = new ConnectionPool(url, user, passwd, size, new CompletableFuture<Void>());
+	Thread connector = new Thread(() -> {
+	    try {
+		Class.forName("org.postgresql.Driver");
+		pool.opened.incrementAndGet();
+		pool.idle.add(DriverManager.getConnection(url, user, passwd));
+		pool.readyAt = System.currentTimeMillis();
+		pool.ready.complete(null);
+	    } catch (Exception e) {
+		pool.opened.set(0);
+		pool.ready.completeExceptionally(e);
+	    }
+	}, "pool-connect");
+	connector.setDaemon(true);
+	connector.start();
+	return pool;
+    }
+
+    /**
+     * Method to get notified when the first connection is open.
+     *
+     * @return a future completed once the pool can be used, or with the
+     *         exception that kept the first connection from opening
+     */
+    public CompletableFuture<Void> ready() {
+	return this.ready;
+    }
+
+    /**
+     * @return the System.currentTimeMillis() at which the first connection was open, 0 if it isn't yet
+     */
+    public long readyAt() {
+	return this.readyAt;
+    }
+
+    public int size() {
+	return this.size;
+    }
+
+    /**
+     * Method to open a connection to the pool's database that doesn't count
+     * against its size, for a caller that keeps it for long, e.g. to LISTEN.
+     * The caller closes it.
+     *
+     * @return the connection
+     * @throws java.sql.SQLException when the connection can't be opened
+     */
+    public Connection openUnpooled() throws SQLException {
+	return DriverManager.getConnection(this.url, this.user, this.passwd);
+    }
+
+    /**
+     * Method to set how long acquire keeps trying to open a connection while
+     * the database can't be reached.
+     *
+     * @param timeout the time in milliseconds, 0 to give up after the first attempt
+     */
+    public void setReconnectTimeout(long timeout) {
+	this.reconnectTimeout = timeout;
+    }
+
+    /**
+     * Method to open a physical connection. While the database can't be
+     * reached, or is still starting up, it is tried again after a pause that
+     * doubles from FIRST_BACKOFF_MS up to MAX_BACKOFF_MS, with jitter so the
+     * clients of a restarted database don't come back all at once.
+     *
+     * @param url the JDBC URL
+     * @param user the database user
+     * @param passwd the password
+     * @param timeout how long to keep trying, in milliseconds
+     * @return the connection
+     * @throws java.sql.SQLException when the connection can't be opened for another reason, or not before the timeout
+     */
+    static Connection open(String url, String user, String passwd, long timeout) throws SQLException {
+	long deadline = System.currentTimeMillis() + timeout;
+	long backoff = FIRST_BACKOFF_MS;
+	Random random = new Random();
+	while (true) {
+	    try {
+		return DriverManager.getConnection(url, user, passwd);
+	    } catch (SQLException e) {
+		long left = deadline - System.currentTimeMillis();
+		if (!AirBooking.isConnectionFailure(e) || left <= 0) throw e;
+		try {
+		    Thread.sleep(Math.min(left, backoff / 2 + random.nextInt((int) backoff)));
+		} catch (InterruptedException ie) {
+		    Thread.currentThread().interrupt();
+		    throw e;
+		}
+		backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+	    }
+	}
+    }
+
+    /**
+     * Method to borrow a connection, waiting for one to be released if all
+     * of them are in use. The connection must be given back with release.
+     *
+     * @return a connection in autocommit mode
+     * @throws java.sql.SQLException when a new connection can't be opened or the wait is interrupted
+     */
+    public Connection acquire() throws SQLException {
+	if (!this.ready.isDone()) awaitReady();
+	this.acquired.incrementAndGet();
+	while (true) {
+	    Connection conn;
+	    while ((conn = this.idle.poll()) != null)
+		if (usable(conn)) return conn;
+
+	    if (this.opened.incrementAndGet() <= this.size) {
+		try {
+		    conn = open(this.url, this.user, this.passwd, this.reconnectTimeout);
+		    if (this.failedAt != 0) this.reconnects.incrementAndGet();
+		    return conn;
+		} catch (SQLException e) {
+		    this.opened.decrementAndGet();
+		    throw e;
+		}
+	    }
+	    this.opened.decrementAndGet();
+
+	    // a discarded connection makes room for a new one without anything
+	    // being released, so waiters also look for room every WAIT_CHECK_MS
+	    long start = System.nanoTime();
+	    try {
+		while ((conn = this.idle.poll(WAIT_CHECK_MS, TimeUnit.MILLISECONDS)) == null && this.opened.get() >= this.size);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new SQLException("Interrupted while waiting for a connection", e);
+	    }
+	    recordWait(System.nanoTime() - start);
+	    if (conn != null && usable(conn)) return conn;
+	}
+    }
+
+    // Checks an idle connection that may have been broken while it sat in the pool, and discards it if it was.
+    private boolean usable(Connection conn) {
+	Long released = this.releasedAt.remove(conn);
+	if (released == null || (released > this.failedAt && System.currentTimeMillis() - released < VALIDATE_AFTER_MS))
+	    return true;
+	try {
+	    if (conn.isValid(5)) return true;
+	} catch (SQLException e) {
+	    // broken.
+	}
+	discard(conn);
+	return false;
+    }
+
+    private void awaitReady() throws SQLException {
+	long start = System.nanoTime();
+	try {
+	    this.ready.join();
+	} catch (CompletionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof SQLException) throw (SQLException) cause;
+	    throw new SQLException("Unable to connect to database: " + cause.getMessage(), cause);
+	}
+	recordWait(System.nanoTime() - start);
+    }
+
+    /**
+     * Method to give back a borrowed connection.
+     *
+     * @param conn the connection returned by acquire
+     */
+    public void release(Connection conn) {
+	try {
+	    if (conn.isClosed()) { // the driver closes a connection whose socket failed
+		discard(conn);
+		return;
+	    }
+	} catch (SQLException e) {
+	    discard(conn);
+	    return;
+	}
+	this.releasedAt.put(conn, System.currentTimeMillis());
+	this.idle.offer(conn);
+    }
+
+    /**
+     * Method to close a borrowed connection that broke instead of giving it
+     * back. A new connection is opened in its place when needed.
+     *
+     * @param conn the connection returned by acquire
+     */
+    public void discard(Connection conn) {
+	this.failedAt = System.currentTimeMillis();
+	this.discarded.incrementAndGet();
+	this.opened.decrementAndGet();
+	try {
+	    conn.close();
+	} catch (SQLException e) {
+	    // ignored.
+	}
+    }
+
+    /**
+     * Method to close the idle connections. Connections still borrowed are
+     * closed by their borrowers' cleanup.
+     */
+    public void close() {
+	List<Connection> conns = new ArrayList<Connection>();
+	this.idle.drainTo(conns);
+	for (Connection conn : conns) {
+	    try {
+		conn.close();
+	    } catch (SQLException e) {
+		// ignored.
+	    }
+	}
+    }
+
+    // Only called when the caller had to wait, so walking the stack is off the fast path.
+    private void recordWait(long nanos) {
+	String site = "unknown";
+	for (StackTraceElement frame : new Throwable().getStackTrace()) {
+	    if (frame.getClassName().equals(ConnectionPool.class.getName()) || isPlumbing(frame.getMethodName())) continue;
+	    String method = frame.getMethodName();
+	    if (method.startsWith("lambda$")) // lambda$bookFlight$3 -> bookFlight
+		method = method.substring(7, method.lastIndexOf('$'));
+	    site = frame.getClassName() + "." + method;
+	    break;
+	}
+	AtomicLong[] stats = this.waits.get(site);
+	if (stats == null) {
+	    this.waits.putIfAbsent(site, new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong() });
+	    stats = this.waits.get(site);
+	}
+	stats[0].incrementAndGet();
+	stats[1].addAndGet(nanos);
+	long max;
+	while ((max = stats[2].get()) < nanos && !stats[2].compareAndSet(max, nanos));
+    }
+
+    private static boolean isPlumbing(String method) {
+	for (String name : PLUMBING)
+	    if (method.equals(name)) return true;
+	return false;
+    }
+
+    /**
+     * Method to describe where callers waited for a connection.
+     *
+     * @return one line per operation that had to wait, most total wait first
+     */
+    public String contentionReport() {
+	List<Map.Entry<String, AtomicLong[]>> entries = new ArrayList<Map.Entry<String, AtomicLong[]>>(this.waits.entrySet());
+	entries.sort((a, b) -> Long.compare(b.getValue()[1].get(), a.getValue()[1].get()));
+
+	StringBuilder report = new StringBuilder();
+	report.append(String.format("Connection pool: %d of %d connections open, %d acquisitions, %d broken connections discarded, %d reopened%n",
+				    this.opened.get(), this.size, this.acquired.get(), this.discarded.get(), this.reconnects.get()));
+	if (entries.isEmpty())
+	    report.append(String.format("  no waits%n"));
+	for (Map.Entry<String, AtomicLong[]> entry : entries) {
+	    AtomicLong[] stats = entry.getValue();
+	    report.append(String.format("  %-50s%8d waits  total %10.1f ms  avg %8.2f ms  max %8.2f ms%n",
+					entry.getKey(), stats[0].get(), stats[1].get() / 1e6,
+					stats[1].get() / 1e6 / stats[0].get(), stats[2].get() / 1e6));
+	}
+	return report.toString();
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+
+/**
+ * Unloads tables and reports to CSV files with COPY ... TO STDOUT, for the
+ * warehouse feed. Rows stream from the server straight into the file
+ * through a fixed size buffer, so memory doesn't grow with the table.
+ *
+ * A table is split into one part per worker, by ranges of its integer key
+ * or by the hash of its text key, and the parts are copied in parallel on
+ * their own connections, into name.part-N.csv (or .csv.gz). Every part of
+ * every export sees the same snapshot, exported by a coordinating
+ * transaction that stays open until the last part is done, so the files
+ * are consistent with each other as if they were copied in one
+ * transaction.
+ */
+
+public class Exporter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static class Source {
+	final String sql; // the query, with %s for the part's filter
+	final String key; // the column parts are split on, null to copy in one part
+	final String table; // the table of an integer key, whose range is split; null for a text key
+
+	Source(String sql, String key, String table) {
+	    this.sql = sql;
+	    this.key = key;
+	    this.table = table;
+	}
+    }
+
+    // CHAR columns are cast to text, which drops the padding
+    private static final Map<String, Source> SOURCES = new LinkedHashMap<String, Source>();
+    static {
+	SOURCES.put("airline", new Source("SELECT airId, name::text, founded, country::text, hub::text FROM Airline WHERE %s",
+					  "airId", "Airline"));
+	SOURCES.put("passenger", new Source("SELECT pID, passNum::text, fullName::text, bdate, country::text FROM Passenger WHERE %s",
+					    "pID", "Passenger"));
+	SOURCES.put("flight", new Source("SELECT airId, flightNum::text, origin::text, destination::text, plane::text, seats, duration " +
+					 "FROM Flight WHERE %s", "flightNum", null));
+	SOURCES.put("ratings", new Source("SELECT rID, pID, flightNum::text, score, comment FROM Ratings WHERE %s", "rID", "Ratings"));
+	SOURCES.put("booking", new Source("SELECT bookRef::text, departure, flightNum::text, pID, version FROM Booking WHERE %s",
+					  "bookRef", null));
+	// the reports of options 6 and 7 without their limit, and the booked seats of every flight and date
+	SOURCES.put("popular", new Source("SELECT F.destination::text, COUNT(*) AS flights FROM Flight F WHERE %s " +
+					  "GROUP BY F.destination ORDER BY COUNT(*) DESC", null, null));
+	SOURCES.put("rated", new Source("SELECT A.name::text, F.flightNum::text, F.origin::text, F.destination::text, F.plane::text, " +
+					"AVG(R.score) AS rating FROM Flight F, Airline A, Ratings R " +
+					"WHERE A.airId = F.airId AND F.flightNum = R.flightNum AND %s " +
+					"GROUP BY A.name, F.flightNum, F.origin, F.destination, F.plane " +
+					"ORDER BY AVG(R.score) DESC", null, null));
+	SOURCES.put("availability", new Source("SELECT B.flightNum::text, B.departure, COUNT(*) AS booked, F.seats, F.seats - COUNT(*) AS free " +
+					       "FROM Booking B JOIN Flight F ON F.flightNum = B.flightNum WHERE %s " +
+					       "GROUP BY B.flightNum, B.departure, F.seats ORDER BY B.flightNum, B.departure",
+					       "B.flightNum", null));
+    }
+
+    private final ConnectionPool pool;
+    private final File dir;
+    private final int workers;
+    private final boolean gzip;
+    private final StringBuilder report = new StringBuilder();
+
+    /**
+     * @param pool the pool to copy with, it needs workers + 1 connections
+     * @param dir the directory the files are written to
+     * @param workers the number of parts copied at once
+     * @param gzip whether the files are compressed
+     */
+    public Exporter(ConnectionPool pool, File dir, int workers, boolean gzip) {
+	this.pool = pool;
+	this.dir = dir;
+	this.workers = workers;
+	this.gzip = gzip;
+    }
+
+    /**
+     * @return the names export accepts
+     */
+    public static String names() {
+	return String.join(", ", SOURCES.keySet());
+    }
+
+    /**
+     * Method to export tables and reports from one snapshot.
+     *
+     * @param names the tables and reports, see names()
+     * @throws java.sql.SQLException when a copy failed
+     * @throws java.io.IOException when a file can't be written
+     */
+    public void export(List<String> names) throws SQLException, IOException {
+	for (String name : names)
+	    if (!SOURCES.containsKey(name))
+		throw new IllegalArgumentException("Unknown export: " + name + " (" + names() + ")");
+	if (!this.dir.isDirectory() && !this.dir.mkdirs())
+	    throw new IOException("Can't create " + this.dir);
+
+	Connection coordinator = this.pool.acquire();
+	ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+	try {
+	    coordinator.setAutoCommit(false);
+	    coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+	    String snapshot = AirBooking.query(coordinator, "SELECT pg_export_snapshot()").get(0).get(0);
+
+	    List<String> labels = new ArrayList<String>();
+	    List<Future<long[]>> parts = new ArrayList<Future<long[]>>();
+	    for (String name : names) {
+		List<String> filters = filters(coordinator, SOURCES.get(name));
+		for (int i = 0; i < filters.size(); ++i) {
+		    final String sql = String.format(SOURCES.get(name).sql, filters.get(i));
+		    final File file = new File(this.dir, String.format("%s.part-%d.csv%s", name, i, this.gzip ? ".gz" : ""));
+		    labels.add(file.getName());
+		    parts.add(executor.submit(() -> copy(snapshot, sql, file)));
+		}
+	    }
+	    for (int i = 0; i < parts.size(); ++i) {
+		long[] copied = parts.get(i).get();
+		this.report.append(String.format("  %-32s%10d rows %12d bytes %8.2f s%n",
+						 labels.get(i), copied[0], copied[1], copied[2] / 1e9));
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while exporting", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+	    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+	    throw new SQLException("Export failed", e.getCause());
+	} finally {
+	    executor.shutdownNow();
+	    try {
+		coordinator.rollback();
+		coordinator.setAutoCommit(true);
+		coordinator.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		this.pool.release(coordinator);
+	    } catch (SQLException e) {
+		this.pool.discard(coordinator);
+	    }
+	}
+    }
+
+    // One filter per part: key ranges for integer keys, hash buckets for text keys.
+    private List<String> filters(Connection conn, Source source) throws SQLException {
+	List<String> filters = new ArrayList<String>();
+	if (source.key == null || this.workers == 1) {
+	    filters.add("TRUE");
+	} else if (source.table != null) {
+	    List<String> bounds = AirBooking.query(conn, String.format("SELECT min(%s), max(%s) FROM %s",
+								       source.key, source.key, source.table)).get(0);
+	    if (bounds.get(0) == null) {
+		filters.add("TRUE");
+		return filters;
+	    }
+	    long min = Long.parseLong(bounds.get(0));
+	    long span = Long.parseLong(bounds.get(1)) - min + 1;
+	    for (int i = 0; i < this.workers; ++i) {
+		long from = min + span * i / this.workers;
+		long to = min + span * (i + 1) / this.workers;
+		if (from < to) filters.add(String.format("%s >= %d AND %s < %d", source.key, from, source.key, to));
+	    }
+	} else {
+	    for (int i = 0; i < this.workers; ++i)
+		filters.add(String.format("(hashtext(%s::text) & 2147483647) %% %d = %d", source.key, this.workers, i));
+	}
+	return filters;
+    }
+
+    // Returns { rows, bytes written, nanoseconds }.
+    private long[] copy(String snapshot, String sql, File file) throws SQLException, IOException {
+	long start = System.nanoTime();
+	Connection conn = this.pool.acquire();
+	boolean broken = true;
+	try {
+	    conn.setAutoCommit(false);
+	    conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+	    AirBooking.update(conn, "SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+	    CopyManager copier = conn.unwrap(PGConnection.class).getCopyAPI();
+	    long rows;
+	    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+	    try {
+		if (this.gzip) out = new GZIPOutputStream(out, BUFFER_SIZE);
+		rows = copier.copyOut("COPY (" + sql + ") TO STDOUT WITH (FORMAT csv, HEADER)", out);
+	    } finally {
+		out.close();
+	    }
+	    conn.commit();
+	    conn.setAutoCommit(true);
+	    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED); // as the pool expects
+	    broken = false;
+	    return new long[] { rows, file.length(), System.nanoTime() - start };
+	} finally {
+	    if (broken) this.pool.discard(conn);
+	    else this.pool.release(conn);
+	}
+    }
+
+    /**
+     * Method to describe the files written.
+     *
+     * @return one line per file with its rows, size and copy time
+     */
+    public String report() {
+	return String.format("Export to %s:%n", this.dir) + this.report;
+    }
+}
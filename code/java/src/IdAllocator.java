@@ -0,0 +1,81 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Hands out keys from a PostgreSQL sequence without a round trip per key.
+ * Keys are leased from the sequence a block at a time and handed out to
+ * any number of threads with a single atomic increment; only the thread
+ * that finds the block used up goes to the database for the next one.
+ * Keys of a block that isn't used up when the process ends are lost,
+ * which leaves gaps just like rolled back nextval calls do.
+ */
+
+public class IdAllocator {
+    private static class Block {
+	final long[] ids;
+	final AtomicInteger next = new AtomicInteger();
+
+	Block(long[] ids) {
+	    this.ids = ids;
+	}
+    }
+
+    private final ConnectionPool pool;
+    private final String sequence;
+    private final int blockSize;
+    private volatile Block current = new Block(new long[0]);
+
+    /**
+     * @param pool the pool to lease blocks with
+     * @param sequence the name of the sequence, e.g. pIDseq
+     * @param blockSize the number of keys leased per round trip
+     */
+    public IdAllocator(ConnectionPool pool, String sequence, int blockSize) {
+	this.pool = pool;
+	this.sequence = sequence;
+	this.blockSize = blockSize;
+    }
+
+    /**
+     * Method to take the next key.
+     *
+     * @return a key no other caller got
+     * @throws java.sql.SQLException when a new block can't be leased
+     */
+    public int next() throws SQLException {
+	while (true) {
+	    Block block = this.current;
+	    int i = block.next.getAndIncrement();
+	    if (i < block.ids.length) return (int) block.ids[i];
+	    synchronized (this) {
+		if (this.current == block) this.current = lease();
+	    }
+	}
+    }
+
+    private Block lease() throws SQLException {
+	for (int attempt = 1; ; ++attempt) {
+	    Connection conn = this.pool.acquire();
+	    try {
+		List<List<String>> rows = AirBooking.query(conn, String.format("SELECT nextval('%s') FROM generate_series(1, ?)", this.sequence),
+							   this.blockSize);
+		this.pool.release(conn);
+		long[] ids = new long[rows.size()];
+		for (int i = 0; i < ids.length; ++i)
+		    ids[i] = Long.parseLong(rows.get(i).get(0));
+		return new Block(ids);
+	    } catch (SQLException e) {
+		// a block lost with the connection only leaves a gap in the ids
+		if (!AirBooking.isConnectionFailure(e)) {
+		    this.pool.release(conn);
+		    throw e;
+		}
+		this.pool.discard(conn);
+		if (attempt >= 5) throw e;
+	    }
+	}
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * AirRepository kept in memory, for running the business logic and the
+ * benchmarks without PostgreSQL. Rows live in concurrent hash maps keyed by
+ * their primary keys, with hash indexes for the lookups the operations
+ * make. Unique constraints are enforced with putIfAbsent, and seats are
+ * claimed under a lock per (flightNum, departure) like claimSeat's advisory
+ * lock. Rows are immutable and replaced as a whole, so readers never see a
+ * half written one. The data can be loaded from the CSV files in code/data.
+ */
+
+public class MemoryRepository implements AirRepository {
+    private static class Flight {
+	final int airId;
+	final String flightNum;
+	final String origin;
+	final String destination;
+	final String plane;
+	final int seats;
+	final int duration;
+
+	Flight(int airId, String flightNum, String origin, String destination, String plane, int seats, int duration) {
+	    this.airId = airId;
+	    this.flightNum = flightNum;
+	    this.origin = origin;
+	    this.destination = destination;
+	    this.plane = plane;
+	    this.seats = seats;
+	    this.duration = duration;
+	}
+    }
+
+    private static class Booking {
+	final String bookRef;
+	final Date departure;
+	final String flightNum;
+	final int pID;
+	final int version;
+
+	Booking(String bookRef, Date departure, String flightNum, int pID, int version) {
+	    this.bookRef = bookRef;
+	    this.departure = departure;
+	    this.flightNum = flightNum;
+	    this.pID = pID;
+	    this.version = version;
+	}
+    }
+
+    private static class Rating {
+	final int pID;
+	final String flightNum;
+	final int score;
+
+	Rating(int pID, String flightNum, int score) {
+	    this.pID = pID;
+	    this.flightNum = flightNum;
+	    this.score = score;
+	}
+    }
+
+    // Airline: airId -> name
+    private final Map<Integer, String> airlines = new ConcurrentHashMap<Integer, String>();
+    // Passenger: passNum -> pID, the only passenger column the operations read
+    private final Map<String, Integer> passengers = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextPID = new AtomicInteger();
+    // Flight: flightNum -> flight, and "origin|destination" -> flightNums
+    private final Map<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final Map<String, Set<String>> routes = new ConcurrentHashMap<String, Set<String>>();
+    // Booking: bookRef -> booking, "flightNum|departure" -> bookRefs, "pID|flightNum" -> bookRefs,
+    // and the UNIQUE(departure, flightNum, pID) constraint as "flightNum|departure|pID" -> bookRef
+    private final Map<String, Booking> bookings = new ConcurrentHashMap<String, Booking>();
+    private final Map<String, Set<String>> seatsTaken = new ConcurrentHashMap<String, Set<String>>();
+    private final Map<String, Set<String>> flightsBooked = new ConcurrentHashMap<String, Set<String>>();
+    private final Map<String, String> passengerBookings = new ConcurrentHashMap<String, String>();
+    private final Map<String, Object> seatLocks = new ConcurrentHashMap<String, Object>();
+    // Ratings: rID -> rating, and "pID|flightNum" of every rating
+    private final Map<Integer, Rating> ratings = new ConcurrentHashMap<Integer, Rating>();
+    private final Set<String> rated = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextRID = new AtomicInteger();
+    // route inserts and updates keep flights and routes in step
+    private final Object routeLock = new Object();
+
+    /**
+     * Method to create a repository holding the rows of the CSV files
+     * create.sql loads (airline.csv, flights.csv, passenger.csv,
+     * bookings.csv and ratings.csv).
+     *
+     * @param dir the directory with the files
+     * @return the repository
+     * @throws java.io.IOException when a file can't be read or has a bad line
+     */
+    public static MemoryRepository load(String dir) throws IOException {
+	MemoryRepository repo = new MemoryRepository();
+	for (String[] line : readCsv(new File(dir, "airline.csv"), 5))
+	    repo.airlines.put(Integer.parseInt(line[0]), line[1]);
+	for (String[] line : readCsv(new File(dir, "flights.csv"), 7))
+	    repo.insertRoute(Integer.parseInt(line[0]), line[1], line[2], line[3], line[4],
+			     Integer.parseInt(line[5]), Integer.parseInt(line[6]));
+	for (String[] line : readCsv(new File(dir, "passenger.csv"), 5)) {
+	    int pID = Integer.parseInt(line[0]);
+	    repo.passengers.put(line[1], pID);
+	    repo.nextPID.set(Math.max(repo.nextPID.get(), pID + 1));
+	}
+	for (String[] line : readCsv(new File(dir, "bookings.csv"), 4)) {
+	    Booking booking = new Booking(line[0], parseDate(line[1]), line[2], Integer.parseInt(line[3]), 0);
+	    String pair = pair(booking.flightNum, booking.departure);
+	    repo.bookings.put(booking.bookRef, booking);
+	    repo.seatsTaken.computeIfAbsent(pair, k -> ConcurrentHashMap.<String>newKeySet()).add(booking.bookRef);
+	    repo.flightBooked(booking.pID, booking.flightNum).add(booking.bookRef);
+	    repo.passengerBookings.put(pair + "|" + booking.pID, booking.bookRef);
+	}
+	for (String[] line : readCsv(new File(dir, "ratings.csv"), 5)) {
+	    int rID = Integer.parseInt(line[0]);
+	    Rating rating = new Rating(Integer.parseInt(line[1]), line[2], Integer.parseInt(line[3]));
+	    repo.ratings.put(rID, rating);
+	    repo.rated.add(rating.pID + "|" + rating.flightNum);
+	    repo.nextRID.set(Math.max(repo.nextRID.get(), rID + 1));
+	}
+	return repo;
+    }
+
+    private static List<String[]> readCsv(File file, int columns) throws IOException {
+	List<String[]> lines = new ArrayList<String[]>();
+	BufferedReader reader = new BufferedReader(new FileReader(file));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		if (line.trim().isEmpty()) continue;
+		String[] fields = line.split(",", columns); // the last column may contain commas
+		if (fields.length < columns)
+		    throw new IOException(String.format("%s: expected %d columns: %s", file, columns, line));
+		for (int i = 0; i < fields.length; ++i)
+		    fields[i] = fields[i].trim();
+		lines.add(fields);
+	    }
+	} finally {
+	    reader.close();
+	}
+	return lines;
+    }
+
+    private static Date parseDate(String date) throws IOException {
+	try {
+	    return new Date(new SimpleDateFormat("M/d/yyyy").parse(date).getTime());
+	} catch (ParseException e) {
+	    throw new IOException("bad date: " + date);
+	}
+    }
+
+    private static String pair(String flightNum, Date departure) {
+	return flightNum + "|" + departure;
+    }
+
+    private Set<String> flightBooked(int pID, String flightNum) {
+	return this.flightsBooked.computeIfAbsent(pID + "|" + flightNum, k -> ConcurrentHashMap.<String>newKeySet());
+    }
+
+    public Integer addPassenger(String passNum, String fullName, Date bdate, String country) {
+	int pID = this.nextPID.getAndIncrement();
+	return this.passengers.putIfAbsent(passNum.trim(), pID) == null ? pID : null;
+    }
+
+    public Integer findPassengerId(String passNum) {
+	return this.passengers.get(passNum.trim());
+    }
+
+    public AirBooking.Outcome bookFlight(String bookRef, int pID, String flightNum, Date departure) {
+	flightNum = flightNum.trim();
+	String pair = pair(flightNum, departure);
+	synchronized (seatLock(pair)) {
+	    AirBooking.Outcome outcome = claimSeat(flightNum, departure);
+	    if (outcome != AirBooking.Outcome.OK) return outcome;
+	    if (this.passengerBookings.putIfAbsent(pair + "|" + pID, bookRef) != null)
+		return AirBooking.Outcome.DUPLICATE;
+	    if (this.bookings.putIfAbsent(bookRef, new Booking(bookRef, departure, flightNum, pID, 0)) != null) {
+		this.passengerBookings.remove(pair + "|" + pID, bookRef);
+		return AirBooking.Outcome.CONFLICT;
+	    }
+	    this.seatsTaken.computeIfAbsent(pair, k -> ConcurrentHashMap.<String>newKeySet()).add(bookRef);
+	    flightBooked(pID, flightNum).add(bookRef);
+	    return AirBooking.Outcome.OK;
+	}
+    }
+
+    private Object seatLock(String pair) {
+	return this.seatLocks.computeIfAbsent(pair, k -> new Object());
+    }
+
+    // Must be called holding the seat lock of the pair.
+    private AirBooking.Outcome claimSeat(String flightNum, Date departure) {
+	Flight flight = this.flights.get(flightNum);
+	if (flight == null) return AirBooking.Outcome.NOT_FOUND;
+	return booked(flightNum, departure) < flight.seats ? AirBooking.Outcome.OK : AirBooking.Outcome.NO_SEATS;
+    }
+
+    private int booked(String flightNum, Date departure) {
+	Set<String> taken = this.seatsTaken.get(pair(flightNum, departure));
+	return taken == null ? 0 : taken.size();
+    }
+
+    public List<String> findBooking(String bookRef) {
+	Booking booking = this.bookings.get(bookRef.trim());
+	if (booking == null) return null;
+	return Arrays.asList(booking.departure.toString(), booking.flightNum, String.valueOf(booking.pID), String.valueOf(booking.version));
+    }
+
+    public AirBooking.Outcome cancelBooking(String bookRef, int version) {
+	Booking booking = this.bookings.get(bookRef.trim());
+	if (booking == null) return AirBooking.Outcome.NOT_FOUND;
+	String pair = pair(booking.flightNum, booking.departure);
+	// a change moving the booking onto the pair has taken its seat once the lock is free
+	synchronized (seatLock(pair)) {
+	    if (booking.version != version || !this.bookings.remove(booking.bookRef, booking))
+		return AirBooking.Outcome.CONFLICT;
+	    this.seatsTaken.get(pair).remove(booking.bookRef);
+	    flightBooked(booking.pID, booking.flightNum).remove(booking.bookRef);
+	    this.passengerBookings.remove(pair + "|" + booking.pID, booking.bookRef);
+	}
+	return AirBooking.Outcome.OK;
+    }
+
+    public AirBooking.Outcome changeBooking(String bookRef, int version, Date departure, String flightNum) {
+	flightNum = flightNum.trim();
+	Booking booking = this.bookings.get(bookRef.trim());
+	if (booking == null) return AirBooking.Outcome.NOT_FOUND;
+	if (booking.version != version) return AirBooking.Outcome.CONFLICT;
+	String oldPair = pair(booking.flightNum, booking.departure);
+	String newPair = pair(flightNum, departure);
+	// only the new pair is locked: freeing the old seat can't make another claim wrong
+	synchronized (seatLock(newPair)) {
+	    // a booking that stays on its pair keeps its seat
+	    AirBooking.Outcome outcome = newPair.equals(oldPair) ? AirBooking.Outcome.OK : claimSeat(flightNum, departure);
+	    if (outcome != AirBooking.Outcome.OK) return outcome;
+	    if (!newPair.equals(oldPair) && this.passengerBookings.putIfAbsent(newPair + "|" + booking.pID, booking.bookRef) != null)
+		return AirBooking.Outcome.DUPLICATE;
+	    // the seat is taken before the changed booking can be seen, and cancelled
+	    Set<String> taken = this.seatsTaken.computeIfAbsent(newPair, k -> ConcurrentHashMap.<String>newKeySet());
+	    boolean added = taken.add(booking.bookRef);
+	    flightBooked(booking.pID, flightNum).add(booking.bookRef);
+	    Booking changed = new Booking(booking.bookRef, departure, flightNum, booking.pID, version + 1);
+	    if (!this.bookings.replace(booking.bookRef, booking, changed)) {
+		if (added) taken.remove(booking.bookRef);
+		if (!flightNum.equals(booking.flightNum)) flightBooked(booking.pID, flightNum).remove(booking.bookRef);
+		if (!newPair.equals(oldPair)) this.passengerBookings.remove(newPair + "|" + booking.pID, booking.bookRef);
+		return this.bookings.containsKey(booking.bookRef) ? AirBooking.Outcome.CONFLICT : AirBooking.Outcome.NOT_FOUND;
+	    }
+	}
+	if (!newPair.equals(oldPair)) {
+	    this.seatsTaken.get(oldPair).remove(booking.bookRef);
+	    if (!flightNum.equals(booking.flightNum)) flightBooked(booking.pID, booking.flightNum).remove(booking.bookRef);
+	    this.passengerBookings.remove(oldPair + "|" + booking.pID, booking.bookRef);
+	}
+	return AirBooking.Outcome.OK;
+    }
+
+    public int addRating(int pID, String flightNum, int score, String comment) throws SQLException {
+	if (!this.rated.add(pID + "|" + flightNum.trim())) throw AirBooking.alreadyRated(pID, flightNum);
+	int rID = this.nextRID.getAndIncrement();
+	this.ratings.put(rID, new Rating(pID, flightNum.trim(), score));
+	return rID;
+    }
+
+    public boolean[] reviewChecks(int pID, String flightNum) {
+	flightNum = flightNum.trim();
+	Set<String> booked = this.flightsBooked.get(pID + "|" + flightNum);
+	return new boolean[] { this.flights.containsKey(flightNum), booked != null && !booked.isEmpty(),
+			       this.rated.contains(pID + "|" + flightNum) };
+    }
+
+    public AirBooking.Outcome insertRoute(int airId, String flightNum, String origin, String destination,
+					  String plane, int seats, int duration) {
+	Flight flight = new Flight(airId, flightNum.trim(), origin.trim(), destination.trim(), plane.trim(), seats, duration);
+	synchronized (this.routeLock) {
+	    if (this.flights.putIfAbsent(flight.flightNum, flight) != null) return AirBooking.Outcome.DUPLICATE;
+	    route(flight.origin, flight.destination).add(flight.flightNum);
+	}
+	return AirBooking.Outcome.OK;
+    }
+
+    public AirBooking.Outcome updateRoute(int airId, String flightNum, String origin, String destination,
+					  String plane, int seats, int duration) {
+	Flight flight = new Flight(airId, flightNum.trim(), origin.trim(), destination.trim(), plane.trim(), seats, duration);
+	synchronized (this.routeLock) {
+	    Flight old = this.flights.replace(flight.flightNum, flight);
+	    if (old == null) return AirBooking.Outcome.NOT_FOUND;
+	    route(old.origin, old.destination).remove(old.flightNum);
+	    route(flight.origin, flight.destination).add(flight.flightNum);
+	}
+	return AirBooking.Outcome.OK;
+    }
+
+    private Set<String> route(String origin, String destination) {
+	return this.routes.computeIfAbsent(origin + "|" + destination, k -> ConcurrentHashMap.<String>newKeySet());
+    }
+
+    public List<List<String>> listFlights(String origin, String destination) {
+	List<List<String>> result = new ArrayList<List<String>>();
+	for (String flightNum : route(origin.trim(), destination.trim())) {
+	    Flight f = this.flights.get(flightNum);
+	    if (f != null)
+		result.add(Arrays.asList(f.flightNum, f.origin, f.destination, f.plane, String.valueOf(f.duration)));
+	}
+	return result;
+    }
+
+    public List<List<String>> popularDestinations(int k) {
+	Map<String, Integer> counts = new HashMap<String, Integer>();
+	for (Flight f : this.flights.values())
+	    counts.merge(f.destination, 1, Integer::sum);
+	List<Map.Entry<String, Integer>> sorted = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+	sorted.sort((a, b) -> b.getValue() - a.getValue());
+	List<List<String>> result = new ArrayList<List<String>>();
+	for (Map.Entry<String, Integer> entry : sorted.subList(0, Math.min(k, sorted.size())))
+	    result.add(Arrays.asList(entry.getKey(), String.valueOf(entry.getValue())));
+	return result;
+    }
+
+    public List<List<String>> highestRatedRoutes(int k) {
+	Map<String, int[]> scores = new HashMap<String, int[]>(); // flightNum -> { sum, count }
+	for (Rating r : this.ratings.values()) {
+	    int[] score = scores.computeIfAbsent(r.flightNum, f -> new int[2]);
+	    score[0] += r.score;
+	    score[1] += 1;
+	}
+	List<List<String>> result = new ArrayList<List<String>>();
+	final Map<List<String>, Double> averages = new HashMap<List<String>, Double>();
+	for (Map.Entry<String, int[]> entry : scores.entrySet()) {
+	    Flight f = this.flights.get(entry.getKey());
+	    String name = f == null ? null : this.airlines.get(f.airId);
+	    if (name == null) continue;
+	    double avg = (double) entry.getValue()[0] / entry.getValue()[1];
+	    List<String> record = Arrays.asList(name, f.flightNum, f.origin, f.destination, f.plane, String.valueOf(avg));
+	    averages.put(record, avg);
+	    result.add(record);
+	}
+	result.sort((a, b) -> Double.compare(averages.get(b), averages.get(a)));
+	return result.subList(0, Math.min(k, result.size()));
+    }
+
+    public List<List<String>> flightsByDuration(String origin, String destination, int k) {
+	List<Flight> found = new ArrayList<Flight>();
+	for (String flightNum : route(origin.trim(), destination.trim())) {
+	    Flight f = this.flights.get(flightNum);
+	    if (f != null && this.airlines.containsKey(f.airId)) found.add(f);
+	}
+	found.sort((a, b) -> a.duration - b.duration);
+	List<List<String>> result = new ArrayList<List<String>>();
+	for (Flight f : found.subList(0, Math.min(k, found.size())))
+	    result.add(Arrays.asList(this.airlines.get(f.airId), f.flightNum, f.origin, f.destination, f.plane, String.valueOf(f.duration)));
+	return result;
+    }
+
+    public List<String> seatAvailability(String flightNum, Date departure) {
+	Flight f = this.flights.get(flightNum.trim());
+	if (f == null) return null;
+	int booked = booked(f.flightNum, departure);
+	return Collections.unmodifiableList(Arrays.asList(f.flightNum, f.origin, f.destination, departure.toString(),
+							  String.valueOf(booked), String.valueOf(f.seats), String.valueOf(f.seats - booked)));
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Serves the reports of a running program over HTTP, so its connection pool,
+ * caches and admission control can be watched while it works:
+ *
+ *   curl http://localhost:<metrics-port>/metrics
+ *
+ * The reports are the ones printed when a replay or a session engine ends.
+ */
+
+public class MetricsEndpoint {
+    private final HttpServer server;
+
+    /**
+     * Starts serving on a daemon thread.
+     *
+     * @param address the port to listen on, on this machine only, or host:port
+     * @param esql the session whose pool and components are reported
+     * @throws java.io.IOException when the port can't be listened on
+     */
+    public MetricsEndpoint(String address, final AirBooking esql) throws IOException {
+	this.server = HttpServer.create(SessionEngine.listenAddress(address), 0);
+	this.server.createContext("/metrics", exchange -> {
+	    byte[] body = report(esql).getBytes(StandardCharsets.UTF_8);
+	    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+	    exchange.sendResponseHeaders(exchange.getRequestMethod().equals("HEAD") ? -1 : 200, body.length);
+	    OutputStream out = exchange.getResponseBody();
+	    try {
+		if (!exchange.getRequestMethod().equals("HEAD")) out.write(body);
+	    } finally {
+		out.close();
+	    }
+	});
+	this.server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+	    Thread thread = new Thread(r, "metrics");
+	    thread.setDaemon(true);
+	    return thread;
+	}));
+	this.server.start();
+    }
+
+    /**
+     * Method to describe the pool and the components set on a session.
+     *
+     * @param esql the session
+     * @return the reports of the pool, replicas, report cache, admission control, seat counter and name search
+     */
+    static String report(AirBooking esql) {
+	ReplicaSet replicas = esql.getReplicas();
+	ReportCache cache = esql.getReportCache();
+	AdmissionControl admission = esql.getAdmission();
+	SeatCounter seats = esql.getSeatCounter();
+	NameSearch search = esql.getSearch();
+	return esql.getPool().contentionReport() + (replicas == null ? "" : replicas.report())
+	    + (cache == null ? "" : cache.report()) + (admission == null ? "" : admission.report())
+	    + (seats == null ? "" : seats.report()) + (search == null ? "" : search.report());
+    }
+
+    /**
+     * Method to stop serving.
+     */
+    public void close() {
+	this.server.stop(0);
+    }
+}
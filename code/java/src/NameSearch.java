@@ -0,0 +1,217 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Autocomplete and "did you mean" over the cities flights go between, the
+ * passengers' names and the airlines' names, answered from SearchIndex in
+ * memory without a query.
+ *
+ * The indexes are loaded at start and refreshed in the background when
+ * their tables changed (see AirBooking.tableVersion): cities and airlines
+ * are few and are reloaded whole; passengers are only ever added, so the
+ * passengers after the highest pID loaded are added to the index. pIDs are
+ * leased in blocks, so a passenger can commit below that watermark after it
+ * was passed; the refresh counts the passengers in the same snapshot, and
+ * reloads them whole when the count says one was missed.
+ */
+
+public class NameSearch {
+    private final AirBooking esql;
+    private volatile SearchIndex cities = new SearchIndex();
+    private volatile SearchIndex airlines = new SearchIndex();
+    private volatile SearchIndex passengers = new SearchIndex();
+    private int loadedPassengers = 0;
+    private int watermark = 0;
+    private long flightVersion = -1;
+    private long airlineVersion = -1;
+    private long passengerVersion = -1;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+	Thread thread = new Thread(r, "search-refresher");
+	thread.setDaemon(true);
+	return thread;
+    });
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+    private final AtomicLong maxSearchNanos = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * Loads the indexes and starts refreshing them.
+     *
+     * @param esql the session used to load the indexes
+     * @param interval the time between checks for changes, in milliseconds
+     * @throws java.sql.SQLException when the names can't be loaded
+     */
+    public NameSearch(AirBooking esql, long interval) throws SQLException {
+	this.esql = esql;
+	refresh();
+	this.refresher.scheduleWithFixedDelay(() -> {
+	    try {
+		refresh();
+	    } catch (SQLException e) {
+		System.err.println("Search index refresh failed: " + e.getMessage());
+	    }
+	}, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to complete or correct a city name.
+     *
+     * @param query the name as typed so far
+     * @param k the most matches returned
+     * @return the cities, the ones with the most flights first among equal matches
+     */
+    public List<SearchIndex.Match> cities(String query, int k) {
+	return search(this.cities, query, k);
+    }
+
+    /**
+     * Method to complete or correct an airline name.
+     *
+     * @param query the name as typed so far
+     * @param k the most matches returned
+     * @return the airlines, with their airId as id
+     */
+    public List<SearchIndex.Match> airlines(String query, int k) {
+	return search(this.airlines, query, k);
+    }
+
+    /**
+     * Method to complete or correct a passenger's name.
+     *
+     * @param query the name as typed so far, e.g. "jo smi"
+     * @param k the most matches returned
+     * @return the passengers, with their pID as id and their passport number as detail
+     */
+    public List<SearchIndex.Match> passengers(String query, int k) {
+	return search(this.passengers, query, k);
+    }
+
+    /**
+     * Method to look up a city regardless of case and spacing.
+     *
+     * @param name the city as typed
+     * @return the city as stored, or null if no flight goes from or to it
+     */
+    public String city(String name) {
+	SearchIndex.Match match = this.cities.find(name);
+	return match == null ? null : match.text;
+    }
+
+    /**
+     * Method to search all three indexes at once.
+     *
+     * @param query the name as typed so far
+     * @param k the most matches of each kind
+     * @return records of (kind, id, name, detail, score), cities first, then airlines, then passengers
+     */
+    public List<List<String>> listing(String query, int k) {
+	List<List<String>> rows = new ArrayList<List<String>>();
+	addRows(rows, "city", cities(query, k));
+	addRows(rows, "airline", airlines(query, k));
+	addRows(rows, "passenger", passengers(query, k));
+	return rows;
+    }
+
+    private static void addRows(List<List<String>> rows, String kind, List<SearchIndex.Match> matches) {
+	for (SearchIndex.Match match : matches)
+	    rows.add(Arrays.asList(kind, kind.equals("city") ? "" : String.valueOf(match.id), match.text,
+				   match.detail == null ? "" : match.detail, String.format("%.2f", match.score)));
+    }
+
+    private List<SearchIndex.Match> search(SearchIndex index, String query, int k) {
+	long start = System.nanoTime();
+	List<SearchIndex.Match> matches = index.search(query, k);
+	long elapsed = System.nanoTime() - start;
+	this.searches.incrementAndGet();
+	this.searchNanos.addAndGet(elapsed);
+	for (long max = this.maxSearchNanos.get(); elapsed > max && !this.maxSearchNanos.compareAndSet(max, elapsed);)
+	    max = this.maxSearchNanos.get();
+	return matches;
+    }
+
+    // Reloads or extends the indexes whose tables changed since they were loaded.
+    private synchronized void refresh() throws SQLException {
+	long version = AirBooking.tableVersion("Flight");
+	if (version != this.flightVersion) {
+	    SearchIndex cities = new SearchIndex();
+	    for (List<String> city : this.esql.withConnection(conn -> AirBooking.query(conn,
+		    "SELECT city, COUNT(*) FROM (SELECT origin AS city FROM Flight UNION ALL SELECT destination FROM Flight) C " +
+		    "GROUP BY city")))
+		cities.add(0, city.get(0), null, Integer.parseInt(city.get(1)));
+	    this.cities = cities;
+	    this.flightVersion = version;
+	}
+	version = AirBooking.tableVersion("Airline");
+	if (version != this.airlineVersion) {
+	    SearchIndex airlines = new SearchIndex();
+	    for (List<String> airline : this.esql.withConnection(conn -> AirBooking.query(conn, "SELECT airId, name, country FROM Airline")))
+		airlines.add(Integer.parseInt(airline.get(0)), airline.get(1), airline.get(2), 0);
+	    this.airlines = airlines;
+	    this.airlineVersion = version;
+	}
+	version = AirBooking.tableVersion("Passenger");
+	if (version != this.passengerVersion) {
+	    refreshPassengers();
+	    this.passengerVersion = version;
+	}
+    }
+
+    private void refreshPassengers() throws SQLException {
+	int total = loadPassengers(this.passengers, this.watermark);
+	if (this.loadedPassengers != total) {
+	    // a passenger committed below the watermark: load them all again, behind the index in use
+	    SearchIndex passengers = new SearchIndex();
+	    this.loadedPassengers = 0;
+	    this.watermark = 0;
+	    loadPassengers(passengers, 0);
+	    this.passengers = passengers;
+	    this.reloads.incrementAndGet();
+	}
+    }
+
+    // Adds the passengers after a pID to the index, and returns how many passengers there are in the same snapshot.
+    private int loadPassengers(SearchIndex passengers, final int after) throws SQLException {
+	List<List<String>> added = this.esql.inTransaction(Connection.TRANSACTION_REPEATABLE_READ, AirBooking.WriteClass.CRITICAL, conn -> {
+	    List<List<String>> rows = AirBooking.query(conn, "SELECT pID, fullName, passNum FROM Passenger WHERE pID > ? ORDER BY pID", after);
+	    rows.add(AirBooking.query(conn, "SELECT COUNT(*) FROM Passenger").get(0));
+	    return rows;
+	});
+	int total = Integer.parseInt(added.remove(added.size() - 1).get(0));
+	for (List<String> passenger : added) {
+	    this.watermark = Integer.parseInt(passenger.get(0));
+	    passengers.add(this.watermark, passenger.get(1), passenger.get(2), 0);
+	}
+	this.loadedPassengers += added.size();
+	return total;
+    }
+
+    /**
+     * Method to stop the refreshes.
+     */
+    public void close() {
+	this.refresher.shutdownNow();
+    }
+
+    /**
+     * Method to describe the indexes and how fast they answered.
+     *
+     * @return the report
+     */
+    public String report() {
+	long searches = this.searches.get();
+	return String.format("Name search: %d cities, %d airlines, %d passengers (%d full reloads), " +
+			     "%d searches, %.1f us average, %.1f us longest%n",
+			     this.cities.size(), this.airlines.size(), this.passengers.size(), this.reloads.get(), searches,
+			     searches == 0 ? 0.0 : this.searchNanos.get() / 1e3 / searches, this.maxSearchNanos.get() / 1e3);
+    }
+}
@@ -0,0 +1,269 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Summaries of the ratings for the quality team: how many ratings of each
+ * score every flight and airline got, the ratings of every flight by day for
+ * averages over the last days, and the terms used in the comments of every
+ * airline. The summary tables (see create.sql) are small and are read
+ * instead of scanning Ratings.
+ *
+ * refresh folds the ratings added since the last refresh into the
+ * summaries: it reads them by rID from the watermark on, in batches that
+ * each add their counts to the summaries and move the watermark in one
+ * transaction, so a rating is counted exactly once however often refresh
+ * runs or fails. rIDs are leased in blocks (see IdAllocator), so a rating
+ * can commit after a larger rID was already summarized; the rIDs skipped
+ * below the watermark are kept as gaps and read again by every refresh,
+ * until they are found or no writer can still hold them.
+ */
+
+public class RatingAnalytics {
+    // words too common to tell anything about a flight
+    private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList(
+	"the", "and", "was", "were", "for", "with", "that", "this", "but", "not", "are", "had", "have", "very",
+	"our", "they", "them", "their", "you", "your", "from", "all", "just", "too", "its", "there", "been"));
+
+    // a gap older than this is a block whose writer is gone
+    private static final long GAP_EXPIRY = 24 * 60 * 60 * 1000L;
+    // most rows in one summary insert, under the limit on parameters of a statement
+    private static final int ROWS_PER_INSERT = 5000;
+
+    private final AirBooking esql;
+    private final int batchSize;
+
+    private long folded = 0;
+    private long batches = 0;
+    private long late = 0;
+    private int gaps = 0;
+
+    /**
+     * @param esql the session the summaries are read and written with
+     * @param batchSize the most new ratings folded in per transaction
+     */
+    public RatingAnalytics(AirBooking esql, int batchSize) {
+	this.esql = esql;
+	this.batchSize = batchSize;
+    }
+
+    /**
+     * Method to fold the ratings added since the last refresh into the
+     * summary tables.
+     *
+     * @return the number of ratings folded in
+     * @throws java.sql.SQLException when failed to read the ratings or to write the summaries
+     */
+    public int refresh() throws SQLException {
+	int total = 0;
+	while (true) {
+	    int[] counts = this.esql.inTransaction(this::fold);
+	    total += counts[0] + counts[1];
+	    ++this.batches;
+	    if (counts[0] < this.batchSize) break; // caught up
+	}
+	this.folded += total;
+	return total;
+    }
+
+    // One batch: returns { ratings past the watermark, ratings found in gaps }.
+    private int[] fold(Connection conn) throws SQLException {
+	int hi = Integer.parseInt(AirBooking.query(conn, "SELECT hi FROM RatingWatermark FOR UPDATE").get(0).get(0));
+	List<List<String>> gaps = AirBooking.query(conn, "SELECT lo, hi, since, since < now() - ? * INTERVAL '1 millisecond' " +
+						   "FROM RatingGap ORDER BY lo", GAP_EXPIRY);
+	List<List<String>> ratings = AirBooking.query(conn,
+	    "(SELECT R.rID, R.flightNum, F.airId, R.score, R.rated::date, R.comment " +
+	    " FROM Ratings R JOIN Flight F ON F.flightNum = R.flightNum WHERE R.rID > ? ORDER BY R.rID LIMIT ?) " +
+	    "UNION ALL " +
+	    "SELECT R.rID, R.flightNum, F.airId, R.score, R.rated::date, R.comment " +
+	    "FROM RatingGap G JOIN Ratings R ON R.rID BETWEEN G.lo AND G.hi JOIN Flight F ON F.flightNum = R.flightNum",
+	    hi, this.batchSize);
+
+	Map<List<Object>, long[]> flightScores = new LinkedHashMap<List<Object>, long[]>();
+	Map<List<Object>, long[]> airlineScores = new LinkedHashMap<List<Object>, long[]>();
+	Map<List<Object>, long[]> days = new LinkedHashMap<List<Object>, long[]>();
+	Map<List<Object>, long[]> terms = new LinkedHashMap<List<Object>, long[]>();
+	List<Integer> past = new ArrayList<Integer>();
+	Set<Integer> found = new HashSet<Integer>();
+	for (List<String> rating : ratings) {
+	    int rID = Integer.parseInt(rating.get(0));
+	    String flightNum = rating.get(1);
+	    int airId = Integer.parseInt(rating.get(2));
+	    int score = Integer.parseInt(rating.get(3));
+	    if (rID > hi) past.add(rID);
+	    else found.add(rID);
+	    count(flightScores, 0, flightNum, score);
+	    count(airlineScores, 0, airId, score);
+	    count(days, score, Date.valueOf(rating.get(4)), flightNum);
+	    for (String term : terms(rating.get(5)))
+		count(terms, score, airId, term);
+	}
+
+	upsert(conn, "FlightScore", "flightNum, score", "ratings", flightScores);
+	upsert(conn, "AirlineScore", "airId, score", "ratings", airlineScores);
+	upsert(conn, "RatingDay", "day, flightNum", "ratings, total", days);
+	upsert(conn, "CommentTerm", "airId, term", "uses, total", terms);
+
+	// the gaps left: the old ones less the rIDs found, and the rIDs skipped past the watermark
+	List<Object[]> left = new ArrayList<Object[]>();
+	boolean changed = !found.isEmpty();
+	for (List<String> gap : gaps) {
+	    if (gap.get(3).equals("t")) {
+		changed = true; // expired
+		continue;
+	    }
+	    int from = Integer.parseInt(gap.get(0));
+	    int to = Integer.parseInt(gap.get(1));
+	    for (int rID = from; rID <= to; ++rID)
+		if (found.contains(rID)) {
+		    if (from < rID) left.add(new Object[] { from, rID - 1, gap.get(2) });
+		    from = rID + 1;
+		}
+	    if (from <= to) left.add(new Object[] { from, to, gap.get(2) });
+	}
+	Collections.sort(past);
+	Integer next = hi < 0 ? null : hi + 1; // nothing was skipped before the first rating
+	for (int rID : past) {
+	    if (next != null && next < rID) left.add(new Object[] { next, rID - 1, null });
+	    next = rID + 1;
+	}
+	changed |= left.size() != gaps.size();
+	if (changed) {
+	    AirBooking.update(conn, "DELETE FROM RatingGap");
+	    insert(conn, "INSERT INTO RatingGap (lo, hi, since) VALUES ", "(?, ?, COALESCE(CAST(? AS TIMESTAMP), now()))", "", left);
+	}
+	this.gaps = left.size();
+	this.late += found.size();
+	if (!past.isEmpty())
+	    AirBooking.update(conn, "UPDATE RatingWatermark SET hi = ?", past.get(past.size() - 1));
+	return new int[] { past.size(), found.size() };
+    }
+
+    // Counts one rating of a key: the first counter is incremented, the second increased by value.
+    private static void count(Map<List<Object>, long[]> counts, int value, Object... key) {
+	List<Object> k = Arrays.asList(key);
+	long[] counters = counts.get(k);
+	if (counters == null) {
+	    counters = new long[2];
+	    counts.put(k, counters);
+	}
+	counters[0] += 1;
+	counters[1] += value;
+    }
+
+    // The distinct terms of a comment: lower case words of three letters or more, less the stop words.
+    static Set<String> terms(String comment) {
+	Set<String> terms = new HashSet<String>();
+	if (comment == null) return terms;
+	for (String word : comment.toLowerCase().split("[^\\p{L}']+")) {
+	    word = word.replaceAll("^'+|'+$", "");
+	    if (word.length() >= 3 && !STOP_WORDS.contains(word)) terms.add(word);
+	}
+	return terms;
+    }
+
+    // Adds the counters to a summary table, inserting the keys it doesn't have yet.
+    private static void upsert(Connection conn, String table, String keys, String columns, Map<List<Object>, long[]> counts)
+	throws SQLException {
+	if (counts.isEmpty()) return;
+	String[] names = columns.split(", ");
+	StringBuilder tuple = new StringBuilder("(?, ?");
+	StringBuilder set = new StringBuilder();
+	for (String name : names) {
+	    tuple.append(", ?");
+	    set.append(set.length() == 0 ? "" : ", ").append(String.format("%s = %s.%s + EXCLUDED.%s", name, table, name, name));
+	}
+	List<Object[]> rows = new ArrayList<Object[]>();
+	for (Map.Entry<List<Object>, long[]> entry : counts.entrySet()) {
+	    Object[] row = new Object[2 + names.length];
+	    row[0] = entry.getKey().get(0);
+	    row[1] = entry.getKey().get(1);
+	    for (int i = 0; i < names.length; ++i)
+		row[2 + i] = entry.getValue()[i];
+	    rows.add(row);
+	}
+	insert(conn, String.format("INSERT INTO %s (%s, %s) VALUES ", table, keys, columns), tuple.append(')').toString(),
+	       String.format(" ON CONFLICT (%s) DO UPDATE SET %s", keys, set), rows);
+    }
+
+    // Inserts rows with multi-row VALUES statements.
+    private static void insert(Connection conn, String head, String tuple, String tail, List<Object[]> rows) throws SQLException {
+	for (int from = 0; from < rows.size(); from += ROWS_PER_INSERT) {
+	    List<Object[]> part = rows.subList(from, Math.min(rows.size(), from + ROWS_PER_INSERT));
+	    StringBuilder sql = new StringBuilder(head);
+	    List<Object> params = new ArrayList<Object>();
+	    for (Object[] row : part) {
+		sql.append(params.isEmpty() ? "" : ", ").append(tuple);
+		params.addAll(Arrays.asList(row));
+	    }
+	    AirBooking.update(conn, sql.append(tail).toString(), params.toArray());
+	}
+    }
+
+    /**
+     * Method to summarize the ratings of every airline that has some.
+     *
+     * @param days the window of the recent average, in days up to today
+     * @param k the most terms listed per airline
+     * @return records of (airId, name, ratings, average score, number of ratings of each score
+     *         from 0 to 5, average of the last days, most used terms), the best rated first
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> airlines(final int days, final int k) throws SQLException {
+	return this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT A.airId, A.name, S.ratings, ROUND(S.total::numeric / S.ratings, 2), " +
+	    "       (SELECT string_agg(COALESCE(C.ratings, 0)::text, '/' ORDER BY G.score) " +
+	    "        FROM generate_series(0, 5) G(score) LEFT JOIN AirlineScore C ON C.airId = A.airId AND C.score = G.score), " +
+	    "       (SELECT ROUND(SUM(D.total)::numeric / SUM(D.ratings), 2) " +
+	    "        FROM Flight F JOIN RatingDay D ON D.flightNum = F.flightNum " +
+	    "        WHERE F.airId = A.airId AND D.day > current_date - ?), " +
+	    "       (SELECT string_agg(T.term, ' ' ORDER BY T.uses DESC, T.term) " +
+	    "        FROM (SELECT term, uses FROM CommentTerm WHERE airId = A.airId ORDER BY uses DESC, term LIMIT ?) T) " +
+	    "FROM Airline A " +
+	    "JOIN (SELECT airId, SUM(ratings) AS ratings, SUM(score * ratings) AS total FROM AirlineScore GROUP BY airId) S " +
+	    "  ON S.airId = A.airId " +
+	    "ORDER BY S.total::numeric / S.ratings DESC, A.airId", days, k));
+    }
+
+    /**
+     * Method to summarize the ratings of the flights of an airline.
+     *
+     * @param airId the airline
+     * @param days the window of the recent average, in days up to today
+     * @return records of (flightNum, origin, destination, ratings, average score, number of
+     *         ratings of each score from 0 to 5, average of the last days), the best rated first
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> flights(final int airId, final int days) throws SQLException {
+	return this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT F.flightNum, F.origin, F.destination, S.ratings, ROUND(S.total::numeric / S.ratings, 2), " +
+	    "       (SELECT string_agg(COALESCE(C.ratings, 0)::text, '/' ORDER BY G.score) " +
+	    "        FROM generate_series(0, 5) G(score) LEFT JOIN FlightScore C ON C.flightNum = F.flightNum AND C.score = G.score), " +
+	    "       (SELECT ROUND(SUM(D.total)::numeric / SUM(D.ratings), 2) " +
+	    "        FROM RatingDay D WHERE D.flightNum = F.flightNum AND D.day > current_date - ?) " +
+	    "FROM Flight F " +
+	    "JOIN (SELECT flightNum, SUM(ratings) AS ratings, SUM(score * ratings) AS total FROM FlightScore GROUP BY flightNum) S " +
+	    "  ON S.flightNum = F.flightNum " +
+	    "WHERE F.airId = ? " +
+	    "ORDER BY S.total::numeric / S.ratings DESC, F.flightNum", days, airId));
+    }
+
+    /**
+     * Method to describe the refreshes run so far.
+     *
+     * @return the report
+     */
+    public String report() {
+	return String.format("Rating analytics: %d ratings folded in %d batches, %d of them committed late, %d gaps open%n",
+			     this.folded, this.batches, this.late, this.gaps);
+    }
+}
@@ -0,0 +1,215 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Write-behind buffer for ratings. Submitted ratings are collected and
+ * written as one multi-row INSERT in one transaction when maxRows are
+ * pending or the oldest has waited maxDelay milliseconds, so many ratings
+ * share one commit and one WAL flush. rIDs come from the session's leased
+ * block and are given to the rows explicitly, which skips the per-row
+ * ratings_insert trigger. The future returned for a rating completes with
+ * its rID once the transaction that wrote it has committed. A rating of a
+ * flight the passenger already rated, before or earlier in the batch, isn't
+ * written and its future fails as addRating does.
+ */
+
+public class RatingBuffer {
+    private static class Pending {
+	final int pID;
+	final String flightNum;
+	final int score;
+	final String comment;
+	final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+	// given before the first attempt, so a write that may have committed can be looked up
+	int rID;
+
+	Pending(int pID, String flightNum, int score, String comment) {
+	    this.pID = pID;
+	    this.flightNum = flightNum;
+	    this.score = score;
+	    this.comment = comment;
+	}
+    }
+
+    private final AirBooking esql;
+    private final int maxRows;
+    private final long maxDelay;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+	Thread thread = new Thread(r, "rating-flusher");
+	thread.setDaemon(true);
+	return thread;
+    });
+
+    // guarded by this
+    private List<Pending> pending = new ArrayList<Pending>();
+    private boolean closed = false;
+
+    /**
+     * @param esql the session whose connections the buffer writes with
+     * @param maxRows the number of pending ratings that triggers a write
+     * @param maxDelay the longest a rating waits to be written, in milliseconds
+     */
+    public RatingBuffer(AirBooking esql, int maxRows, long maxDelay) {
+	this.esql = esql;
+	this.maxRows = maxRows;
+	this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return the session the buffer writes with
+     */
+    AirBooking writer() {
+	return this.esql;
+    }
+
+    /**
+     * Method to queue a rating for writing.
+     *
+     * @return a future completed with the rID once the rating is committed
+     */
+    public CompletableFuture<Integer> submit(int pID, String flightNum, int score, String comment) {
+	Pending rating = new Pending(pID, flightNum, score, comment);
+	synchronized (this) {
+	    if (this.closed) throw new IllegalStateException("rating buffer is closed");
+	    this.pending.add(rating);
+	    if (this.pending.size() >= this.maxRows)
+		this.flusher.execute(this::flush);
+	    else if (this.pending.size() == 1)
+		this.flusher.schedule(this::flush, this.maxDelay, TimeUnit.MILLISECONDS);
+	}
+	return rating.done;
+    }
+
+    /**
+     * Method to write the pending ratings and stop the buffer.
+     */
+    public void close() {
+	synchronized (this) {
+	    this.closed = true;
+	}
+	this.flusher.execute(this::flush);
+	this.flusher.shutdown();
+	try {
+	    this.flusher.awaitTermination(1, TimeUnit.MINUTES);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private void flush() {
+	List<Pending> batch;
+	synchronized (this) {
+	    if (this.pending.isEmpty()) return;
+	    batch = this.pending;
+	    this.pending = new ArrayList<Pending>();
+	}
+	try {
+	    for (Pending rating : batch)
+		rating.rID = this.esql.nextRatingId();
+	    try {
+		write(batch);
+	    } catch (SQLException e) {
+		List<Pending> rest = batch;
+		if (AirBooking.COMMIT_UNKNOWN.equals(e.getSQLState())) {
+		    // the batch may have committed, and written again its ratings
+		    // would be found and failed as repeats of themselves
+		    try {
+			rest = uncommitted(batch);
+		    } catch (SQLException e2) {
+			e.addSuppressed(e2);
+			throw e;
+		    }
+		}
+		// one bad rating (e.g. an unknown flight) fails the whole statement,
+		// so write them one by one to fail only the bad ones
+		for (Pending rating : rest) {
+		    try {
+			write(Collections.singletonList(rating));
+		    } catch (Throwable e2) {
+			rating.done.completeExceptionally(e2);
+		    }
+		}
+	    }
+	} catch (Throwable e) {
+	    // the executor would swallow it and the callers would wait forever
+	    for (Pending rating : batch)
+		rating.done.completeExceptionally(e);
+	}
+    }
+
+    /**
+     * Method to complete the futures of the batch's ratings that are in the
+     * database, looked up by their rIDs on a new connection.
+     *
+     * @return the ratings that aren't
+     */
+    private List<Pending> uncommitted(List<Pending> batch) throws SQLException {
+	final Integer[] rIDs = new Integer[batch.size()];
+	for (int i = 0; i < rIDs.length; ++i)
+	    rIDs[i] = batch.get(i).rID;
+	Set<String> found = new HashSet<String>();
+	for (List<String> row : this.esql.withConnection(conn -> AirBooking.query(conn, "SELECT rID FROM Ratings WHERE rID = ANY(?)",
+										    conn.createArrayOf("integer", rIDs))))
+	    found.add(row.get(0));
+	if (!found.isEmpty()) AirBooking.tableChanged("Ratings");
+	List<Pending> rest = new ArrayList<Pending>();
+	for (Pending rating : batch) {
+	    if (found.contains(String.valueOf(rating.rID))) rating.done.complete(rating.rID);
+	    else rest.add(rating);
+	}
+	return rest;
+    }
+
+    private void write(final List<Pending> batch) throws SQLException {
+	// whether each rating was written; the others repeat a rating of the same passenger and flight
+	final boolean[] written = new boolean[batch.size()];
+
+	// CRITICAL: the futures promise the ratings are durable, the batch already shares one flush
+	this.esql.inTransaction(AirBooking.WriteClass.CRITICAL, conn -> {
+	    List<Integer> pIDs = new ArrayList<Integer>();
+	    List<String> flightNums = new ArrayList<String>();
+	    for (Pending rating : batch) {
+		pIDs.add(rating.pID);
+		flightNums.add(rating.flightNum);
+	    }
+	    Set<String> rated = AirBooking.lockRatings(conn, pIDs, flightNums);
+	    StringBuilder sql = new StringBuilder("INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES ");
+	    List<Object> params = new ArrayList<Object>();
+	    List<String[]> changes = new ArrayList<String[]>();
+	    for (int i = 0; i < batch.size(); ++i) {
+		Pending rating = batch.get(i);
+		// the first of the batch's ratings of a pair is written
+		written[i] = rated.add(rating.pID + "|" + rating.flightNum.trim());
+		if (!written[i]) continue;
+		sql.append(params.isEmpty() ? "" : ", ").append("(?, ?, ?, ?, ?)");
+		params.add(rating.rID);
+		params.add(rating.pID);
+		params.add(rating.flightNum);
+		params.add(rating.score);
+		params.add(rating.comment);
+		changes.add(new String[] { "rated", String.valueOf(rating.rID),
+					   AirBooking.ratingJson(rating.rID, rating.pID, rating.flightNum, rating.score, rating.comment) });
+	    }
+	    if (params.isEmpty()) return null;
+	    AirBooking.update(conn, sql.toString(), params.toArray());
+	    if (this.esql.hasOutbox())
+		ChangeFeed.append(conn, changes);
+	    return null;
+	});
+	AirBooking.tableChanged("Ratings");
+	for (int i = 0; i < batch.size(); ++i) {
+	    Pending rating = batch.get(i);
+	    if (written[i]) rating.done.complete(rating.rID);
+	    else rating.done.completeExceptionally(AirBooking.alreadyRated(rating.pID, rating.flightNum));
+	}
+    }
+}
@@ -0,0 +1,388 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Batch mode for AirBooking. Reads a file of operations, one JSON object per
+ * line, and runs them through the same business methods the menu uses, e.g.
+ *
+ *   {"op":"book","passport":"UKXRHGPOLG","date":"2017-10-23","flight":"IB903"}
+ *
+ * Operations run on a number of concurrent workers, each with its own
+ * connection. In closed-loop mode a worker starts the next operation as soon
+ * as the previous one finished. In open-loop mode operations are started at a
+ * fixed rate and latency is measured from the time an operation was due, so
+ * a slow server shows up as latency instead of as a lower offered load.
+ * Throughput and latency percentiles are printed at the end.
+ *
+ * In async mode a single thread issues the operations through
+ * AsyncAirBooking and up to concurrency operations are in flight at once.
+ */
+
+public class ReplayDriver {
+    private final List<Map<String, String>> records;
+    private final int concurrency;
+    private final double rate; // operations per second, 0 for closed-loop
+
+    // latency of each record in nanoseconds, -1 if it failed
+    private final long[] latencies;
+    private final String[] outcomes;
+    private final AtomicInteger next = new AtomicInteger();
+    private boolean async = false;
+
+    public ReplayDriver(List<Map<String, String>> records, int concurrency, double rate) {
+	this.records = records;
+	this.concurrency = concurrency;
+	this.rate = rate;
+	this.latencies = new long[records.size()];
+	this.outcomes = new String[records.size()];
+    }
+
+    /**
+     * Method to read a replay file.
+     *
+     * @param path the file with one JSON object per line
+     * @return the records, blank lines and lines starting with # are skipped
+     * @throws java.io.IOException when the file can't be read or a line isn't a JSON object
+     */
+    public static List<Map<String, String>> readRecords(String path) throws IOException {
+	List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+	BufferedReader reader = new BufferedReader(new FileReader(path));
+	try {
+	    String line;
+	    int lineNum = 0;
+	    while ((line = reader.readLine()) != null) {
+		++lineNum;
+		line = line.trim();
+		if (line.isEmpty() || line.startsWith("#")) continue;
+		try {
+		    records.add(parseObject(line));
+		} catch (IllegalArgumentException e) {
+		    throw new IOException(String.format("%s:%d: %s", path, lineNum, e.getMessage()));
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+	return records;
+    }
+
+    /**
+     * Method to parse a flat JSON object. Nested objects and arrays are not
+     * supported, every value is returned as its string form.
+     *
+     * @param json the JSON text
+     * @return the members of the object
+     */
+    static Map<String, String> parseObject(String json) {
+	Map<String, String> members = new HashMap<String, String>();
+	int[] pos = { skipSpace(json, 0) };
+	expect(json, pos, '{');
+	if (peek(json, pos) == '}') return members;
+	do {
+	    String key = parseString(json, pos);
+	    expect(json, pos, ':');
+	    String value;
+	    if (peek(json, pos) == '"') {
+		value = parseString(json, pos);
+	    } else {
+		int start = pos[0];
+		while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0) ++pos[0];
+		value = json.substring(start, pos[0]);
+		if (value.isEmpty()) throw new IllegalArgumentException("missing value for " + key);
+		if (value.equals("null")) value = null;
+	    }
+	    members.put(key, value);
+	} while (tryConsume(json, pos, ','));
+	expect(json, pos, '}');
+	return members;
+    }
+
+    private static String parseString(String json, int[] pos) {
+	expect(json, pos, '"');
+	StringBuilder sb = new StringBuilder();
+	while (pos[0] < json.length()) {
+	    char c = json.charAt(pos[0]++);
+	    if (c == '"') {
+		pos[0] = skipSpace(json, pos[0]);
+		return sb.toString();
+	    }
+	    if (c != '\\') {
+		sb.append(c);
+		continue;
+	    }
+	    if (pos[0] >= json.length()) break;
+	    char e = json.charAt(pos[0]++);
+	    switch (e) {
+	    case 'n': sb.append('\n'); break;
+	    case 't': sb.append('\t'); break;
+	    case 'r': sb.append('\r'); break;
+	    case 'b': sb.append('\b'); break;
+	    case 'f': sb.append('\f'); break;
+	    case 'u':
+		if (pos[0] + 4 > json.length()) throw new IllegalArgumentException("bad unicode escape");
+		sb.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+		pos[0] += 4;
+		break;
+	    default: sb.append(e);
+	    }
+	}
+	throw new IllegalArgumentException("unterminated string");
+    }
+
+    private static int skipSpace(String json, int pos) {
+	while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) ++pos;
+	return pos;
+    }
+
+    private static char peek(String json, int[] pos) {
+	if (pos[0] >= json.length()) throw new IllegalArgumentException("unexpected end of line");
+	return json.charAt(pos[0]);
+    }
+
+    private static boolean tryConsume(String json, int[] pos, char c) {
+	pos[0] = skipSpace(json, pos[0]);
+	if (pos[0] < json.length() && json.charAt(pos[0]) == c) {
+	    pos[0] = skipSpace(json, pos[0] + 1);
+	    return true;
+	}
+	return false;
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+	if (!tryConsume(json, pos, c))
+	    throw new IllegalArgumentException(String.format("expected '%c' at column %d", c, pos[0] + 1));
+    }
+
+    /**
+     * Method to run one operation record through the business methods of
+     * AirBooking.
+     *
+     * @param esql the session to run the operation on
+     * @param record the operation record
+     * @return a short description of the outcome, e.g. "OK" or "NO_SEATS"
+     * @throws java.sql.SQLException when the operation failed
+     */
+    static String execute(AirRepository esql, Map<String, String> record) throws SQLException {
+	String op = field(record, "op");
+	if (op.equals("passenger")) {
+	    return esql.addPassenger(field(record, "passport"), field(record, "name"),
+				     Date.valueOf(field(record, "bdate")), field(record, "country")) == null ? "DUPLICATE" : "OK";
+	}
+	else if (op.equals("book")) {
+	    Integer pID = esql.findPassengerId(field(record, "passport"));
+	    if (pID == null) return "NO_PASSENGER";
+	    AirBooking.Outcome outcome;
+	    do {
+		outcome = esql.bookFlight(AirBooking.newBookRef(), pID, field(record, "flight"), Date.valueOf(field(record, "date")));
+	    } while (outcome == AirBooking.Outcome.CONFLICT);
+	    return outcome.name();
+	}
+	else if (op.equals("review")) {
+	    Integer pID = esql.findPassengerId(field(record, "passport"));
+	    if (pID == null) return "NO_PASSENGER";
+	    // the checks of TakeCustomerReview
+	    String flightNum = field(record, "flight");
+	    int score = Integer.parseInt(field(record, "score"));
+	    if (score < 0 || score > 5) return "BAD_SCORE";
+	    boolean[] checks = esql.reviewChecks(pID, flightNum);
+	    if (!checks[0]) return "NOT_FOUND";
+	    if (!checks[1]) return "NOT_BOOKED";
+	    if (checks[2]) return "RATED";
+	    try {
+		esql.submitRating(pID, flightNum, score, record.get("comment")).join();
+	    } catch (CompletionException e) {
+		// rated by another worker since the checks
+		if (e.getCause() instanceof SQLException && AirBooking.isUniqueViolation((SQLException) e.getCause())) return "RATED";
+		throw e;
+	    }
+	    return "OK";
+	}
+	else if (op.equals("route")) {
+	    int airId = Integer.parseInt(field(record, "airId"));
+	    String flightNum = field(record, "flight");
+	    String origin = field(record, "origin");
+	    String destination = field(record, "destination");
+	    String plane = field(record, "plane");
+	    int seats = Integer.parseInt(field(record, "seats"));
+	    int duration = Integer.parseInt(field(record, "duration"));
+	    if ("update".equals(record.get("mode")))
+		return esql.updateRoute(airId, flightNum, origin, destination, plane, seats, duration).name();
+	    return esql.insertRoute(airId, flightNum, origin, destination, plane, seats, duration).name();
+	}
+	else if (op.equals("cancel") || op.equals("change")) {
+	    String bookRef = field(record, "bookRef");
+	    List<String> booking = esql.findBooking(bookRef);
+	    if (booking == null) return "NOT_FOUND";
+	    int version = Integer.parseInt(booking.get(3));
+	    if (op.equals("cancel"))
+		return esql.cancelBooking(bookRef, version).name();
+	    String date = record.get("date");
+	    String flight = record.get("flight");
+	    return esql.changeBooking(bookRef, version, Date.valueOf(date == null ? booking.get(0) : date),
+				      flight == null ? booking.get(1) : flight).name();
+	}
+	else if (op.equals("flights")) {
+	    return rows(esql.listFlights(field(record, "origin"), field(record, "destination")).size());
+	}
+	else if (op.equals("popular")) {
+	    return rows(esql.popularDestinations(Integer.parseInt(field(record, "k"))).size());
+	}
+	else if (op.equals("rated")) {
+	    return rows(esql.highestRatedRoutes(Integer.parseInt(field(record, "k"))).size());
+	}
+	else if (op.equals("duration")) {
+	    return rows(esql.flightsByDuration(field(record, "origin"), field(record, "destination"),
+					       Integer.parseInt(field(record, "k"))).size());
+	}
+	else if (op.equals("seats")) {
+	    return esql.seatAvailability(field(record, "flight"), Date.valueOf(field(record, "date"))) == null ? "NOT_FOUND" : "OK";
+	}
+	throw new IllegalArgumentException("unknown op: " + op);
+    }
+
+    private static String field(Map<String, String> record, String name) {
+	String value = record.get(name);
+	if (value == null) throw new IllegalArgumentException("missing field: " + name);
+	return value;
+    }
+
+    private static String rows(int count) {
+	return count == 0 ? "EMPTY" : "OK";
+    }
+
+    /**
+     * Method to run all records and print the report.
+     *
+     * @param sessions one session per worker, or the same repository for all
+     * @throws java.lang.InterruptedException when interrupted while waiting for the workers
+     */
+    public void run(final List<? extends AirRepository> sessions) throws InterruptedException {
+	final long start = System.nanoTime();
+	List<Thread> workers = new ArrayList<Thread>();
+	for (int w = 0; w < this.concurrency; ++w) {
+	    final AirRepository esql = sessions.get(w);
+	    Thread worker = new Thread(() -> work(esql, start), "replay-" + w);
+	    worker.start();
+	    workers.add(worker);
+	}
+	for (Thread worker : workers)
+	    worker.join();
+	report(System.nanoTime() - start);
+    }
+
+    /**
+     * Method to run all records through the asynchronous front end and
+     * print the report.
+     *
+     * @param async the front end, it should allow concurrency operations in flight
+     * @throws java.lang.InterruptedException when interrupted while waiting for the operations
+     */
+    public void runAsync(AsyncAirBooking async) throws InterruptedException {
+	this.async = true;
+	final CountDownLatch done = new CountDownLatch(this.records.size());
+	final long start = System.nanoTime();
+	for (int n = 0; n < this.records.size(); ++n) {
+	    final int i = n;
+	    long due = System.nanoTime();
+	    if (this.rate > 0) { // open loop: wait until the operation is due
+		due = start + (long) (i * 1e9 / this.rate);
+		long wait = due - System.nanoTime();
+		if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+	    }
+	    final long issued = due;
+	    final Map<String, String> record = this.records.get(i);
+	    CompletableFuture<String> outcome;
+	    if ("seats".equals(record.get("op")) && record.get("flight") != null && record.get("date") != null)
+		outcome = async.seatAvailability(record.get("flight"), Date.valueOf(record.get("date")))
+		    .thenApply(seats -> seats == null ? "NOT_FOUND" : "OK");
+	    else
+		outcome = async.submit(esql -> execute(esql, record));
+	    outcome.whenComplete((result, e) -> {
+		if (e == null) {
+		    this.outcomes[i] = record.get("op") + " " + result;
+		    this.latencies[i] = System.nanoTime() - issued;
+		} else {
+		    this.outcomes[i] = record.get("op") + " ERROR";
+		    this.latencies[i] = -1;
+		    System.err.println(String.format("record %d: %s", i + 1, e.getMessage()));
+		}
+		done.countDown();
+	    });
+	}
+	done.await();
+	report(System.nanoTime() - start);
+    }
+
+    private void work(AirRepository esql, long start) {
+	int i;
+	while ((i = this.next.getAndIncrement()) < this.records.size()) {
+	    long due = System.nanoTime();
+	    if (this.rate > 0) { // open loop: wait until the operation is due
+		due = start + (long) (i * 1e9 / this.rate);
+		long wait = due - System.nanoTime();
+		if (wait > 0) {
+		    try {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		}
+	    }
+	    Map<String, String> record = this.records.get(i);
+	    try {
+		this.outcomes[i] = record.get("op") + " " + execute(esql, record);
+		this.latencies[i] = System.nanoTime() - due;
+	    } catch (Exception e) {
+		this.outcomes[i] = record.get("op") + " ERROR";
+		this.latencies[i] = -1;
+		System.err.println(String.format("record %d: %s", i + 1, e.getMessage()));
+	    }
+	}
+    }
+
+    private void report(long elapsed) {
+	long[] ok = new long[this.latencies.length];
+	int n = 0;
+	for (long latency : this.latencies)
+	    if (latency >= 0) ok[n++] = latency;
+	ok = Arrays.copyOf(ok, n);
+	Arrays.sort(ok);
+
+	Map<String, Integer> counts = new TreeMap<String, Integer>();
+	for (String outcome : this.outcomes)
+	    if (outcome != null) counts.merge(outcome, 1, Integer::sum);
+
+	double seconds = elapsed / 1e9;
+	System.out.println(String.format("%d operations in %.2f s %s %d %s (%s): %.1f ops/s, %d errors",
+					 this.records.size(), seconds, this.async ? "with" : "on", this.concurrency,
+					 this.async ? "in flight" : "workers",
+					 this.rate > 0 ? String.format("open loop at %.1f ops/s", this.rate) : "closed loop",
+					 this.records.size() / seconds, this.latencies.length - n));
+	if (n > 0) {
+	    System.out.println(String.format("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+					     percentile(ok, 50), percentile(ok, 90), percentile(ok, 99),
+					     percentile(ok, 99.9), ok[n - 1] / 1e6));
+	}
+	for (Map.Entry<String, Integer> count : counts.entrySet())
+	    System.out.println(String.format("  %-30s%d", count.getKey(), count.getValue()));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+	int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+	return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,191 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The streaming replicas of the AirBooking database that read-only reports
+ * can run on. Each replica gets its own connection pool. A background check
+ * asks every replica how far it has replayed the primary's WAL; replicas
+ * that don't answer, or aren't in recovery, are skipped until they do.
+ * Readers are spread round-robin over the healthy replicas that have
+ * replayed at least the caller's last write, so a session always sees its
+ * own writes. LSNs use the PostgreSQL 10 function names.
+ *
+ * The check runs on a connection of its own with short timeouts, so a
+ * replica that doesn't answer delays the check of the others by a few
+ * seconds (CHECK_TIMEOUT_S) at most. Reads don't wait for a replica to come
+ * back either: a connection that can't be opened sends the read to the
+ * primary.
+ */
+
+public class ReplicaSet {
+    // seconds the health check waits for a replica to connect or answer
+    private static final int CHECK_TIMEOUT_S = 2;
+    // seconds the pools wait for a replica to connect
+    private static final int CONNECT_TIMEOUT_S = 5;
+
+    private static class Replica {
+	final String url;
+	volatile ConnectionPool pool;
+	Connection check = null; // used by the health check only
+	volatile boolean healthy = false;
+	volatile long replayLsn = -1;
+	final AtomicLong reads = new AtomicLong();
+
+	Replica(String url) {
+	    this.url = url;
+	}
+    }
+
+    private final List<Replica> replicas = new ArrayList<Replica>();
+    private final String user;
+    private final String passwd;
+    private final int poolSize;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+	Thread thread = new Thread(r, "replica-check");
+	thread.setDaemon(true);
+	return thread;
+    });
+
+    /**
+     * Creates the replica set and checks every replica once. Replicas that
+     * can't be reached yet are retried by the background check.
+     *
+     * @param endpoints the replicas as host:port
+     * @param dbname the database name
+     * @param user the database user
+     * @param passwd the password
+     * @param poolSize the maximum number of connections to each replica
+     * @param checkInterval the time between health checks, in milliseconds
+     */
+    public ReplicaSet(List<String> endpoints, String dbname, String user, String passwd, int poolSize, long checkInterval) {
+	for (String endpoint : endpoints)
+	    this.replicas.add(new Replica("jdbc:postgresql://" + endpoint + "/" + dbname));
+	this.user = user;
+	this.passwd = passwd;
+	this.poolSize = poolSize;
+	check();
+	this.checker.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to choose the replica for a read.
+     *
+     * @param minLsn the LSN the replica must have replayed, 0 for any
+     * @return the pool of the chosen replica or null if the read must go to the primary
+     */
+    public ConnectionPool pick(long minLsn) {
+	int n = this.replicas.size();
+	int start = this.next.getAndIncrement();
+	for (int i = 0; i < n; ++i) {
+	    Replica replica = this.replicas.get(Math.floorMod(start + i, n));
+	    if (replica.healthy && replica.replayLsn >= minLsn) {
+		replica.reads.incrementAndGet();
+		return replica.pool;
+	    }
+	}
+	this.primaryReads.incrementAndGet();
+	return null;
+    }
+
+    /**
+     * Method to take a replica out of rotation after a connection to it
+     * failed. The next health check puts it back once it answers again.
+     *
+     * @param pool the pool returned by pick
+     */
+    public void failed(ConnectionPool pool) {
+	for (Replica replica : this.replicas)
+	    if (replica.pool == pool) replica.healthy = false;
+    }
+
+    private void check() {
+	for (Replica replica : this.replicas) {
+	    try {
+		if (replica.check == null)
+		    replica.check = DriverManager.getConnection(replica.url + "?connectTimeout=" + CHECK_TIMEOUT_S +
+								"&socketTimeout=" + 2 * CHECK_TIMEOUT_S, this.user, this.passwd);
+		PreparedStatement stmt = replica.check.prepareStatement("SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()");
+		try {
+		    stmt.setQueryTimeout(CHECK_TIMEOUT_S);
+		    ResultSet rs = stmt.executeQuery();
+		    rs.next();
+		    boolean inRecovery = rs.getBoolean(1);
+		    String lsn = rs.getString(2);
+		    replica.replayLsn = lsn == null ? -1 : parseLsn(lsn);
+		    if (inRecovery && lsn != null && replica.pool == null) {
+			replica.pool = new ConnectionPool(replica.url + "?connectTimeout=" + CONNECT_TIMEOUT_S, this.user, this.passwd, this.poolSize);
+			replica.pool.setReconnectTimeout(0);
+		    }
+		    replica.healthy = inRecovery && lsn != null;
+		} finally {
+		    stmt.close();
+		}
+	    } catch (SQLException e) {
+		if (replica.healthy)
+		    System.err.println(String.format("Replica %s is down: %s", replica.url, e.getMessage()));
+		replica.healthy = false;
+		if (replica.check != null) {
+		    try {
+			replica.check.close();
+		    } catch (SQLException e2) {
+			// ignored.
+		    }
+		    replica.check = null;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Method to turn the text form of an LSN, e.g. 16/B374D848, into a number
+     * that compares like the LSN.
+     */
+    public static long parseLsn(String lsn) {
+	int slash = lsn.indexOf('/');
+	return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+    }
+
+    /**
+     * Method to stop the health checks and close the replica pools.
+     */
+    public void close() {
+	this.checker.shutdownNow();
+	for (Replica replica : this.replicas) {
+	    if (replica.pool != null) replica.pool.close();
+	    if (replica.check != null) {
+		try {
+		    replica.check.close();
+		} catch (SQLException e) {
+		    // ignored.
+		}
+	    }
+	}
+    }
+
+    /**
+     * Method to describe where reads went.
+     *
+     * @return one line per replica and one for the reads sent to the primary
+     */
+    public String report() {
+	StringBuilder report = new StringBuilder();
+	report.append(String.format("Reads: %d on the primary%n", this.primaryReads.get()));
+	for (Replica replica : this.replicas)
+	    report.append(String.format("  %-50s%8d reads  %s%n", replica.url, replica.reads.get(),
+					replica.healthy ? "healthy" : "down"));
+	return report.toString();
+    }
+}
@@ -0,0 +1,143 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cache for the results of report queries. A result is stored with the
+ * versions its tables had when it was computed (see
+ * AirBooking.tableVersion) and is recomputed once any of them changed, so
+ * no write has to know which reports it affects. When the estimated size of
+ * the stored results passes the limit, the least recently used ones are
+ * dropped. A time to live can bound how stale a result gets when other
+ * processes' writes aren't noticed (see ChangeListener).
+ */
+
+public class ReportCache {
+    /**
+     * Computes a report on a cache miss.
+     */
+    public interface Loader {
+	List<List<String>> load() throws SQLException;
+    }
+
+    private static class Entry {
+	final List<List<String>> rows;
+	final String[] tables;
+	final long[] versions;
+	final long size;
+	final long loaded = System.nanoTime();
+
+	Entry(List<List<String>> rows, String[] tables, long[] versions) {
+	    this.rows = rows;
+	    this.tables = tables;
+	    this.versions = versions;
+	    this.size = estimateSize(rows);
+	}
+
+	boolean isCurrent(long ttl) {
+	    if (ttl > 0 && System.nanoTime() - this.loaded > ttl) return false;
+	    for (int i = 0; i < this.tables.length; ++i)
+		if (AirBooking.tableVersion(this.tables[i]) != this.versions[i]) return false;
+	    return true;
+	}
+    }
+
+    private final long maxBytes;
+    private volatile long ttl = 0; // nanoseconds, 0 for none
+
+    // guarded by this, in access order so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long stale = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes the estimated memory the cached results may take
+     */
+    public ReportCache(long maxBytes) {
+	this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Method to set how long a result is used before it is computed again
+     * even though its tables didn't change.
+     *
+     * @param ttl the time in milliseconds, 0 to keep results until their tables change
+     */
+    public void setTtl(long ttl) {
+	this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Method to get a report from the cache, computing it if it isn't
+     * cached or one of its tables changed since it was.
+     *
+     * @param key the report type and its parameters, e.g. "popular 10"
+     * @param tables the tables the report reads
+     * @param loader computes the report, on the primary: a replica may not
+     *        have replayed the writes the table versions already count, and
+     *        the result would be cached as current
+     * @return the rows of the report, must not be modified
+     * @throws java.sql.SQLException the exception thrown by the loader
+     */
+    public List<List<String>> get(String key, String[] tables, Loader loader) throws SQLException {
+	synchronized (this) {
+	    Entry entry = this.entries.get(key);
+	    if (entry != null && entry.isCurrent(this.ttl)) {
+		++this.hits;
+		return entry.rows;
+	    }
+	    if (entry == null) ++this.misses;
+	    else ++this.stale;
+	}
+
+	// read the versions before the query, so a write that races with it leaves the result stale
+	long[] versions = new long[tables.length];
+	for (int i = 0; i < tables.length; ++i)
+	    versions[i] = AirBooking.tableVersion(tables[i]);
+	Entry entry = new Entry(loader.load(), tables, versions);
+
+	synchronized (this) {
+	    Entry old = this.entries.put(key, entry);
+	    if (old != null) this.bytes -= old.size;
+	    this.bytes += entry.size;
+	    Iterator<Entry> lru = this.entries.values().iterator();
+	    while (this.bytes > this.maxBytes && lru.hasNext()) {
+		Entry victim = lru.next();
+		if (victim == entry) break;
+		lru.remove();
+		this.bytes -= victim.size;
+		++this.evictions;
+	    }
+	}
+	return entry.rows;
+    }
+
+    // Rough heap size of a result: object headers, references and the characters.
+    private static long estimateSize(List<List<String>> rows) {
+	long size = 64;
+	for (List<String> row : rows) {
+	    size += 48;
+	    for (String value : row)
+		size += 48 + 2L * (value == null ? 0 : value.length());
+	}
+	return size;
+    }
+
+    /**
+     * Method to describe how well the cache worked.
+     *
+     * @return the hit ratio, lookups and size of the cache
+     */
+    public synchronized String report() {
+	long lookups = this.hits + this.misses + this.stale;
+	return String.format("Report cache: %.1f%% hits of %d lookups (%d misses, %d stale), %d entries, %d of %d KB, %d evictions%n",
+			     lookups == 0 ? 0.0 : 100.0 * this.hits / lookups, lookups, this.misses, this.stale,
+			     this.entries.size(), this.bytes / 1024, this.maxBytes / 1024, this.evictions);
+    }
+}
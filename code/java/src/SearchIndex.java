@@ -0,0 +1,375 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * In-memory trigram index over short names (cities, passengers, airlines),
+ * for autocomplete and typo tolerant lookups. Names are lower cased and
+ * split into words; each word contributes the trigrams of "  word " as in
+ * pg_trgm, and each trigram keeps the ascending list of entries that have
+ * it, in a plain int array.
+ *
+ * complete answers prefixes: the words typed so far are turned into the
+ * trigrams of "  prefix", and only the entries of the shortest of their
+ * lists are compared with the prefixes, so the work is bounded by the
+ * rarest trigram typed rather than by the number of names. The first letters typed match a large part of the names, so
+ * the best matches of such broad prefixes are kept, and as entries are only
+ * ever added, add keeps them exact by offering each new entry to them.
+ *
+ * similar answers typos: it counts the trigrams each entry shares with the
+ * query and ranks by the similarity pg_trgm uses, shared / (query + entry -
+ * shared). An entry that reaches the threshold shares at least
+ * threshold * query trigrams, so it has one of the rarest query trigrams
+ * but that many minus one; only their lists are scanned for candidates.
+ *
+ * Searches run concurrently with each other and wait only while an entry is
+ * being added.
+ */
+
+public class SearchIndex {
+    /**
+     * One result of a search.
+     */
+    public static class Match {
+	public final int id;
+	public final String text;
+	public final String detail;
+	public final double score;
+	final int rank;
+	final int weight;
+
+	Match(int id, String text, String detail, double score, int rank, int weight) {
+	    this.id = id;
+	    this.text = text;
+	    this.detail = detail;
+	    this.score = score;
+	    this.rank = rank;
+	    this.weight = weight;
+	}
+    }
+
+    // least similarity of the names search suggests for a typo; one wrong letter in a six letter name is 0.27
+    private static final double SIMILARITY = 0.25;
+
+    // exact names first, then names whose first word starts with the query, then the rest
+    private static final int EXACT = 3, FIRST_WORD = 2, PREFIX = 1, SIMILAR = 0;
+
+    // better matches first: rank, weight, score, then the shorter name
+    private static final Comparator<Match> BEST_FIRST = (a, b) -> {
+	if (a.rank != b.rank) return a.rank > b.rank ? -1 : 1;
+	if (a.weight != b.weight) return a.weight > b.weight ? -1 : 1;
+	if (a.score != b.score) return a.score > b.score ? -1 : 1;
+	if (a.text.length() != b.text.length()) return a.text.length() - b.text.length();
+	return a.text.compareTo(b.text);
+    };
+
+    // ascending entry numbers
+    private static class EntryList {
+	int[] entries = new int[4];
+	int size = 0;
+
+	void add(int entry) {
+	    if (this.size > 0 && this.entries[this.size - 1] == entry) return; // trigram repeated in the name
+	    if (this.size == this.entries.length)
+		this.entries = Arrays.copyOf(this.entries, this.size * 2);
+	    this.entries[this.size++] = entry;
+	}
+    }
+
+    // a broad prefix and its best matches
+    private static class Completion {
+	final String normalized;
+	final String[] prefixes;
+	final int limit;
+	final List<Match> best;
+
+	Completion(String normalized, String[] prefixes, int limit, List<Match> best) {
+	    this.normalized = normalized;
+	    this.prefixes = prefixes;
+	    this.limit = limit;
+	    this.best = best;
+	}
+    }
+
+    // prefixes matching more names than this have their best matches kept, up to COMPLETIONS of them
+    private static final int BROAD = 4096;
+    private static final int COMPLETIONS = 1024;
+    private static final int KEPT = 16; // matches kept of each
+
+    // scratch counters of similar, one array per searching thread
+    private static final ThreadLocal<int[]> COUNTS = ThreadLocal.withInitial(() -> new int[0]);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, EntryList> postings = new HashMap<Long, EntryList>();
+    private final Map<String, Completion> completions = new ConcurrentHashMap<String, Completion>();
+    private int size = 0;
+    private int[] ids = new int[16];
+    private String[] texts = new String[16];
+    private String[] words = new String[16]; // the normalized name, words separated by one space
+    private String[] details = new String[16];
+    private int[] weights = new int[16];
+    private int[] trigrams = new int[16]; // distinct trigrams of each entry
+
+    /**
+     * Method to add a name.
+     *
+     * @param id what the name belongs to, returned with the matches
+     * @param text the name
+     * @param detail shown next to the name, may be null
+     * @param weight more important entries are ranked first among equal matches
+     */
+    public void add(int id, String text, String detail, int weight) {
+	String normalized = normalize(text);
+	this.lock.writeLock().lock();
+	try {
+	    int entry = this.size;
+	    if (entry == this.ids.length) grow();
+	    this.ids[entry] = id;
+	    this.texts[entry] = text;
+	    this.words[entry] = normalized;
+	    this.details[entry] = detail;
+	    this.weights[entry] = weight;
+	    Set<Long> distinct = new HashSet<Long>();
+	    for (String word : split(normalized))
+		for (long trigram : trigrams("  " + word + " "))
+		    if (distinct.add(trigram)) postings(trigram).add(entry);
+	    this.trigrams[entry] = distinct.size();
+	    this.size = entry + 1;
+	    for (Completion completion : this.completions.values()) {
+		Match match = completion(entry, completion.normalized, completion.prefixes);
+		if (match == null) continue;
+		int at = 0;
+		while (at < completion.best.size() && BEST_FIRST.compare(completion.best.get(at), match) <= 0)
+		    ++at;
+		if (at == completion.limit) continue;
+		completion.best.add(at, match);
+		if (completion.best.size() > completion.limit) completion.best.remove(completion.limit);
+	    }
+	} finally {
+	    this.lock.writeLock().unlock();
+	}
+    }
+
+    private void grow() {
+	int capacity = this.ids.length * 2;
+	this.ids = Arrays.copyOf(this.ids, capacity);
+	this.texts = Arrays.copyOf(this.texts, capacity);
+	this.words = Arrays.copyOf(this.words, capacity);
+	this.details = Arrays.copyOf(this.details, capacity);
+	this.weights = Arrays.copyOf(this.weights, capacity);
+	this.trigrams = Arrays.copyOf(this.trigrams, capacity);
+    }
+
+    private EntryList postings(long trigram) {
+	EntryList list = this.postings.get(trigram);
+	if (list == null) {
+	    list = new EntryList();
+	    this.postings.put(trigram, list);
+	}
+	return list;
+    }
+
+    /**
+     * @return the number of names in the index
+     */
+    public int size() {
+	this.lock.readLock().lock();
+	try {
+	    return this.size;
+	} finally {
+	    this.lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Method to find the names with a word starting with every word of the
+     * query, e.g. "jo smi" finds John Smith.
+     *
+     * @param query the words typed so far
+     * @param k the most matches returned
+     * @return the best matches first: the name itself, names that start with
+     *         the query, then by weight
+     */
+    public List<Match> complete(String query, int k) {
+	String normalized = normalize(query);
+	String[] prefixes = split(normalized);
+	if (prefixes.length == 0 || k <= 0) return Collections.emptyList();
+	this.lock.readLock().lock();
+	try {
+	    Completion kept = this.completions.get(normalized);
+	    if (kept != null && k <= kept.limit)
+		return new ArrayList<Match>(kept.best.subList(0, Math.min(k, kept.best.size())));
+	    EntryList shortest = null;
+	    for (String prefix : prefixes)
+		for (long trigram : trigrams("  " + prefix)) {
+		    EntryList list = this.postings.get(trigram);
+		    if (list == null) return Collections.emptyList();
+		    if (shortest == null || list.size < shortest.size) shortest = list;
+		}
+	    boolean broad = shortest.size > BROAD;
+	    int limit = broad ? Math.max(k, KEPT) : k;
+	    PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, BEST_FIRST.reversed());
+	    for (int c = 0; c < shortest.size; ++c) {
+		Match match = completion(shortest.entries[c], normalized, prefixes);
+		if (match != null) offer(best, limit, match);
+	    }
+	    List<Match> matches = sorted(best);
+	    if (broad) {
+		if (this.completions.size() >= COMPLETIONS) this.completions.clear();
+		this.completions.put(normalized, new Completion(normalized, prefixes, limit, new ArrayList<Match>(matches)));
+	    }
+	    return matches.size() > k ? matches.subList(0, k) : matches;
+	} finally {
+	    this.lock.readLock().unlock();
+	}
+    }
+
+    // The entry as a match of the prefixes, or null if one of them doesn't start a word of it.
+    private Match completion(int entry, String normalized, String[] prefixes) {
+	String words = this.words[entry];
+	for (String prefix : prefixes)
+	    if (!hasWordStartingWith(words, prefix)) return null; // the trigrams were in the middle or in different words
+	int rank = words.equals(normalized) ? EXACT : words.startsWith(prefixes[0]) ? FIRST_WORD : PREFIX;
+	return match(entry, (double) normalized.length() / words.length(), rank);
+    }
+
+    private static boolean hasWordStartingWith(String words, String prefix) {
+	for (int at = words.indexOf(prefix); at >= 0; at = words.indexOf(prefix, at + 1))
+	    if (at == 0 || words.charAt(at - 1) == ' ') return true;
+	return false;
+    }
+
+    /**
+     * Method to find the names that look like the query, for typos.
+     *
+     * @param query the name as typed
+     * @param k the most matches returned
+     * @param threshold the least similarity returned, between 0 and 1 (pg_trgm's default is 0.3)
+     * @return the most similar names first
+     */
+    public List<Match> similar(String query, int k, double threshold) {
+	Set<Long> distinct = new HashSet<Long>();
+	for (String word : split(normalize(query)))
+	    for (long trigram : trigrams("  " + word + " "))
+		distinct.add(trigram);
+	if (distinct.isEmpty() || k <= 0) return Collections.emptyList();
+	this.lock.readLock().lock();
+	try {
+	    List<EntryList> lists = new ArrayList<EntryList>();
+	    for (long trigram : distinct) {
+		EntryList list = this.postings.get(trigram);
+		if (list != null) lists.add(list);
+	    }
+	    Collections.sort(lists, (a, b) -> a.size - b.size);
+	    int needed = Math.max(1, (int) Math.ceil(threshold * distinct.size()));
+	    int scanned = Math.min(lists.size(), distinct.size() - needed + 1);
+
+	    int[] counts = COUNTS.get();
+	    if (counts.length < this.size) {
+		counts = new int[Math.max(this.size, counts.length * 2)];
+		COUNTS.set(counts);
+	    }
+	    EntryList touched = new EntryList();
+	    for (int l = 0; l < scanned; ++l) {
+		EntryList list = lists.get(l);
+		for (int i = 0; i < list.size; ++i)
+		    if (counts[list.entries[i]]++ == 0) touched.add(list.entries[i]);
+	    }
+	    PriorityQueue<Match> best = new PriorityQueue<Match>(k + 1, BEST_FIRST.reversed());
+	    for (int t = 0; t < touched.size; ++t) {
+		int entry = touched.entries[t];
+		int shared = counts[entry];
+		counts[entry] = 0;
+		for (int l = scanned; l < lists.size(); ++l)
+		    if (Arrays.binarySearch(lists.get(l).entries, 0, lists.get(l).size, entry) >= 0) ++shared;
+		double similarity = (double) shared / (distinct.size() + this.trigrams[entry] - shared);
+		if (similarity >= threshold) offer(best, k, match(entry, similarity, SIMILAR));
+	    }
+	    return sorted(best);
+	} finally {
+	    this.lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Method to complete the query, and to fill up with similar names when
+     * fewer than k names start with it.
+     *
+     * @param query the name as typed so far
+     * @param k the most matches returned
+     * @return the completions, then the similar names
+     */
+    public List<Match> search(String query, int k) {
+	List<Match> matches = new ArrayList<Match>(complete(query, k));
+	if (matches.size() < k) {
+	    Set<Integer> found = new HashSet<Integer>();
+	    for (Match match : matches)
+		found.add(match.id);
+	    for (Match match : similar(query, k, SIMILARITY))
+		if (matches.size() < k && found.add(match.id)) matches.add(match);
+	}
+	return matches;
+    }
+
+    /**
+     * Method to look a name up regardless of case, spacing and punctuation.
+     *
+     * @param text the name
+     * @return the match of the name as indexed, or null if there is none
+     */
+    public Match find(String text) {
+	List<Match> matches = complete(text, 1);
+	return matches.isEmpty() || matches.get(0).rank != EXACT ? null : matches.get(0);
+    }
+
+    private Match match(int entry, double score, int rank) {
+	return new Match(this.ids[entry], this.texts[entry], this.details[entry], score, rank, this.weights[entry]);
+    }
+
+    private static void offer(PriorityQueue<Match> best, int k, Match match) {
+	best.add(match);
+	if (best.size() > k) best.poll(); // drops the worst
+    }
+
+    private static List<Match> sorted(PriorityQueue<Match> best) {
+	List<Match> matches = new ArrayList<Match>(best);
+	Collections.sort(matches, BEST_FIRST);
+	return matches;
+    }
+
+    // Lower case letters and digits, words separated by one space.
+    static String normalize(String text) {
+	StringBuilder normalized = new StringBuilder(text.length());
+	for (int c = 0; c < text.length(); ++c) {
+	    char ch = text.charAt(c);
+	    if (Character.isLetterOrDigit(ch)) normalized.append(Character.toLowerCase(ch));
+	    else if (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) != ' ') normalized.append(' ');
+	}
+	int end = normalized.length();
+	if (end > 0 && normalized.charAt(end - 1) == ' ') normalized.setLength(end - 1);
+	return normalized.toString();
+    }
+
+    private static String[] split(String normalized) {
+	return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+
+    // The trigrams of a padded word, three chars packed into a long.
+    private static long[] trigrams(String padded) {
+	long[] trigrams = new long[Math.max(0, padded.length() - 2)];
+	for (int i = 0; i < trigrams.length; ++i)
+	    trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+	return trigrams;
+    }
+}
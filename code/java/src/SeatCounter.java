@@ -0,0 +1,209 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * In-memory count of the free seats of every (flightNum, departure) booked
+ * through this process, for flash sales. A booking takes a seat from the
+ * counter before it goes to the database and gives it back if the booking
+ * fails, so once a flight is sold out the requests for it are answered
+ * without touching PostgreSQL. Each pair has its own counter, so bookings of
+ * different flights never contend.
+ *
+ * The counter only filters: claimSeat in the database still decides every
+ * booking, so a counter that is off never oversells. Counters start from
+ * Flight.seats minus the bookings, follow the cancellations and changes
+ * made through this process, and are reset from the database periodically
+ * to correct drift from other processes. They are loaded and reset from the
+ * primary, as a lagging replica would count seats freed since as taken.
+ * A counter not used between two reconciliations is dropped, and loaded
+ * again when its flight is booked next.
+ */
+
+public class SeatCounter {
+    private static class Entry {
+	final String flightNum;
+	final Date departure;
+	final AtomicInteger free;
+	final AtomicInteger pending = new AtomicInteger(); // seats taken by bookings still running
+	volatile boolean used = true; // since the last reconciliation
+
+	Entry(String flightNum, Date departure, int free) {
+	    this.flightNum = flightNum;
+	    this.departure = departure;
+	    this.free = new AtomicInteger(free);
+	}
+
+	boolean take() {
+	    int n;
+	    do {
+		n = this.free.get();
+		if (n <= 0) return false;
+	    } while (!this.free.compareAndSet(n, n - 1));
+	    return true;
+	}
+    }
+
+    private final AirBooking esql;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+	Thread thread = new Thread(r, "seat-reconciler");
+	thread.setDaemon(true);
+	return thread;
+    });
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong compensated = new AtomicLong();
+    private final AtomicLong corrected = new AtomicLong();
+
+    /**
+     * @param esql the session used to load and reconcile the counters
+     * @param interval the time between reconciliations, in milliseconds
+     */
+    public SeatCounter(AirBooking esql, long interval) {
+	this.esql = esql;
+	this.reconciler.scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method to run a booking if the counter still has a seat for it.
+     *
+     * @param flightNum the flight to book
+     * @param departure the departure date
+     * @param booking the booking itself
+     * @return the outcome of the booking or NO_SEATS if the counter is empty
+     * @throws java.sql.SQLException the exception thrown by the booking
+     */
+    public AirBooking.Outcome book(String flightNum, Date departure, AdmissionControl.Booking booking) throws SQLException {
+	Entry entry = entry(flightNum, departure);
+	if (entry == null) return booking.run(); // no such flight, let the booking say so
+	if (!entry.take()) {
+	    this.rejected.incrementAndGet();
+	    return AirBooking.Outcome.NO_SEATS;
+	}
+	this.passed.incrementAndGet();
+	entry.pending.incrementAndGet();
+	AirBooking.Outcome outcome = null;
+	try {
+	    outcome = booking.run();
+	    if (outcome == AirBooking.Outcome.NO_SEATS) {
+		entry.free.set(0); // the database knows better
+		this.corrected.incrementAndGet();
+	    }
+	    return outcome;
+	} finally {
+	    entry.pending.decrementAndGet();
+	    if (outcome != AirBooking.Outcome.OK && outcome != AirBooking.Outcome.NO_SEATS) {
+		entry.free.incrementAndGet();
+		this.compensated.incrementAndGet();
+	    }
+	}
+    }
+
+    /**
+     * Method to give back a seat freed by a cancellation, or by a change
+     * that moved a booking elsewhere.
+     */
+    public void release(String flightNum, Date departure) {
+	Entry entry = this.entries.get(key(flightNum, departure));
+	if (entry != null) {
+	    entry.used = true;
+	    entry.free.incrementAndGet();
+	}
+    }
+
+    /**
+     * Method to take a seat that a change moved a booking onto. The
+     * database already gave the booking the seat, so the counter isn't asked,
+     * and may go below zero until the next reconciliation.
+     */
+    public void taken(String flightNum, Date departure) {
+	Entry entry = this.entries.get(key(flightNum, departure));
+	if (entry != null) {
+	    entry.used = true;
+	    entry.free.decrementAndGet();
+	}
+    }
+
+    private static String key(String flightNum, Date departure) {
+	return flightNum.trim() + " " + departure;
+    }
+
+    private Entry entry(String flightNum, Date departure) throws SQLException {
+	String key = key(flightNum, departure);
+	Entry entry = this.entries.get(key);
+	if (entry != null) {
+	    entry.used = true;
+	    return entry;
+	}
+	List<String> seats = this.esql.withConnection(conn -> AirBooking.seatAvailability(conn, Collections.singletonList(flightNum),
+											    Collections.singletonList(departure))).get(0);
+	if (seats == null) return null;
+	Entry loaded = new Entry(flightNum, departure, Integer.parseInt(seats.get(6)));
+	entry = this.entries.putIfAbsent(key, loaded);
+	return entry == null ? loaded : entry;
+    }
+
+    // Resets every counter to the free seats in the database, less the seats of bookings still running,
+    // and drops the counters that weren't used since the last time.
+    private void reconcile() {
+	List<Entry> all = new ArrayList<Entry>();
+	for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+	    if (!entry.getValue().used && entry.getValue().pending.get() == 0) {
+		this.entries.remove(entry.getKey(), entry.getValue());
+	    } else {
+		entry.getValue().used = false;
+		all.add(entry.getValue());
+	    }
+	}
+	if (all.isEmpty()) return;
+	List<String> flightNums = new ArrayList<String>();
+	List<Date> departures = new ArrayList<Date>();
+	for (Entry entry : all) {
+	    flightNums.add(entry.flightNum);
+	    departures.add(entry.departure);
+	}
+	try {
+	    List<List<String>> records = this.esql.withConnection(conn -> AirBooking.seatAvailability(conn, flightNums, departures));
+	    for (int i = 0; i < all.size(); ++i) {
+		Entry entry = all.get(i);
+		int free = records.get(i) == null ? 0 : Integer.parseInt(records.get(i).get(6));
+		int expected = Math.max(0, free - entry.pending.get());
+		if (entry.free.getAndSet(expected) != expected)
+		    this.corrected.incrementAndGet();
+	    }
+	} catch (SQLException e) {
+	    System.err.println("Seat reconciliation failed: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Method to stop the reconciliation.
+     */
+    public void close() {
+	this.reconciler.shutdownNow();
+    }
+
+    /**
+     * Method to describe how many bookings the counters kept from the database.
+     *
+     * @return the report
+     */
+    public String report() {
+	return String.format("Seat counter: %d flights, %d bookings rejected in memory, %d passed to the database, " +
+			     "%d seats given back, %d counters corrected%n",
+			     this.entries.size(), this.rejected.get(), this.passed.get(),
+			     this.compensated.get(), this.corrected.get());
+    }
+}
@@ -0,0 +1,255 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Stress test of booking, cancelling and changing bookings. A number of
+ * clients, each with its own AirBooking and connection, book one flight
+ * with few seats on a few dates, and cancel or change (to another date or
+ * the same one) the bookings they were given, all at once:
+ *
+ *   java -cp lib/*:bin/ SeatStress <dbname> <port> <user> [clients] [operations per client]
+ *
+ * Afterwards every date is checked for lost seats: it must not have more
+ * bookings than seats, and it must have exactly the bookings the clients
+ * were told they hold there, so a seat was neither given twice nor left
+ * taken by a cancelled or moved booking. A change that keeps the date of a
+ * full flight must not be refused for want of a seat. The exit status is 1
+ * if a check failed.
+ *
+ * The test works on its own rows: flight SEATTEST, passports ST00000000...
+ * and bookings SS00000001..., removed before and after the run.
+ */
+
+public class SeatStress {
+    private static final String FLIGHT = "SEATTEST";
+    private static final int SEATS = 3;
+    private static final int DATES = 2;
+    private static final int PASSENGERS_PER_CLIENT = 3;
+    private static final Date FIRST_DATE = Date.valueOf("2031-01-01");
+    private static final String PASSPORT_PATTERN = "^ST[0-9]{8}$";
+
+    private final String dbname;
+    private final String dbport;
+    private final String user;
+    private final int clients;
+    // sets up, checks and removes the test's rows
+    private final Connection conn;
+    private final List<Integer> passengers = new ArrayList<Integer>();
+
+    // bookRef -> { departure, version } of the bookings the clients hold
+    private final Map<String, String[]> held = new ConcurrentHashMap<String, String[]>();
+    // bookings whose operation failed without an answer, they may be either way
+    private final Map<String, Boolean> uncertain = new ConcurrentHashMap<String, Boolean>();
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, AtomicLong> outcomes = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicInteger nextRef = new AtomicInteger();
+
+    /**
+     * @param clients the number of concurrent clients
+     * @throws java.sql.SQLException when the database can't be reached
+     */
+    public SeatStress(String dbname, String dbport, String user, int clients) throws SQLException {
+	this.dbname = dbname;
+	this.dbport = dbport;
+	this.user = user;
+	this.clients = clients;
+	this.conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, "");
+    }
+
+    /**
+     * Method to run the clients and check the seats.
+     *
+     * @param operations the number of operations each client runs
+     * @return the number of violations found, 0 if the test passed
+     * @throws java.sql.SQLException when the rows can't be set up or checked
+     * @throws java.lang.InterruptedException when interrupted while waiting for the clients
+     */
+    public int run(final int operations) throws SQLException, InterruptedException {
+	cleanUp();
+	try {
+	    int airId = Integer.parseInt(query("SELECT MIN(airId) FROM Airline").get(0).get(0));
+	    update("INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) " +
+		   "VALUES (?, ?, 'Seat Origin', 'Seat Dest', 'Seat', ?, 1)", airId, FLIGHT, SEATS);
+	    for (int p = 0; p < this.clients * PASSENGERS_PER_CLIENT; ++p)
+		this.passengers.add(Integer.parseInt(query("INSERT INTO Passenger (passNum, fullName, bdate, country) " +
+							   "VALUES (?, ?, ?, 'Seat') RETURNING pID",
+							   String.format("ST%08d", p), "Seat Passenger " + p, FIRST_DATE).get(0).get(0)));
+
+	    List<AirBooking> sessions = new ArrayList<AirBooking>();
+	    List<Thread> threads = new ArrayList<Thread>();
+	    try {
+		for (int c = 0; c < this.clients; ++c) {
+		    final AirBooking session = new AirBooking(this.dbname, this.dbport, this.user, "");
+		    sessions.add(session);
+		    threads.add(new Thread(() -> work(session, operations), "seat-stress-" + c));
+		}
+		for (Thread thread : threads)
+		    thread.start();
+		for (Thread thread : threads)
+		    thread.join();
+	    } finally {
+		for (AirBooking session : sessions)
+		    session.cleanup();
+	    }
+	    check();
+	    report();
+	} finally {
+	    cleanUp();
+	}
+	return this.violations.size();
+    }
+
+    private void cleanUp() throws SQLException {
+	update("DELETE FROM Booking WHERE flightNum = ? OR pID IN (SELECT pID FROM Passenger WHERE passNum ~ ?)",
+	       FLIGHT, PASSPORT_PATTERN);
+	update("DELETE FROM Flight WHERE flightNum = ?", FLIGHT);
+	update("DELETE FROM Passenger WHERE passNum ~ ?", PASSPORT_PATTERN);
+    }
+
+    private void work(AirBooking session, int operations) {
+	Random random = new Random();
+	// the bookings this client was given
+	List<String> mine = new ArrayList<String>();
+	for (int i = 0; i < operations; ++i) {
+	    int dice = random.nextInt(100);
+	    String op = mine.isEmpty() || dice < 50 ? "book" : dice < 75 ? "change" : "cancel";
+	    String bookRef = op.equals("book") ? String.format("SS%08d", this.nextRef.incrementAndGet())
+		: mine.get(random.nextInt(mine.size()));
+	    Date departure = Date.valueOf(FIRST_DATE.toLocalDate().plusDays(random.nextInt(DATES)));
+	    String outcome;
+	    try {
+		if (op.equals("book")) {
+		    AirBooking.Outcome booked = session.bookFlight(bookRef, this.passengers.get(random.nextInt(this.passengers.size())),
+								    FLIGHT, departure);
+		    if (booked == AirBooking.Outcome.OK) {
+			mine.add(bookRef);
+			this.held.put(bookRef, new String[] { departure.toString(), "0" });
+		    }
+		    outcome = booked.name();
+		} else {
+		    String[] booking = this.held.get(bookRef);
+		    int version = Integer.parseInt(booking[1]);
+		    AirBooking.Outcome done = op.equals("cancel") ? session.cancelBooking(bookRef, version)
+			: session.changeBooking(bookRef, version, departure, FLIGHT);
+		    if (done == AirBooking.Outcome.OK && op.equals("cancel")) {
+			mine.remove(bookRef);
+			this.held.remove(bookRef);
+		    } else if (done == AirBooking.Outcome.OK) {
+			this.held.put(bookRef, new String[] { departure.toString(), String.valueOf(version + 1) });
+		    } else if (done == AirBooking.Outcome.NO_SEATS && departure.toString().equals(booking[0])) {
+			this.violations.add(String.format("booking %s was refused a seat on the date it already holds", bookRef));
+		    }
+		    outcome = done.name();
+		}
+	    } catch (SQLException e) {
+		this.uncertain.put(bookRef, true);
+		mine.remove(bookRef);
+		this.held.remove(bookRef);
+		outcome = "ERROR";
+		System.err.println(String.format("%s: %s", op, e.getMessage()));
+	    }
+	    this.outcomes.computeIfAbsent(op + " " + outcome, k -> new AtomicLong()).incrementAndGet();
+	}
+    }
+
+    private void check() throws SQLException {
+	Map<String, Integer> expected = new TreeMap<String, Integer>();
+	for (String[] booking : this.held.values())
+	    expected.merge(booking[0], 1, Integer::sum);
+	Map<String, Integer> found = new TreeMap<String, Integer>();
+	for (List<String> row : query("SELECT bookRef, departure FROM Booking WHERE flightNum = ?", FLIGHT)) {
+	    String[] booking = this.held.get(row.get(0));
+	    if (booking == null && !this.uncertain.containsKey(row.get(0)))
+		this.violations.add(String.format("booking %s on %s holds a seat nobody was given", row.get(0), row.get(1)));
+	    else if (booking != null && !booking[0].equals(row.get(1)))
+		this.violations.add(String.format("booking %s is on %s, its last change moved it to %s", row.get(0), row.get(1), booking[0]));
+	    found.merge(row.get(1), 1, Integer::sum);
+	}
+	for (int d = 0; d < DATES; ++d) {
+	    String departure = FIRST_DATE.toLocalDate().plusDays(d).toString();
+	    int booked = found.getOrDefault(departure, 0);
+	    if (booked > SEATS)
+		this.violations.add(String.format("%s has %d bookings for %d seats", departure, booked, SEATS));
+	    if (this.uncertain.isEmpty() && booked != expected.getOrDefault(departure, 0))
+		this.violations.add(String.format("%s has %d bookings, the clients hold %d", departure, booked,
+						  expected.getOrDefault(departure, 0)));
+	}
+    }
+
+    private void report() {
+	for (Map.Entry<String, AtomicLong> count : new TreeMap<String, AtomicLong>(this.outcomes).entrySet())
+	    System.out.println(String.format("  %-30s%d", count.getKey(), count.getValue().get()));
+	for (String violation : this.violations)
+	    System.out.println("    " + violation);
+	System.out.println(this.violations.isEmpty() ? "PASSED, no lost seats" : "FAILED, " + this.violations.size() + " violations");
+    }
+
+    private int update(String sql, Object... params) throws SQLException {
+	PreparedStatement stmt = this.conn.prepareStatement(sql);
+	try {
+	    for (int i = 0; i < params.length; ++i)
+		stmt.setObject(i + 1, params[i]);
+	    return stmt.executeUpdate();
+	} finally {
+	    stmt.close();
+	}
+    }
+
+    private List<List<String>> query(String sql, Object... params) throws SQLException {
+	PreparedStatement stmt = this.conn.prepareStatement(sql);
+	try {
+	    for (int i = 0; i < params.length; ++i)
+		stmt.setObject(i + 1, params[i]);
+	    ResultSet rs = stmt.executeQuery();
+	    List<List<String>> result = new ArrayList<List<String>>();
+	    while (rs.next()) {
+		List<String> record = new ArrayList<String>();
+		for (int i = 1; i <= rs.getMetaData().getColumnCount(); ++i)
+		    record.add(rs.getString(i));
+		result.add(record);
+	    }
+	    return result;
+	} finally {
+	    stmt.close();
+	}
+    }
+
+    /**
+     * Runs the test.
+     *
+     * @param args dbname, port, user, and optionally the number of clients (default 8)
+     *        and of operations per client (default 200)
+     */
+    public static void main(String[] args) throws Exception {
+	if (args.length < 3) {
+	    System.err.println("Usage: java [-classpath <classpath>] " + SeatStress.class.getName() +
+			       " <dbname> <port> <user> [clients] [operations per client]");
+	    return;
+	}
+	Class.forName("org.postgresql.Driver");
+	int clients = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+	int operations = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+	SeatStress test = new SeatStress(args[0], args[1], args[2], clients);
+	int violations;
+	try {
+	    violations = test.run(operations);
+	} finally {
+	    test.conn.close();
+	}
+	System.exit(violations > 0 ? 1 : 0);
+    }
+}
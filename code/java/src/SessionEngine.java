@@ -0,0 +1,183 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs many independent AirBooking menu sessions in one process. Every
+ * session has its own input and output and borrows connections from the
+ * shared pool only while it runs a statement, so thousands of sessions
+ * waiting on their users need only a handful of connections.
+ *
+ * Sessions run on virtual threads when the JVM has them (Java 21 and
+ * later). Otherwise every running session takes a platform thread, so at
+ * most MAX_PLATFORM_SESSIONS run at once; more sessions of a script wait for
+ * a thread, and more TCP clients are turned away. The JDBC driver blocks
+ * inside synchronized code, which pins a virtual thread to its carrier
+ * while a statement runs, so only sessions waiting on their users are
+ * cheap either way.
+ */
+
+public class SessionEngine {
+    // sessions running at once when each needs a platform thread
+    static final int MAX_PLATFORM_SESSIONS = 500;
+
+    private final AirBooking template;
+    private final ExecutorService executor;
+    private final int maxSessions;
+    private final AtomicInteger started = new AtomicInteger(); // sessions started and not finished
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    /**
+     * @param template the session whose pool and settings new sessions share
+     */
+    public SessionEngine(AirBooking template) {
+	this.template = template;
+	ExecutorService virtual = newVirtualThreadExecutor();
+	this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(MAX_PLATFORM_SESSIONS);
+	this.maxSessions = virtual != null ? Integer.MAX_VALUE : MAX_PLATFORM_SESSIONS;
+    }
+
+    // null before Java 21
+    static ExecutorService newVirtualThreadExecutor() {
+	try {
+	    Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) factory.invoke(null);
+	} catch (ReflectiveOperationException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Method to parse the address a server listens on, given as [host:]port.
+     * Without a host it only listens on this machine.
+     *
+     * @param address the port, or host:port
+     * @return the socket address
+     */
+    static InetSocketAddress listenAddress(String address) {
+	int colon = address.lastIndexOf(':');
+	if (colon < 0) return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+	return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Method to start a session that runs the menu on the given input and
+     * output.
+     *
+     * @param in the input of the session
+     * @param out the output of the session
+     * @param onExit run when the session ends, may be null
+     */
+    public void start(final BufferedReader in, final PrintStream out, final Runnable onExit) {
+	this.started.incrementAndGet();
+	this.executor.execute(() -> {
+	    int now = this.active.incrementAndGet();
+	    int max;
+	    while ((max = this.peak.get()) < now && !this.peak.compareAndSet(max, now));
+	    try {
+		this.template.newSession(in, out).runMenu();
+	    } catch (Exception e) {
+		System.err.println(e.getMessage());
+	    } finally {
+		this.active.decrementAndGet();
+		this.started.decrementAndGet();
+		this.finished.incrementAndGet();
+		if (onExit != null) onExit.run();
+	    }
+	});
+    }
+
+    /**
+     * Method to accept sessions over TCP, one per connection, until the
+     * process is stopped. Sessions aren't authenticated, so by default only
+     * clients on this machine can connect. The contention report is printed
+     * on shutdown.
+     *
+     * @param address the port to listen on, or host:port to listen on another interface
+     * @throws java.io.IOException when the port can't be opened
+     */
+    public void serve(String address) throws IOException {
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(report())));
+	ServerSocket server = new ServerSocket();
+	server.bind(listenAddress(address));
+	System.out.println(String.format("Accepting sessions on %s", server.getLocalSocketAddress()));
+	while (true) {
+	    final Socket socket = server.accept();
+	    final PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+	    Runnable close = () -> {
+		try {
+		    socket.close();
+		} catch (IOException e) {
+		    // ignored.
+		}
+	    };
+	    if (this.started.get() >= this.maxSessions) {
+		out.println("Too many sessions, please try again later.");
+		close.run();
+		continue;
+	    }
+	    start(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)), out, close);
+	}
+    }
+
+    /**
+     * Method to run a number of sessions that all type the same menu input,
+     * wait for them to finish and print the elapsed time and contention
+     * report. Session output is discarded.
+     *
+     * @param path the file with the menu input, one answer per line
+     * @param sessions the number of concurrent sessions
+     * @throws java.io.IOException when the file can't be read
+     * @throws java.lang.InterruptedException when interrupted while waiting for the sessions
+     */
+    public void runScript(String path, int sessions) throws IOException, InterruptedException {
+	final String script = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+	final PrintStream discard = new PrintStream(new OutputStream() {
+	    public void write(int b) { }
+	    public void write(byte[] b, int off, int len) { }
+	});
+	final CountDownLatch done = new CountDownLatch(sessions);
+	long start = System.nanoTime();
+	for (int i = 0; i < sessions; ++i)
+	    start(new BufferedReader(new StringReader(script)), discard, done::countDown);
+	done.await();
+	this.executor.shutdown();
+	System.out.println(String.format("%d sessions finished in %.2f s", sessions, (System.nanoTime() - start) / 1e9));
+	System.out.print(report());
+    }
+
+    /**
+     * Method to describe the sessions run so far and where they waited.
+     *
+     * @return the report
+     */
+    public String report() {
+	ReplicaSet replicas = this.template.getReplicas();
+	ReportCache cache = this.template.getReportCache();
+	AdmissionControl admission = this.template.getAdmission();
+	SeatCounter seats = this.template.getSeatCounter();
+	NameSearch search = this.template.getSearch();
+	return String.format("Sessions: %d active, %d finished, %d at peak%n", this.active.get(), this.finished.get(), this.peak.get())
+	    + this.template.getPool().contentionReport() + (replicas == null ? "" : replicas.report())
+	    + (cache == null ? "" : cache.report()) + (admission == null ? "" : admission.report())
+	    + (seats == null ? "" : seats.report()) + (search == null ? "" : search.report());
+    }
+}
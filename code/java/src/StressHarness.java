@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Concurrency stress test of the write paths. A number of clients, each
+ * with its own session, run a mixed workload for a while through the same
+ * business methods the menu uses: booking a few flights with few seats,
+ * cancelling and changing those bookings, adding passengers whose passport
+ * numbers collide, rating flights the way TakeCustomerReview checks and
+ * inserts, and updating the routes as option 4 does.
+ *
+ * The clients remember every answer they got. Afterwards the database is
+ * checked against them: no flight and date has more bookings than seats,
+ * every bookRef was given to one booking only, no passenger rated a flight
+ * twice, and no acknowledged write was lost: every booking has the flight,
+ * date and version of the last change it was told succeeded, and every
+ * cancelled booking and added passenger is (or isn't) there as answered.
+ * Throughput and the share of operations that were aborted (optimistic
+ * conflicts, admission control and errors) are printed with the result.
+ *
+ * The harness works on its own rows: flights SX0000..., passports
+ * SX00000000..., booked from 2030-01-01 on. Rows left by an earlier run are
+ * removed first. Run it against a scratch database loaded with create.sql,
+ * as its rows are also counted by the rating and rollup summaries.
+ */
+
+public class StressHarness {
+    private static final int FLIGHTS = 4;
+    private static final int DATES = 2;
+    private static final int SEATS = 10;
+    private static final int PASSENGERS_PER_CLIENT = 5;
+    private static final Date FIRST_DATE = Date.valueOf("2030-01-01");
+    private static final String FLIGHT_PATTERN = "^SX[0-9]{4}$";
+    private static final String PASSPORT_PATTERN = "^SX[0-9]{8}$";
+    // the most violations of one invariant printed
+    private static final int SHOWN = 5;
+
+    // what the clients were told about one booking
+    private static class Tracked {
+	final int pID;
+	final String flightNum;
+	// (flightNum, departure) of the booking after each version it was acknowledged at
+	final Map<Integer, String[]> versions = new HashMap<Integer, String[]>();
+	boolean cancelled = false;
+	boolean uncertain = false; // an operation on it failed without an answer
+
+	Tracked(int pID, String flightNum, Date departure) {
+	    this.pID = pID;
+	    this.flightNum = flightNum;
+	    this.versions.put(0, new String[] { flightNum, departure.toString() });
+	}
+    }
+
+    private final AirBooking esql;
+    private final int clients;
+    private int airId;
+    private final List<String> flights = new ArrayList<String>();
+    private final List<Integer> passengers = new ArrayList<Integer>();
+
+    private final Map<String, Tracked> bookings = new ConcurrentHashMap<String, Tracked>();
+    private final List<String> bookRefs = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, Integer> addedPassports = new ConcurrentHashMap<String, Integer>();
+    private final Set<String> uncertainPassports = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<String>> planes = new ConcurrentHashMap<String, Set<String>>();
+    private final AtomicInteger nextPassport = new AtomicInteger();
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+
+    private final Map<String, AtomicLong> outcomes = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+
+    /**
+     * @param esql the session the clients' sessions are made from
+     * @param clients the number of concurrent clients, the pool should have as many connections
+     */
+    public StressHarness(AirBooking esql, int clients) {
+	this.esql = esql;
+	this.clients = clients;
+    }
+
+    /**
+     * Method to set up the rows of the harness, run the clients, check the
+     * invariants and print the report.
+     *
+     * @param seconds how long the clients run
+     * @param cleanUp whether the rows of the harness are removed afterwards
+     * @return the number of invariant violations found, 0 if the run passed
+     * @throws java.sql.SQLException when the rows can't be set up or checked
+     * @throws java.lang.InterruptedException when interrupted while waiting for the clients
+     */
+    public int run(int seconds, boolean cleanUp) throws SQLException, InterruptedException {
+	cleanUp();
+	setUp();
+	long[] before = transactions();
+	final long start = System.nanoTime();
+	final long end = start + seconds * 1000000000L;
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int c = 0; c < this.clients; ++c) {
+	    final AirBooking session = this.esql.newSession(new BufferedReader(new StringReader("")), System.out);
+	    final int client = c;
+	    Thread thread = new Thread(() -> work(session, client, end), "stress-" + c);
+	    thread.start();
+	    threads.add(thread);
+	}
+	for (Thread thread : threads)
+	    thread.join();
+	long elapsed = System.nanoTime() - start;
+	long[] after = transactions();
+
+	checkSeats();
+	checkBookRefs();
+	checkRatings();
+	checkBookings();
+	checkPassengers();
+	checkRoutes();
+	report(elapsed, before, after);
+	if (cleanUp) cleanUp();
+	return this.violations.size();
+    }
+
+    // Inserts the flights and the passengers the clients book.
+    private void setUp() throws SQLException {
+	this.airId = Integer.parseInt(this.esql.withConnection(conn -> AirBooking.query(conn, "SELECT MIN(airId) FROM Airline")).get(0).get(0));
+	for (int f = 0; f < FLIGHTS; ++f) {
+	    String flightNum = String.format("SX%04d", f);
+	    this.esql.insertRoute(this.airId, flightNum, "Stress Origin", "Stress Dest", "Stress", SEATS, 1 + f);
+	    this.flights.add(flightNum);
+	    this.planes.put(flightNum, ConcurrentHashMap.<String>newKeySet());
+	    this.planes.get(flightNum).add("Stress");
+	}
+	for (int p = 0; p < this.clients * PASSENGERS_PER_CLIENT; ++p) {
+	    Integer pID = this.esql.addPassenger(String.format("SX0%07d", p), "Stress Passenger " + p, FIRST_DATE, "Stress");
+	    if (pID == null) throw new SQLException("passport of passenger " + p + " is taken, is another run going on?");
+	    this.passengers.add(pID);
+	}
+    }
+
+    // Removes the rows of the harness, from this or an earlier run.
+    private void cleanUp() throws SQLException {
+	this.esql.inTransaction(conn -> {
+	    String harness = "(trim(flightNum) ~ '" + FLIGHT_PATTERN + "' OR pID IN (SELECT pID FROM Passenger WHERE passNum ~ '" + PASSPORT_PATTERN + "'))";
+	    AirBooking.update(conn, "DELETE FROM Ratings WHERE " + harness);
+	    AirBooking.update(conn, "DELETE FROM Booking WHERE " + harness);
+	    AirBooking.update(conn, "DELETE FROM Flight WHERE trim(flightNum) ~ '" + FLIGHT_PATTERN + "'");
+	    return AirBooking.update(conn, "DELETE FROM Passenger WHERE passNum ~ '" + PASSPORT_PATTERN + "'");
+	});
+	AirBooking.tableChanged("Ratings");
+	AirBooking.tableChanged("Booking");
+	AirBooking.tableChanged("Flight");
+	AirBooking.tableChanged("Passenger");
+    }
+
+    private void work(AirBooking session, int client, long end) {
+	Random random = new Random();
+	int seq = 0;
+	while (System.nanoTime() < end) {
+	    int dice = random.nextInt(100);
+	    String op = dice < 35 ? "book" : dice < 45 ? "cancel" : dice < 60 ? "change"
+		: dice < 70 ? "passenger" : dice < 90 ? "review" : "route";
+	    String outcome;
+	    try {
+		if (op.equals("book")) outcome = book(session, random);
+		else if (op.equals("cancel") || op.equals("change")) outcome = cancelOrChange(session, random, op.equals("cancel"));
+		else if (op.equals("passenger")) outcome = addPassenger(session);
+		else if (op.equals("review")) outcome = review(session, random);
+		else outcome = updateRoute(session, random, String.format("SX %d-%d", client, ++seq));
+	    } catch (Exception e) {
+		outcome = "ERROR";
+		System.err.println(String.format("%s: %s", op, e.getMessage()));
+	    }
+	    this.operations.incrementAndGet();
+	    if (outcome.equals("CONFLICT") || outcome.equals("BUSY") || outcome.equals("ERROR"))
+		this.aborted.incrementAndGet();
+	    AtomicLong count = this.outcomes.get(op + " " + outcome);
+	    if (count == null) {
+		this.outcomes.putIfAbsent(op + " " + outcome, new AtomicLong());
+		count = this.outcomes.get(op + " " + outcome);
+	    }
+	    count.incrementAndGet();
+	}
+    }
+
+    private Date randomDate(Random random) {
+	return Date.valueOf(FIRST_DATE.toLocalDate().plusDays(random.nextInt(DATES)));
+    }
+
+    private String book(AirBooking session, Random random) throws SQLException {
+	String bookRef = AirBooking.newBookRef();
+	int pID = this.passengers.get(random.nextInt(this.passengers.size()));
+	String flightNum = this.flights.get(random.nextInt(FLIGHTS));
+	Date departure = randomDate(random);
+	Tracked tracked = new Tracked(pID, flightNum, departure);
+	AirBooking.Outcome outcome;
+	try {
+	    outcome = session.bookFlight(bookRef, pID, flightNum, departure);
+	} catch (SQLException e) {
+	    tracked.uncertain = true; // it may have committed
+	    this.bookings.putIfAbsent(bookRef, tracked);
+	    throw e;
+	}
+	if (outcome == AirBooking.Outcome.OK) {
+	    if (this.bookings.putIfAbsent(bookRef, tracked) != null)
+		this.violations.add("unique bookRef: " + bookRef + " was booked twice");
+	    this.bookRefs.add(bookRef);
+	}
+	return outcome.name();
+    }
+
+    private String cancelOrChange(AirBooking session, Random random, boolean cancel) throws SQLException {
+	if (this.bookRefs.isEmpty()) return "NOTHING_BOOKED";
+	String bookRef = this.bookRefs.get(random.nextInt(this.bookRefs.size()));
+	Tracked tracked = this.bookings.get(bookRef);
+	List<String> booking = session.findBooking(bookRef);
+	if (booking == null) return "NOT_FOUND";
+	int version = Integer.parseInt(booking.get(3));
+	String flightNum = this.flights.get(random.nextInt(FLIGHTS));
+	Date departure = randomDate(random);
+	AirBooking.Outcome outcome;
+	try {
+	    outcome = cancel ? session.cancelBooking(bookRef, version) : session.changeBooking(bookRef, version, departure, flightNum);
+	} catch (SQLException e) {
+	    synchronized (tracked) {
+		tracked.uncertain = true;
+	    }
+	    throw e;
+	}
+	if (outcome == AirBooking.Outcome.OK) {
+	    synchronized (tracked) {
+		if (cancel) tracked.cancelled = true;
+		else if (tracked.versions.put(version + 1, new String[] { flightNum, departure.toString() }) != null)
+		    this.violations.add(String.format("no lost updates: %s was changed twice at version %d", bookRef, version));
+	    }
+	}
+	return outcome.name();
+    }
+
+    private String addPassenger(AirBooking session) throws SQLException {
+	// every passport is added twice, by clients running at about the same time
+	String passNum = String.format("SX1%07d", this.nextPassport.getAndIncrement() / 2);
+	Integer pID;
+	try {
+	    pID = session.addPassenger(passNum, "Stress Passenger", FIRST_DATE, "Stress");
+	} catch (SQLException e) {
+	    this.uncertainPassports.add(passNum);
+	    throw e;
+	}
+	if (pID == null) return "DUPLICATE";
+	if (this.addedPassports.putIfAbsent(passNum, pID) != null)
+	    this.violations.add("unique passport: " + passNum + " was added twice");
+	return "OK";
+    }
+
+    // Rates a booked flight like TakeCustomerReview: check, then insert.
+    private String review(AirBooking session, Random random) throws Exception {
+	if (this.bookRefs.isEmpty()) return "NOTHING_BOOKED";
+	Tracked tracked = this.bookings.get(this.bookRefs.get(random.nextInt(this.bookRefs.size())));
+	boolean[] checks = session.reviewChecks(tracked.pID, tracked.flightNum);
+	if (!checks[1]) return "NOT_BOOKED";
+	if (checks[2]) return "RATED";
+	try {
+	    session.submitRating(tracked.pID, tracked.flightNum, random.nextInt(6), "stress").get();
+	} catch (ExecutionException e) {
+	    // another client rated it since the checks
+	    if (e.getCause() instanceof SQLException && AirBooking.isUniqueViolation((SQLException) e.getCause())) return "RATED";
+	    throw e;
+	}
+	return "OK";
+    }
+
+    // Updates a route like option 4, with a plane name no other update uses.
+    private String updateRoute(AirBooking session, Random random, String plane) throws SQLException {
+	String flightNum = this.flights.get(random.nextInt(FLIGHTS));
+	Set<String> written = this.planes.get(flightNum);
+	written.add(plane); // before the update, it may commit and still fail
+	return session.updateRoute(this.airId, flightNum, "Stress Origin", "Stress Dest", plane, SEATS, 1 + random.nextInt(24)).name();
+    }
+
+    // commits and rollbacks of the database so far, as counted by the statistics collector
+    private long[] transactions() throws SQLException {
+	List<String> counts = this.esql.withConnection(conn -> AirBooking.query(conn,
+	    "SELECT xact_commit, xact_rollback FROM pg_stat_database WHERE datname = current_database()")).get(0);
+	return new long[] { Long.parseLong(counts.get(0)), Long.parseLong(counts.get(1)) };
+    }
+
+    private List<List<String>> harnessQuery(String sql) throws SQLException {
+	return this.esql.withConnection(conn -> AirBooking.query(conn, sql));
+    }
+
+    private void checkSeats() throws SQLException {
+	for (List<String> slot : harnessQuery(
+		 "SELECT B.flightNum, B.departure, COUNT(*), F.seats FROM Booking B JOIN Flight F ON F.flightNum = B.flightNum " +
+		 "WHERE trim(B.flightNum) ~ '" + FLIGHT_PATTERN + "' GROUP BY B.flightNum, B.departure, F.seats HAVING COUNT(*) > F.seats"))
+	    this.violations.add(String.format("no flight over its seats: %s on %s has %s bookings for %s seats",
+					      slot.get(0), slot.get(1), slot.get(2), slot.get(3)));
+    }
+
+    private void checkBookRefs() throws SQLException {
+	for (List<String> ref : harnessQuery("SELECT bookRef, COUNT(*) FROM Booking WHERE trim(flightNum) ~ '" + FLIGHT_PATTERN + "' " +
+					     "GROUP BY bookRef HAVING COUNT(*) > 1"))
+	    this.violations.add(String.format("unique bookRef: %s is held by %s bookings", ref.get(0), ref.get(1)));
+    }
+
+    private void checkRatings() throws SQLException {
+	for (List<String> pair : harnessQuery("SELECT pID, flightNum, COUNT(*) FROM Ratings WHERE trim(flightNum) ~ '" + FLIGHT_PATTERN + "' " +
+					      "GROUP BY pID, flightNum HAVING COUNT(*) > 1"))
+	    this.violations.add(String.format("one rating per passenger and flight: passenger %s rated %s %s times",
+					      pair.get(0), pair.get(1), pair.get(2)));
+    }
+
+    // Compares the bookings with the last answer the clients got about each.
+    private void checkBookings() throws SQLException {
+	Map<String, List<String>> rows = new HashMap<String, List<String>>();
+	for (List<String> row : harnessQuery("SELECT bookRef, flightNum, departure, version FROM Booking " +
+					     "WHERE trim(flightNum) ~ '" + FLIGHT_PATTERN + "'"))
+	    rows.put(row.get(0), row);
+	for (Map.Entry<String, Tracked> entry : this.bookings.entrySet()) {
+	    String bookRef = entry.getKey();
+	    Tracked tracked = entry.getValue();
+	    List<String> row = rows.remove(bookRef);
+	    if (tracked.uncertain) continue;
+	    if (tracked.cancelled) {
+		if (row != null) this.violations.add("no lost updates: cancelled booking " + bookRef + " is still there");
+		continue;
+	    }
+	    if (row == null) {
+		this.violations.add("no lost updates: booking " + bookRef + " is gone");
+		continue;
+	    }
+	    int version = Collections.max(tracked.versions.keySet());
+	    String[] last = tracked.versions.get(version);
+	    if (Integer.parseInt(row.get(3)) != version || !row.get(1).equals(last[0]) || !row.get(2).equals(last[1]))
+		this.violations.add(String.format("no lost updates: booking %s is %s on %s at version %s, its last change made it %s on %s at version %d",
+						  bookRef, row.get(1), row.get(2), row.get(3), last[0], last[1], version));
+	}
+	for (String bookRef : rows.keySet())
+	    this.violations.add("no lost updates: booking " + bookRef + " was never acknowledged");
+    }
+
+    private void checkPassengers() throws SQLException {
+	Map<String, String> rows = new HashMap<String, String>();
+	for (List<String> row : harnessQuery("SELECT passNum, pID FROM Passenger WHERE passNum ~ '^SX1[0-9]{7}$'"))
+	    rows.put(row.get(0), row.get(1));
+	for (Map.Entry<String, Integer> added : this.addedPassports.entrySet()) {
+	    String pID = rows.remove(added.getKey());
+	    if (!added.getValue().toString().equals(pID))
+		this.violations.add(String.format("no lost updates: passenger %s was added as %d, found %s",
+						  added.getKey(), added.getValue(), pID == null ? "nothing" : pID));
+	}
+	for (String passNum : rows.keySet())
+	    if (!this.uncertainPassports.contains(passNum))
+		this.violations.add("no lost updates: passenger " + passNum + " was never acknowledged");
+    }
+
+    private void checkRoutes() throws SQLException {
+	for (List<String> route : harnessQuery("SELECT flightNum, plane FROM Flight WHERE trim(flightNum) ~ '" + FLIGHT_PATTERN + "'"))
+	    if (!this.planes.get(route.get(0)).contains(route.get(1)))
+		this.violations.add(String.format("no lost updates: route %s has plane '%s', which no update wrote", route.get(0), route.get(1)));
+    }
+
+    private void report(long elapsed, long[] before, long[] after) {
+	double seconds = elapsed / 1e9;
+	long operations = this.operations.get();
+	System.out.println(String.format("%d operations in %.2f s on %d clients: %.1f ops/s, %.2f%% aborted (conflicts, busy or errors)",
+					 operations, seconds, this.clients, operations / seconds,
+					 operations == 0 ? 0.0 : 100.0 * this.aborted.get() / operations));
+	long commits = after[0] - before[0];
+	long rollbacks = after[1] - before[1];
+	System.out.println(String.format("server: %d commits, %d rollbacks (%.2f%%, including retried serialization failures and deadlocks)",
+					 commits, rollbacks, commits + rollbacks == 0 ? 0.0 : 100.0 * rollbacks / (commits + rollbacks)));
+	for (Map.Entry<String, AtomicLong> count : new TreeMap<String, AtomicLong>(this.outcomes).entrySet())
+	    System.out.println(String.format("  %-30s%d", count.getKey(), count.getValue().get()));
+
+	String[] invariants = { "no flight over its seats", "unique bookRef", "unique passport",
+				"one rating per passenger and flight", "no lost updates" };
+	for (String invariant : invariants) {
+	    List<String> found = new ArrayList<String>();
+	    for (String violation : this.violations)
+		if (violation.startsWith(invariant + ": ")) found.add(violation.substring(invariant.length() + 2));
+	    System.out.println(String.format("%-40s%s", invariant, found.isEmpty() ? "ok" : "FAILED, " + found.size() + " violations"));
+	    for (String violation : found.subList(0, Math.min(SHOWN, found.size())))
+		System.out.println("    " + violation);
+	}
+	System.out.println(this.violations.isEmpty() ? "PASSED" : "FAILED");
+    }
+}
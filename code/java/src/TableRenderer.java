@@ -0,0 +1,201 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * Prints query results as an aligned table, as CSV or as JSON lines. Column
+ * widths are fixed by the caller or computed in one pass over the rows
+ * before anything is printed, every line is assembled in one reused
+ * StringBuilder, and the output goes through a large buffered writer that is
+ * flushed once per table, so a listing of many rows costs neither a
+ * Formatter nor a PrintStream flush per cell.
+ *
+ * CSV follows RFC 4180: a header line, then one line per row, with fields
+ * quoted when they contain a comma, quote or line break. JSON prints one
+ * object per row keyed by the column names; columns whose values all look
+ * like numbers are printed as numbers.
+ */
+
+public class TableRenderer {
+    public enum Format { TABLE, CSV, JSON }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // JSON numbers only: digits with an optional sign, fraction and exponent
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+    private final Format format;
+    private final String[] columns;
+    private final int[] widths;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * @param format the output format
+     * @param columns the column names
+     * @param widths the width of each column in TABLE format, the last one is
+     *               not padded; null to fit the widest value of each column
+     */
+    public TableRenderer(Format format, String[] columns, int[] widths) {
+	this.format = format;
+	this.columns = columns;
+	this.widths = widths;
+    }
+
+    /**
+     * Method to parse the value of the --output option.
+     *
+     * @param name table, csv or json
+     * @return the format
+     */
+    public static Format parseFormat(String name) {
+	try {
+	    return Format.valueOf(name.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Unknown output format: " + name + " (table, csv or json)");
+	}
+    }
+
+    /**
+     * Method to print a table. Concurrent tables on the same stream are not
+     * interleaved.
+     *
+     * @param out the stream to print to, it is flushed but not closed
+     * @param rows the rows, each with one value per column
+     */
+    public void print(PrintStream out, List<List<String>> rows) {
+	synchronized (out) {
+	    Writer writer = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+	    try {
+		switch (this.format) {
+		case TABLE: printTable(writer, rows); break;
+		case CSV: printCsv(writer, rows); break;
+		case JSON: printJson(writer, rows); break;
+		}
+		writer.flush();
+	    } catch (IOException e) {
+		// a PrintStream doesn't throw, it records the error for checkError
+	    }
+	    out.flush();
+	}
+    }
+
+    private void printTable(Writer writer, List<List<String>> rows) throws IOException {
+	int[] widths = this.widths;
+	if (widths == null) {
+	    widths = new int[this.columns.length];
+	    for (int i = 0; i < widths.length; ++i)
+		widths[i] = this.columns[i].length() + 2;
+	    for (List<String> row : rows)
+		for (int i = 0; i < widths.length; ++i)
+		    widths[i] = Math.max(widths[i], String.valueOf(row.get(i)).length() + 2);
+	}
+	int last = widths.length - 1;
+	int total = Math.max(widths[last], this.columns[last].length());
+	for (int i = 0; i < last; ++i)
+	    total += widths[i];
+
+	tableLine(writer, widths, Arrays.asList(this.columns));
+	this.line.setLength(0);
+	for (int i = 0; i < total; ++i)
+	    this.line.append('-');
+	writer.append(this.line).append(System.lineSeparator());
+	for (List<String> row : rows)
+	    tableLine(writer, widths, row);
+    }
+
+    private void tableLine(Writer writer, int[] widths, List<String> values) throws IOException {
+	StringBuilder line = this.line;
+	line.setLength(0);
+	for (int i = 0; i < values.size(); ++i) {
+	    int start = line.length();
+	    line.append(values.get(i));
+	    if (i < values.size() - 1)
+		for (int pad = widths[i] - (line.length() - start); pad > 0; --pad)
+		    line.append(' ');
+	}
+	writer.append(line).append(System.lineSeparator());
+    }
+
+    private void printCsv(Writer writer, List<List<String>> rows) throws IOException {
+	csvLine(writer, Arrays.asList(this.columns));
+	for (List<String> row : rows)
+	    csvLine(writer, row);
+    }
+
+    private void csvLine(Writer writer, List<String> values) throws IOException {
+	StringBuilder line = this.line;
+	line.setLength(0);
+	for (int i = 0; i < values.size(); ++i) {
+	    if (i > 0) line.append(',');
+	    String value = values.get(i);
+	    if (value == null) continue;
+	    boolean quote = false;
+	    for (int c = 0; c < value.length() && !quote; ++c)
+		quote = ",\"\r\n".indexOf(value.charAt(c)) >= 0;
+	    if (!quote) {
+		line.append(value);
+		continue;
+	    }
+	    line.append('"');
+	    for (int c = 0; c < value.length(); ++c) {
+		char ch = value.charAt(c);
+		if (ch == '"') line.append('"');
+		line.append(ch);
+	    }
+	    line.append('"');
+	}
+	writer.append(line).append("\r\n");
+    }
+
+    private void printJson(Writer writer, List<List<String>> rows) throws IOException {
+	boolean[] numeric = new boolean[this.columns.length];
+	for (int i = 0; i < numeric.length; ++i) {
+	    numeric[i] = !rows.isEmpty();
+	    for (int r = 0; r < rows.size() && numeric[i]; ++r)
+		numeric[i] = isNumber(rows.get(r).get(i));
+	}
+	StringBuilder line = this.line;
+	for (List<String> row : rows) {
+	    line.setLength(0);
+	    line.append('{');
+	    for (int i = 0; i < this.columns.length; ++i) {
+		if (i > 0) line.append(", ");
+		jsonString(line, this.columns[i]);
+		line.append(": ");
+		String value = row.get(i);
+		if (value == null) line.append("null");
+		else if (numeric[i]) line.append(value);
+		else jsonString(line, value);
+	    }
+	    line.append('}');
+	    writer.append(line).append(System.lineSeparator());
+	}
+    }
+
+    private static boolean isNumber(String value) {
+	return value == null || NUMBER.matcher(value).matches();
+    }
+
+    private static void jsonString(StringBuilder line, String value) {
+	line.append('"');
+	for (int c = 0; c < value.length(); ++c) {
+	    char ch = value.charAt(c);
+	    switch (ch) {
+	    case '"': line.append("\\\""); break;
+	    case '\\': line.append("\\\\"); break;
+	    case '\n': line.append("\\n"); break;
+	    case '\r': line.append("\\r"); break;
+	    case '\t': line.append("\\t"); break;
+	    default:
+		if (ch < 0x20) line.append(String.format("\\u%04x", (int) ch));
+		else line.append(ch);
+	    }
+	}
+	line.append('"');
+    }
+}
@@ -4,6 +4,18 @@ DROP TABLE IF EXISTS Passenger CASCADE;
 DROP TABLE IF EXISTS Flight CASCADE;
 DROP TABLE IF EXISTS Ratings CASCADE;
 DROP TABLE IF EXISTS Booking CASCADE;
+DROP TABLE IF EXISTS Outbox CASCADE;
+DROP TABLE IF EXISTS OutboxOffset CASCADE;
+DROP TABLE IF EXISTS RatingWatermark CASCADE;
+DROP TABLE IF EXISTS RatingGap CASCADE;
+DROP TABLE IF EXISTS FlightScore CASCADE;
+DROP TABLE IF EXISTS AirlineScore CASCADE;
+DROP TABLE IF EXISTS RatingDay CASCADE;
+DROP TABLE IF EXISTS CommentTerm CASCADE;
+DROP TABLE IF EXISTS RollupDelta CASCADE;
+DROP TABLE IF EXISTS FlightDay CASCADE;
+DROP TABLE IF EXISTS AirlineDay CASCADE;
+DROP TABLE IF EXISTS AirlineRollup CASCADE;
 
 DROP DOMAIN IF EXISTS _YEAR CASCADE;
 DROP DOMAIN IF EXISTS _HOURS CASCADE;
@@ -54,6 +66,7 @@ CREATE TABLE Ratings(
 	flightNum CHAR(8) NOT NULL,
 	score _SCORE NOT NULL,
 	comment TEXT,
+	rated TIMESTAMP NOT NULL DEFAULT now(),
 	PRIMARY KEY (rID),
 	FOREIGN KEY (pID) REFERENCES Passenger(pID),
 	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
@@ -65,12 +78,121 @@ CREATE TABLE Booking(
 	departure DATE NOT NULL,
 	flightNum CHAR(8) NOT NULL,
 	pID INTEGER NOT NULL,
+	version INTEGER NOT NULL DEFAULT 0,--Bumped on every change, used for optimistic concurrency
 	PRIMARY KEY(bookRef),
 	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
 	FOREIGN KEY (pID) REFERENCES Passenger(pID),
 	UNIQUE(departure,flightNum,pID)
 );
 
+--Changes written through AirBooking, appended in the transaction that made them (see ChangeFeed.java)
+CREATE TABLE Outbox(
+	seq BIGSERIAL NOT NULL,--Order in which the changes were written
+	pos BIGINT,--Position in the feed, given once the change committed
+	at TIMESTAMP NOT NULL DEFAULT now(),
+	event TEXT NOT NULL,--booked, cancelled, changed, rated, route added, route updated
+	key TEXT NOT NULL,--bookRef, rID or flightNum
+	data TEXT NOT NULL,--The new values as a JSON object
+	PRIMARY KEY(seq),
+	UNIQUE(pos)
+);
+
+--Position up to which each consumer of the feed has processed the changes
+CREATE TABLE OutboxOffset(
+	consumer TEXT NOT NULL,
+	pos BIGINT NOT NULL,
+	PRIMARY KEY(consumer)
+);
+
+--Ratings summarized by RatingAnalytics: every rID up to hi, except the gaps (see RatingAnalytics.java)
+CREATE TABLE RatingWatermark(
+	id BOOLEAN NOT NULL DEFAULT TRUE CHECK(id),--A single row
+	hi INTEGER NOT NULL,
+	PRIMARY KEY(id)
+);
+INSERT INTO RatingWatermark (hi) VALUES (-1);
+
+--rIDs below the watermark not seen yet, leased by a writer that may still use them
+CREATE TABLE RatingGap(
+	lo INTEGER NOT NULL,
+	hi INTEGER NOT NULL,
+	since TIMESTAMP NOT NULL,
+	PRIMARY KEY(lo)
+);
+
+--Number of ratings of each score, by flight and by airline
+CREATE TABLE FlightScore(
+	flightNum CHAR(8) NOT NULL,
+	score _SCORE NOT NULL,
+	ratings BIGINT NOT NULL,
+	PRIMARY KEY(flightNum, score)
+);
+
+CREATE TABLE AirlineScore(
+	airId INTEGER NOT NULL,
+	score _SCORE NOT NULL,
+	ratings BIGINT NOT NULL,
+	PRIMARY KEY(airId, score)
+);
+
+--Number and sum of the scores of each flight by the day they were given, for averages over windows of days
+CREATE TABLE RatingDay(
+	day DATE NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	ratings BIGINT NOT NULL,
+	total BIGINT NOT NULL,
+	PRIMARY KEY(flightNum, day)
+);
+
+--Comments of each airline that use a term, and the sum of their scores
+CREATE TABLE CommentTerm(
+	airId INTEGER NOT NULL,
+	term TEXT NOT NULL,
+	uses BIGINT NOT NULL,
+	total BIGINT NOT NULL,
+	PRIMARY KEY(airId, term)
+);
+
+--Bookings and flight changes not yet folded into the airline rollups (see AirlineRollups.java)
+CREATE TABLE RollupDelta(
+	seq BIGSERIAL NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	day DATE,--Departure of a booked or cancelled seat, NULL for a change of the flight
+	booked INTEGER NOT NULL,--Seats booked (1) or freed (-1)
+	airId INTEGER,--Airline of the flight before a change of the flight
+	PRIMARY KEY(seq)
+);
+
+--Booked seats of each flight by departure
+CREATE TABLE FlightDay(
+	flightNum CHAR(8) NOT NULL,
+	day DATE NOT NULL,
+	booked INTEGER NOT NULL,
+	PRIMARY KEY(flightNum, day)
+);
+
+--Flights of each airline with bookings on a day, their seats and the seats booked
+CREATE TABLE AirlineDay(
+	airId INTEGER NOT NULL,
+	day DATE NOT NULL,
+	flights INTEGER NOT NULL,
+	seats INTEGER NOT NULL,
+	booked INTEGER NOT NULL,
+	PRIMARY KEY(airId, day)
+);
+
+--Totals of each airline: its routes and their seats, and the sums of its AirlineDay rows
+CREATE TABLE AirlineRollup(
+	airId INTEGER NOT NULL,
+	routes INTEGER NOT NULL,
+	capacity INTEGER NOT NULL,
+	days INTEGER NOT NULL,
+	flights BIGINT NOT NULL,
+	seats BIGINT NOT NULL,
+	booked BIGINT NOT NULL,
+	PRIMARY KEY(airId)
+);
+
 --CREATE USER WITH PASSWORD TO CONNECT TO DATABASE--CHANGE username accordingly
 DROP USER IF EXISTS bgutz;
 CREATE USER bgutz WITH PASSWORD '123456';
@@ -80,6 +202,18 @@ GRANT ALL PRIVILEGES ON TABLE Passenger TO bgutz;
 GRANT ALL PRIVILEGES ON TABLE Flight TO bgutz;
 GRANT ALL PRIVILEGES ON TABLE Ratings TO bgutz;
 GRANT ALL PRIVILEGES ON TABLE Booking TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE Outbox TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE OutboxOffset TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE RatingWatermark TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE RatingGap TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE FlightScore TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE AirlineScore TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE RatingDay TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE CommentTerm TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE RollupDelta TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE FlightDay TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE AirlineDay TO bgutz;
+GRANT ALL PRIVILEGES ON TABLE AirlineRollup TO bgutz;
 ------------------------------------------------------------------------------------
 
 
@@ -150,8 +284,10 @@ END;
 $BODY$ 
 LANGUAGE plpgsql VOLATILE;
 
+--Only when no pID is given, AirBooking leases its pIDs in blocks
 CREATE TRIGGER passenger_insert_t BEFORE INSERT
 ON Passenger FOR EACH ROW
+WHEN (NEW.pID IS NULL)
 EXECUTE PROCEDURE passenger_insert();
 
 --Create rID sequence
@@ -168,14 +304,108 @@ END;
 $BODY$ 
 LANGUAGE plpgsql VOLATILE;
 
+--Only when no rID is given, AirBooking leases its rIDs in blocks
 CREATE TRIGGER ratings_insert_t BEFORE INSERT
 ON Ratings FOR EACH ROW
+WHEN (NEW.rID IS NULL)
 EXECUTE PROCEDURE ratings_insert();
 
+--Tell listening AirBooking processes which table changed, so they drop cached reports
+CREATE OR REPLACE FUNCTION notify_table_change()
+RETURNS "trigger" AS $BODY$
+BEGIN
+	PERFORM pg_notify('table_changed', TG_TABLE_NAME);
+	RETURN NULL;
+END;
+$BODY$ 
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER flight_changed_t AFTER INSERT OR UPDATE OR DELETE
+ON Flight FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_table_change();
+
+CREATE TRIGGER airline_changed_t AFTER INSERT OR UPDATE OR DELETE
+ON Airline FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_table_change();
+
+CREATE TRIGGER ratings_changed_t AFTER INSERT OR UPDATE OR DELETE
+ON Ratings FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_table_change();
+
+--Passengers added by other processes are found by the search index (see NameSearch.java)
+CREATE TRIGGER passenger_changed_t AFTER INSERT OR UPDATE OR DELETE
+ON Passenger FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_table_change();
+
+--Log the seats booked and freed, and the flights changed, for the airline rollups
+CREATE OR REPLACE FUNCTION booking_delta()
+RETURNS "trigger" AS $BODY$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		INSERT INTO RollupDelta (flightNum, day, booked) VALUES (OLD.flightNum, OLD.departure, -1);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO RollupDelta (flightNum, day, booked) VALUES (NEW.flightNum, NEW.departure, 1);
+	END IF;
+	RETURN NULL;
+END;
+$BODY$ 
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER booking_delta_t AFTER INSERT OR DELETE OR UPDATE OF flightNum, departure
+ON Booking FOR EACH ROW
+EXECUTE PROCEDURE booking_delta();
+
+CREATE OR REPLACE FUNCTION flight_delta()
+RETURNS "trigger" AS $BODY$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO RollupDelta (flightNum, booked, airId) VALUES (NEW.flightNum, 0, NEW.airId);
+	ELSE
+		INSERT INTO RollupDelta (flightNum, booked, airId) VALUES (OLD.flightNum, 0, OLD.airId);
+	END IF;
+	RETURN NULL;
+END;
+$BODY$ 
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER flight_delta_t AFTER INSERT OR DELETE OR UPDATE OF airId, seats
+ON Flight FOR EACH ROW
+EXECUTE PROCEDURE flight_delta();
+
+--Airline rollups of the bookings copied in above, later changes come through RollupDelta
+INSERT INTO FlightDay (flightNum, day, booked)
+SELECT flightNum, departure, COUNT(*) FROM Booking GROUP BY flightNum, departure;
+
+INSERT INTO AirlineDay (airId, day, flights, seats, booked)
+SELECT F.airId, D.day, COUNT(*), SUM(F.seats), SUM(D.booked)
+FROM FlightDay D JOIN Flight F ON F.flightNum = D.flightNum
+GROUP BY F.airId, D.day;
+
+INSERT INTO AirlineRollup (airId, routes, capacity, days, flights, seats, booked)
+SELECT A.airId,
+       (SELECT COUNT(*) FROM Flight F WHERE F.airId = A.airId),
+       (SELECT COALESCE(SUM(F.seats), 0) FROM Flight F WHERE F.airId = A.airId),
+       COUNT(D.day), COALESCE(SUM(D.flights), 0), COALESCE(SUM(D.seats), 0), COALESCE(SUM(D.booked), 0)
+FROM Airline A LEFT JOIN AirlineDay D ON D.airId = A.airId
+GROUP BY A.airId;
+
+--Wakes up the readers of the change feed
+CREATE TRIGGER outbox_changed_t AFTER INSERT
+ON Outbox FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_table_change();
+
+--Positions of the change feed, given in commit order by ChangeFeed
+DROP SEQUENCE IF EXISTS outbox_pos;
+CREATE SEQUENCE outbox_pos;
+
 
 --GRANT USER PRIVELEGES TO ACCESS THE SEQUENCE
 GRANT ALL PRIVILEGES ON SEQUENCE pIDseq TO bgutz;
 GRANT ALL PRIVILEGES ON SEQUENCE rIDseq TO bgutz;
+GRANT ALL PRIVILEGES ON SEQUENCE outbox_pos TO bgutz;
+GRANT ALL PRIVILEGES ON SEQUENCE outbox_seq_seq TO bgutz;
+GRANT ALL PRIVILEGES ON SEQUENCE rollupdelta_seq_seq TO bgutz;
 
 
 --Create Indexes
@@ -193,3 +423,16 @@ CREATE INDEX bookingIndex on Booking
 USING btree
 (flightNum)
 ;
+
+--Routes of an airline, for the airline rollups
+CREATE INDEX flightAirlineIndex on Flight
+USING btree
+(airId)
+;
+
+--Changes not yet given a position in the feed
+CREATE INDEX outboxUnplacedIndex on Outbox
+USING btree
+(seq)
+WHERE pos IS NULL
+;